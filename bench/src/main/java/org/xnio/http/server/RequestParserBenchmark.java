@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.xnio.http.Http;
+
+/**
+ * Compare the generated request head parser with the hand-written one it replaces.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+    private static final MethodHandle GENERATED;
+    private static final MethodHandle HAND_WRITTEN;
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final MethodType type = MethodType.methodType(boolean.class, ByteBuffer.class);
+        try {
+            GENERATED = lookup.findVirtual(HttpReadListener.class, "decode", type);
+            // only present once the generator has run
+            HAND_WRITTEN = lookup.findVirtual(HttpReadListener.class, "decodeHandWritten", type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final String REQUEST =
+            "GET /static/images/logo.png?v=20120613 HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "Connection: keep-alive\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/536.5 (KHTML, like Gecko) Chrome/19.0.1084.56 Safari/536.5\r\n" +
+            "Accept: image/png,image/*;q=0.8,*/*;q=0.5\r\n" +
+            "Referer: http://www.example.com/index.html\r\n" +
+            "Accept-Encoding: gzip,deflate,sdch\r\n" +
+            "Accept-Language: en-US,en;q=0.8\r\n" +
+            "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.3\r\n" +
+            "Cookie: JSESSIONID=5C8A2B6E1D1F2E3A4B5C6D7E8F901234; theme=dark\r\n" +
+            "If-Modified-Since: Wed, 13 Jun 2012 10:00:00 GMT\r\n" +
+            "\r\n";
+
+    private final ByteBuffer buffer = ByteBuffer.wrap(REQUEST.getBytes(Http.LATIN_1));
+    private final HttpReadListener listener = new HttpReadListener(null, null);
+
+    @Benchmark
+    public boolean generated() throws Throwable {
+        buffer.clear();
+        return (boolean) GENERATED.invokeExact(listener, buffer);
+    }
+
+    @Benchmark
+    public boolean handWritten() throws Throwable {
+        buffer.clear();
+        return (boolean) HAND_WRITTEN.invokeExact(listener, buffer);
+    }
+}
@@ -22,451 +22,671 @@
 
 package org.xnio.http.tool;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
+
 import static org.objectweb.asm.Opcodes.*;
 
 /**
+ * Build-time generator for the HTTP request head parser.  The {@code decode} method of the compiled
+ * {@code HttpReadListener} is replaced with an equivalent state machine whose states are numbered densely, so that
+ * each byte is dispatched with a single {@code tableswitch}; the request method is matched by a trie built from the
+ * well-known method names.  The hand-written method is kept as {@code decodeHandWritten} for comparison.
+ *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class Generator {
 
-    private static final int CH = 1;
-    private static final int BYTE_BUFFER = 2;
-    private static final int STRING_BUILDER = 3;
-
     private static final String READ_LISTENER = "org/xnio/http/server/HttpReadListener";
+    private static final String METHODS_CLASS = "org/xnio/http/util/Methods";
+    private static final String PROTOCOLS_CLASS = "org/xnio/http/util/Protocols";
+    private static final String BYTE_BUFFER = "java/nio/ByteBuffer";
 
-    public static void main(String[] args) {
-        MethodVisitor mv = null;
-        mv.visitCode();
-        final Label unknownMethod = new Label();
-        final Label readMethod = new Label();
-        final Label readUri = new Label();
-        final Label readUriSubsequent = new Label();
-        final Label readProto = new Label();
-        final Label readProtoSubsequent = new Label();
-        final Label readHeaders = new Label();
-        final Label matchC = new Label();
-        final Label matchCO = new Label();
-        final Label matchCON = new Label();
-        final Label matchCONN = new Label();
-        final Label matchCONNE = new Label();
-        final Label matchCONNEC = new Label();
-        final Label matchCONNECT = new Label();
-        final Label matchD = new Label();
-        final Label matchDE = new Label();
-        final Label matchDEL = new Label();
-        final Label matchDELE = new Label();
-        final Label matchDELET = new Label();
-        final Label matchDELETE = new Label();
-        final Label matchG = new Label();
-        final Label matchGE = new Label();
-        final Label matchGET = new Label();
-        final Label matchH = new Label();
-        final Label matchHE = new Label();
-        final Label matchHEA = new Label();
-        final Label matchHEAD = new Label();
-        final Label matchO = new Label();
-        final Label matchOP = new Label();
-        final Label matchOPT = new Label();
-        final Label matchOPTI = new Label();
-        final Label matchOPTIO = new Label();
-        final Label matchOPTION = new Label();
-        final Label matchOPTIONS = new Label();
-        final Label matchP = new Label();
-        final Label matchPO = new Label();
-        final Label matchPOS = new Label();
-        final Label matchPOST = new Label();
-        final Label matchPU = new Label();
-        final Label matchPUT = new Label();
-        final Label matchT = new Label();
-        final Label matchTR = new Label();
-        final Label matchTRA = new Label();
-        final Label matchTRAC = new Label();
-        final Label matchTRACE = new Label();
-        final Label doReturn = new Label();
-        final Label badState = new Label();
-
-        final Label badRequest = new Label();
+    private static final String DECODE = "decode";
+    private static final String DECODE_HAND_WRITTEN = "decodeHandWritten";
+    private static final String DECODE_DESC = "(Ljava/nio/ByteBuffer;)Z";
+    private static final String STRING_DESC = "Ljava/lang/String;";
+
+    /**
+     * The well-known methods, each of which has a constant of the same name in {@code Methods}.
+     */
+    private static final String[] METHODS = { "CONNECT", "DELETE", "GET", "HEAD", "OPTIONS", "POST", "PUT", "TRACE" };
+
+    private static final long BYTES = 0x0101010101010101L;
+    private static final long SP_WORD = BYTES * ' ';
+    private static final long CR_WORD = BYTES * '\r';
+    private static final long COLON_WORD = BYTES * ':';
+
+    // Local variable slots
+
+    private static final int THIS = 0;
+    private static final int BUFFER = 1;
+    private static final int STATE = 2;
+    private static final int CH = 3;
+    private static final int HEADER_OFFSETS = 4;
+    private static final int IDX = 5;
+
+    // Fixed states; the method trie states come after these
+
+    private static final int READ_METHOD = 0;
+    private static final int UNKNOWN_METHOD = 1;
+    private static final int URI_START = 2;
+    private static final int URI = 3;
+    private static final int SIMPLE_REQUEST_LF = 4;
+    private static final int PROTOCOL_START = 5;
+    private static final int PROTOCOL = 6;
+    private static final int REQUEST_LINE_LF = 7;
+    private static final int HEADER_START = 8;
+    private static final int HEADER_NAME = 9;
+    private static final int HEADER_VALUE_START = 10;
+    private static final int HEADER_VALUE = 11;
+    private static final int HEADER_LF = 12;
+    private static final int HEADERS_END_LF = 13;
+    private static final int FIRST_METHOD_STATE = 14;
+
+    private final MethodVisitor mv;
+    private final Label loop = new Label();
+    private final Label done = new Label();
+    private final Label badRequest = new Label();
+    private final Label badState = new Label();
+    private final List<Label> states = new ArrayList<>();
+    private final Map<Integer, Label> transitions = new TreeMap<>();
+
+    private Generator(final MethodVisitor mv) {
+        this.mv = mv;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: Generator <class output directory>");
+        }
+        final File file = new File(args[0], READ_LISTENER + ".class");
+        final byte[] bytes = transform(readFile(file));
+        if (bytes != null) {
+            final OutputStream os = new FileOutputStream(file);
+            try {
+                os.write(bytes);
+            } finally {
+                os.close();
+            }
+        }
+    }
 
+    private static byte[] readFile(final File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int cnt = 0, res;
+            while ((res = is.read(bytes, cnt, bytes.length - cnt)) != -1) {
+                cnt += res;
+                if (cnt == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, cnt << 1);
+                }
+            }
+            return Arrays.copyOf(bytes, cnt);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Replace the {@code decode} method of the read listener class.
+     *
+     * @param original the original class bytes
+     * @return the new class bytes, or {@code null} if the class was already transformed
+     */
+    static byte[] transform(final byte[] original) {
+        final ClassReader reader = new ClassReader(original);
+        final int[] access = { -1 };
+        reader.accept(new ClassVisitor(ASM4) {
+            public MethodVisitor visitMethod(final int acc, final String name, final String desc, final String signature, final String[] exceptions) {
+                if (name.equals(DECODE_HAND_WRITTEN)) {
+                    access[0] = -2;
+                } else if (name.equals(DECODE) && desc.equals(DECODE_DESC) && access[0] == -1) {
+                    access[0] = acc;
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        if (access[0] == -2) {
+            // incremental build; nothing to do
+            return null;
+        }
+        if (access[0] == -1) {
+            throw new IllegalStateException("No decode method found in " + READ_LISTENER);
+        }
+        final ClassWriter writer = new ClassWriter(reader, 0);
+        reader.accept(new ClassVisitor(ASM4, writer) {
+            public MethodVisitor visitMethod(final int acc, final String name, final String desc, final String signature, final String[] exceptions) {
+                if (name.equals(DECODE) && desc.equals(DECODE_DESC)) {
+                    return super.visitMethod(acc, DECODE_HAND_WRITTEN, desc, signature, exceptions);
+                }
+                return super.visitMethod(acc, name, desc, signature, exceptions);
+            }
+
+            public void visitEnd() {
+                copyMethods(generateDecode(access[0]), cv);
+                super.visitEnd();
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Generate the decode method into a scratch class, so that its stack map frames can be computed without
+     * recomputing (and loading the types referenced by) the frames of the rest of the read listener class.
+     *
+     * @param access the access flags of the method
+     * @return the scratch class bytes
+     */
+    private static byte[] generateDecode(final int access) {
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(V1_7, ACC_FINAL | ACC_SUPER, READ_LISTENER, null, "java/lang/Object", null);
+        new Generator(writer.visitMethod(access, DECODE, DECODE_DESC, null, null)).generate();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void copyMethods(final byte[] bytes, final ClassVisitor target) {
+        new ClassReader(bytes).accept(new ClassVisitor(ASM4) {
+            public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature, final String[] exceptions) {
+                return target.visitMethod(access, name, desc, signature, exceptions);
+            }
+        }, 0);
+    }
+
+    // --------------------------------------------------------------------
+    // Method trie
+    // --------------------------------------------------------------------
+
+    static final class Node {
+        private final String prefix;
+        private final int state;
+        private final Map<Character, Node> children = new TreeMap<>();
+
+        Node(final String prefix, final int state) {
+            this.prefix = prefix;
+            this.state = state;
+        }
+    }
+
+    private Node buildTrie() {
+        final Node root = new Node("", READ_METHOD);
+        for (String method : METHODS) {
+            Node node = root;
+            for (int i = 0; i < method.length(); i ++) {
+                final char c = method.charAt(i);
+                Node child = node.children.get(Character.valueOf(c));
+                if (child == null) {
+                    child = new Node(method.substring(0, i + 1), states.size());
+                    states.add(new Label());
+                    node.children.put(Character.valueOf(c), child);
+                }
+                node = child;
+            }
+        }
+        return root;
+    }
+
+    // --------------------------------------------------------------------
+    // Code generation
+    // --------------------------------------------------------------------
+
+    private void generate() {
+        for (int i = 0; i < FIRST_METHOD_STATE; i ++) {
+            states.add(new Label());
+        }
+        final Node root = buildTrie();
+
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, THIS);
         mv.visitFieldInsn(GETFIELD, READ_LISTENER, "state", "I");
-        final Label[] states = {
-                readMethod,
-                matchC,
-                matchCO,
-                matchCON,
-                matchCONN,
-                matchCONNE,
-                matchCONNEC,
-                matchCONNECT,
-                matchD,
-                matchDE,
-                matchDEL,
-                matchDELE,
-                matchDELET,
-                matchDELETE,
-                matchG,
-                matchGE,
-                matchGET,
-                matchH,
-                matchHE,
-                matchHEA,
-                matchHEAD,
-                matchO,
-                matchOP,
-                matchOPT,
-                matchOPTI,
-                matchOPTIO,
-                matchOPTION,
-                matchOPTIONS,
-                matchP,
-                matchPO,
-                matchPOS,
-                matchPOST,
-                matchPU,
-                matchPUT,
-                matchT,
-                matchTR,
-                matchTRA,
-                matchTRAC,
-                matchTRACE,
-                unknownMethod,
-                readUri,
-                readUriSubsequent,
-                readProto,
-                readProtoSubsequent,
-                readHeaders,
-        };
-        mv.visitTableSwitchInsn(0, states.length - 1, badState, states);
-
-        int c = 0;
-
-        // Read an HTTP method
-        mv.visitLabel(readMethod);
-        visitRead(mv);
-        final Label exitReadMethod = new Label();
-        mv.visitLookupSwitchInsn(unknownMethod,
-                new int[]   { -1,  'C', 'D', 'G', 'H', 'O', 'P', 'T' },
-                new Label[] { exitReadMethod, matchC, matchD, matchG, matchH, matchO, matchP, matchT });
-
-        mv.visitLabel(exitReadMethod);
-        mv.visitIntInsn(BIPUSH, c++);
-        mv.visitLabel(doReturn);
+        mv.visitVarInsn(ISTORE, STATE);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "headerOffsets", "[I");
+        mv.visitVarInsn(ASTORE, HEADER_OFFSETS);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, CH);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, IDX);
+
+        // read the next byte and dispatch on the current state
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_BUFFER, "hasRemaining", "()Z");
+        mv.visitJumpInsn(IFEQ, done);
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_BUFFER, "get", "()B");
+        pushInt(0xff);
+        mv.visitInsn(IAND);
+        mv.visitVarInsn(ISTORE, CH);
+        mv.visitVarInsn(ILOAD, STATE);
+        mv.visitTableSwitchInsn(0, states.size() - 1, badState, states.toArray(new Label[states.size()]));
+
+        generateMethod(root);
+        generateUnknownMethod();
+        generateUri();
+        generateProtocol();
+        generateHeaders();
+
+        for (Map.Entry<Integer, Label> entry : transitions.entrySet()) {
+            mv.visitLabel(entry.getValue());
+            setState(entry.getKey().intValue());
+        }
+
+        mv.visitLabel(done);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitVarInsn(ILOAD, STATE);
         mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "state", "I");
-        mv.visitIntInsn(BIPUSH, 1);
+        mv.visitInsn(ICONST_1);
         mv.visitInsn(IRETURN);
-        
+
         mv.visitLabel(badRequest);
-        mv.visitIntInsn(BIPUSH, 0);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitVarInsn(ILOAD, STATE);
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "state", "I");
+        mv.visitInsn(ICONST_0);
         mv.visitInsn(IRETURN);
 
-        // match CONNECT
-        doFirstStep(mv, c++, 'C', 'O', readUri, doReturn, unknownMethod, matchC, matchCO, badRequest);
-        doSimpleStep(mv, c++, "CO", 'N', readUri, doReturn, unknownMethod, matchCO, matchCON, badRequest);
-        doSimpleStep(mv, c++, "CON", 'N', readUri, doReturn, unknownMethod, matchCON, matchCONN, badRequest);
-        doSimpleStep(mv, c++, "CONN", 'E', readUri, doReturn, unknownMethod, matchCONN, matchCONNE, badRequest);
-        doSimpleStep(mv, c++, "CONNE", 'C', readUri, doReturn, unknownMethod, matchCONNE, matchCONNEC, badRequest);
-        doSimpleStep(mv, c++, "CONNEC", 'T', readUri, doReturn, unknownMethod, matchCONNEC, matchCONNECT, badRequest);
-        doFinalStep(mv, c++, "CONNECT", readUri, doReturn, unknownMethod, matchCONNECT, badRequest);
-
-        // match DELETE
-        doFirstStep(mv, c++, 'D', 'E', readUri, doReturn, unknownMethod, matchD, matchDE, badRequest);
-        doSimpleStep(mv, c++, "DE", 'L', readUri, doReturn, unknownMethod, matchDE, matchDEL, badRequest);
-        doSimpleStep(mv, c++, "DEL", 'E', readUri, doReturn, unknownMethod, matchDEL, matchDELE, badRequest);
-        doSimpleStep(mv, c++, "DELE", 'T', readUri, doReturn, unknownMethod, matchDELE, matchDELET, badRequest);
-        doSimpleStep(mv, c++, "DELET", 'E', readUri, doReturn, unknownMethod, matchDELET, matchDELETE, badRequest);
-        doFinalStep(mv, c++, "DELETE", readUri, doReturn, unknownMethod, matchDELETE, badRequest);
-
-        // match GET
-        doFirstStep(mv, c++, 'G', 'E', readUri, doReturn, unknownMethod, matchG, matchGE, badRequest);
-        doSimpleStep(mv, c++, "GE", 'T', readUri, doReturn, unknownMethod, matchGE, matchGET, badRequest);
-        doFinalStep(mv, c++, "GET", readUri, doReturn, unknownMethod, matchGET, badRequest);
-
-        // match HEAD
-        doFirstStep(mv, c++, 'H', 'E', readUri, doReturn, unknownMethod, matchH, matchHE, badRequest);
-        doSimpleStep(mv, c++, "HE", 'A', readUri, doReturn, unknownMethod, matchHE, matchHEA, badRequest);
-        doSimpleStep(mv, c++, "HEA", 'D', readUri, doReturn, unknownMethod, matchHEA, matchHEAD, badRequest);
-        doFinalStep(mv, c++, "HEAD", readUri, doReturn, unknownMethod, matchHEAD, badRequest);
-
-        // match OPTIONS
-        doFirstStep(mv, c++, 'O', 'P', readUri, doReturn, unknownMethod, matchO, matchOP, badRequest);
-        doSimpleStep(mv, c++, "OP", 'T', readUri, doReturn, unknownMethod, matchOP, matchOPT, badRequest);
-        doSimpleStep(mv, c++, "OPT", 'I', readUri, doReturn, unknownMethod, matchOPT, matchOPTI, badRequest);
-        doSimpleStep(mv, c++, "OPTI", 'O', readUri, doReturn, unknownMethod, matchOPTI, matchOPTIO, badRequest);
-        doSimpleStep(mv, c++, "OPTIO", 'N', readUri, doReturn, unknownMethod, matchOPTIO, matchOPTION, badRequest);
-        doSimpleStep(mv, c++, "OPTION", 'S', readUri, doReturn, unknownMethod, matchOPTION, matchOPTIONS, badRequest);
-        doFinalStep(mv, c++, "OPTIONS", readUri, doReturn, unknownMethod, matchOPTIONS, badRequest);
-
-        // match POST or PUT
-        doTwoStep(mv, c++, 'P', 'O', 'U', readUri, doReturn, unknownMethod, matchP, matchPO, matchPU, badRequest);
-
-        // match POST
-        doSimpleStep(mv, c++, "PO", 'S', readUri, doReturn, unknownMethod, matchPO, matchPOS, badRequest);
-        doSimpleStep(mv, c++, "POS", 'T', readUri, doReturn, unknownMethod, matchPOS, matchPOST, badRequest);
-        doFinalStep(mv, c++, "POST", readUri, doReturn, unknownMethod, matchPOST, badRequest);
-
-        // match PUT
-        doSimpleStep(mv, c++, "PU", 'T', readUri, doReturn, unknownMethod, matchPU, matchPUT, badRequest);
-        doFinalStep(mv, c++, "PUT", readUri, doReturn, unknownMethod, matchPUT, badRequest);
-
-        // match TRACE
-        doFirstStep(mv, c++, 'T', 'R', readUri, doReturn, unknownMethod, matchT, matchTR, badRequest);
-        doSimpleStep(mv, c++, "TR", 'A', readUri, doReturn, unknownMethod, matchTR, matchTRA, badRequest);
-        doSimpleStep(mv, c++, "TRA", 'C', readUri, doReturn, unknownMethod, matchTRA, matchTRAC, badRequest);
-        doSimpleStep(mv, c++, "TRAC", 'E', readUri, doReturn, unknownMethod, matchTRAC, matchTRACE, badRequest);
-        doFinalStep(mv, c++, "TRACE", readUri, doReturn, unknownMethod, matchTRACE, badRequest);
-
-        // build method from string using string builder
-        mv.visitLabel(unknownMethod);
-        visitRead(mv);
-        mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        final Label doAppendMethod = new Label();
-        final Label exitReadMethodBuild = new Label();
-        final Label prepareReadUri = new Label();
-        mv.visitLookupSwitchInsn(doAppendMethod,
-                new int[]   { -1, ' ' },
-                new Label[] { exitReadMethodBuild, prepareReadUri });
-
-        mv.visitLabel(doAppendMethod);
-        mv.visitVarInsn(ALOAD, STRING_BUILDER);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        mv.visitJumpInsn(GOTO, unknownMethod);
-
-        mv.visitLabel(exitReadMethodBuild); // ran out of buffer
-        mv.visitIntInsn(BIPUSH, c++);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(prepareReadUri); // finished reading method, clear builder and move on to URI
-        mv.visitVarInsn(ALOAD, STRING_BUILDER);
-        mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
-        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "method", "Ljava/lang/String;");
-        mv.visitIntInsn(BIPUSH, 0);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "setLength", "(I)V");
-        //mv.visitJumpInsn(GOTO, readUri); // fall through
-
-        // read URI
-        mv.visitLabel(readUri);
-        visitRead(mv);
+        mv.visitLabel(badState);
+        mv.visitTypeInsn(NEW, "java/lang/IllegalStateException");
         mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        final Label doAppendUri = new Label();
-        final Label exitReadUri = new Label();
-        mv.visitLookupSwitchInsn(doAppendUri,
-                new int[]   { -1,          ' '     },
-                new Label[] { exitReadUri, readUri });
-
-        mv.visitLabel(exitReadUri);
-        mv.visitIntInsn(BIPUSH, c++);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(doAppendUri);
-        mv.visitVarInsn(ALOAD, STRING_BUILDER);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        //mv.visitJumpInsn(GOTO, readUriSubsequent); // fall through
-
-        mv.visitLabel(readUriSubsequent);
-        visitRead(mv);
-        mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        final Label exitReadUriSubsequent = new Label();
-        final Label prepareReadProtocol = new Label();
-        mv.visitLookupSwitchInsn(doAppendUri,
-                new int[]   { -1,                    ' ', },
-                new Label[] { exitReadUriSubsequent, prepareReadProtocol });
-
-        mv.visitLabel(exitReadUriSubsequent);
-        mv.visitIntInsn(BIPUSH, c++);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(prepareReadProtocol);
-        mv.visitVarInsn(ALOAD, STRING_BUILDER);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "()V");
+        mv.visitInsn(ATHROW);
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Generate the states which match a method name.  On a space, the method is complete; any other unexpected
+     * character means the method is not a well-known one.
+     */
+    private void generateMethod(final Node node) {
+        mv.visitLabel(states.get(node.state));
+        final Cases cases = new Cases();
+        for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+            cases.add(entry.getKey().charValue(), transition(entry.getValue().state));
+        }
+        if (node.state != READ_METHOD) {
+            final Label matched = new Label();
+            cases.add(' ', matched);
+            cases.add('\r', badRequest);
+            cases.emit(transition(UNKNOWN_METHOD));
+            mv.visitLabel(matched);
+            mv.visitVarInsn(ALOAD, THIS);
+            if (Arrays.asList(METHODS).contains(node.prefix)) {
+                mv.visitFieldInsn(GETSTATIC, METHODS_CLASS, node.prefix, STRING_DESC);
+            } else {
+                mv.visitLdcInsn(node.prefix);
+            }
+            mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "method", STRING_DESC);
+            setState(URI_START);
+        } else {
+            cases.add('\r', badRequest);
+            cases.emit(transition(UNKNOWN_METHOD));
+        }
+        for (Node child : node.children.values()) {
+            generateMethod(child);
+        }
+    }
+
+    private void generateUnknownMethod() {
+        final Label matched = new Label();
+        mv.visitLabel(states.get(UNKNOWN_METHOD));
+        new Cases().add(' ', matched).add('\r', badRequest).emit(loop);
+        mv.visitLabel(matched);
+        mv.visitVarInsn(ALOAD, THIS);
+        string("mark");
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "method", STRING_DESC);
+        setState(URI_START);
+    }
+
+    private void generateUri() {
+        Label l1, l2;
+
+        mv.visitLabel(states.get(URI_START));
+        l1 = new Label();
+        new Cases().add(' ', loop).add('\r', badRequest).emit(l1);
+        mv.visitLabel(l1);
+        mv.visitVarInsn(ALOAD, THIS);
+        positionMinusOne();
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "tokenStart", "I");
+        pushInt(URI);
+        mv.visitVarInsn(ISTORE, STATE);
+        scan(SP_WORD, CR_WORD, CR_WORD);
+
+        mv.visitLabel(states.get(URI));
+        l1 = new Label();
+        l2 = new Label();
+        final Label skip = new Label();
+        new Cases().add(' ', l1).add('\r', l2).emit(skip);
+        mv.visitLabel(skip);
+        scan(SP_WORD, CR_WORD, CR_WORD);
+        mv.visitLabel(l1);
+        mv.visitVarInsn(ALOAD, THIS);
+        string("tokenStart");
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "requestUri", STRING_DESC);
+        setState(PROTOCOL_START);
+        mv.visitLabel(l2);
+        mv.visitVarInsn(ALOAD, THIS);
+        string("tokenStart");
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "requestUri", STRING_DESC);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETSTATIC, PROTOCOLS_CLASS, "HTTP_0_9", STRING_DESC);
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "protocol", STRING_DESC);
+        setState(SIMPLE_REQUEST_LF);
+
+        // HTTP/0.9 simple request; there are no headers
+        mv.visitLabel(states.get(SIMPLE_REQUEST_LF));
+        l1 = new Label();
+        new Cases().add('\n', l1).emit(badRequest);
+        mv.visitLabel(l1);
+        mv.visitVarInsn(ALOAD, THIS);
+        position();
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "headersStart", "I");
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitInsn(ICONST_0);
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "headerCount", "I");
+        requestComplete();
+    }
+
+    private void generateProtocol() {
+        Label l1;
+
+        mv.visitLabel(states.get(PROTOCOL_START));
+        l1 = new Label();
+        new Cases().add(' ', loop).add('H', l1).emit(badRequest);
+        mv.visitLabel(l1);
+        mv.visitVarInsn(ALOAD, THIS);
+        positionMinusOne();
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "tokenStart", "I");
+        setState(PROTOCOL);
+
+        mv.visitLabel(states.get(PROTOCOL));
+        l1 = new Label();
+        new Cases().add('\r', l1).add(' ', badRequest).emit(loop);
+        mv.visitLabel(l1);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "tokenStart", "I");
+        positionMinusOne();
+        mv.visitMethodInsn(INVOKESTATIC, READ_LISTENER, "protocol", "(Ljava/nio/ByteBuffer;II)Ljava/lang/String;");
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "protocol", STRING_DESC);
+        setState(REQUEST_LINE_LF);
+
+        mv.visitLabel(states.get(REQUEST_LINE_LF));
+        l1 = new Label();
+        new Cases().add('\n', l1).emit(badRequest);
+        mv.visitLabel(l1);
+        mv.visitVarInsn(ALOAD, THIS);
+        position();
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "headersStart", "I");
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitInsn(ICONST_0);
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "headerCount", "I");
+        setState(HEADER_START);
+    }
+
+    private void generateHeaders() {
+        Label l1, l2;
+
+        mv.visitLabel(states.get(HEADER_START));
+        l1 = new Label();
+        new Cases().add(' ', badRequest).add('\t', badRequest).add(':', badRequest).add('\r', transition(HEADERS_END_LF)).emit(l1);
+        mv.visitLabel(l1);
+        // idx = headerCount << 2
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "headerCount", "I");
+        mv.visitInsn(ICONST_2);
+        mv.visitInsn(ISHL);
+        mv.visitVarInsn(ISTORE, IDX);
+        // grow the offsets array if needed
+        l2 = new Label();
+        mv.visitVarInsn(ILOAD, IDX);
+        mv.visitInsn(ICONST_4);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitJumpInsn(IF_ICMPLE, l2);
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ISHL);
+        mv.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "copyOf", "([II)[I");
         mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
-        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "requestUri", "Ljava/lang/String;");
-        mv.visitIntInsn(BIPUSH, 0);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "setLength", "(I)V");
-        //mv.visitJumpInsn(GOTO, readProto); // fall through
-
-        mv.visitLabel(readProto);
-        visitRead(mv);
-        final Label doAppendProto = new Label();
-        final Label exitReadProto = new Label();
-        mv.visitLookupSwitchInsn(doAppendProto,
-                new int[]   { -1,            ' ' },
-                new Label[] { exitReadProto, readProto });
-
-        mv.visitLabel(exitReadProto);
-        mv.visitIntInsn(BIPUSH, c++);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(doAppendProto);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        mv.visitVarInsn(ALOAD, STRING_BUILDER);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        //mv.visitJumpInsn(GOTO, readProtoSubsequent); // fall through
-
-        mv.visitLabel(readProtoSubsequent);
-        visitRead(mv);
-        final Label exitReadProtoSubsequent = new Label();
-        final Label prepareReadHeaders = new Label();
-        mv.visitLookupSwitchInsn(doAppendProto,
-                new int[]   { -1,                      '\r',               ' ' },
-                new Label[] { exitReadProtoSubsequent, prepareReadHeaders, badRequest });
-
-        mv.visitLabel(exitReadProtoSubsequent);
-        mv.visitIntInsn(BIPUSH, c++);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(prepareReadHeaders);
-
-        // done!
-        mv.visitMaxs();
+        mv.visitVarInsn(ASTORE, HEADER_OFFSETS);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitInsn(SWAP);
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "headerOffsets", "[I");
+        mv.visitLabel(l2);
+        // headerOffsets[idx] = position - 1
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitVarInsn(ILOAD, IDX);
+        positionMinusOne();
+        mv.visitInsn(IASTORE);
+        setState(HEADER_NAME);
+
+        mv.visitLabel(states.get(HEADER_NAME));
+        l1 = new Label();
+        l2 = new Label();
+        new Cases().add(':', l1).add(' ', badRequest).add('\r', badRequest).emit(l2);
+        mv.visitLabel(l2);
+        scan(COLON_WORD, SP_WORD, CR_WORD);
+        mv.visitLabel(l1);
+        headerOffset(1);
+        positionMinusOne();
+        mv.visitInsn(IASTORE);
+        setState(HEADER_VALUE_START);
+
+        mv.visitLabel(states.get(HEADER_VALUE_START));
+        l1 = new Label();
+        l2 = new Label();
+        new Cases().add(' ', loop).add('\t', loop).add('\r', l1).emit(l2);
+        mv.visitLabel(l1);
+        // empty value
+        nextHeader();
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitVarInsn(ILOAD, IDX);
+        mv.visitInsn(ICONST_2);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitVarInsn(ILOAD, IDX);
+        mv.visitInsn(ICONST_3);
+        mv.visitInsn(IADD);
+        positionMinusOne();
+        mv.visitInsn(DUP_X2);
+        mv.visitInsn(IASTORE);
+        mv.visitInsn(IASTORE);
+        setState(HEADER_LF);
+        mv.visitLabel(l2);
+        headerOffset(2);
+        positionMinusOne();
+        mv.visitInsn(IASTORE);
+        pushInt(HEADER_VALUE);
+        mv.visitVarInsn(ISTORE, STATE);
+        scan(CR_WORD, CR_WORD, CR_WORD);
+
+        mv.visitLabel(states.get(HEADER_VALUE));
+        l1 = new Label();
+        l2 = new Label();
+        new Cases().add('\r', l1).emit(l2);
+        mv.visitLabel(l2);
+        scan(CR_WORD, CR_WORD, CR_WORD);
+        mv.visitLabel(l1);
+        // trailing whitespace is not part of the value
+        nextHeader();
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitVarInsn(ILOAD, IDX);
+        mv.visitInsn(ICONST_3);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitVarInsn(ILOAD, IDX);
+        mv.visitInsn(ICONST_2);
+        mv.visitInsn(IADD);
+        mv.visitInsn(IALOAD);
+        positionMinusOne();
+        mv.visitMethodInsn(INVOKESTATIC, READ_LISTENER, "trimEnd", "(Ljava/nio/ByteBuffer;II)I");
+        mv.visitInsn(IASTORE);
+        setState(HEADER_LF);
+
+        mv.visitLabel(states.get(HEADER_LF));
+        new Cases().add('\n', transition(HEADER_START)).emit(badRequest);
+
+        mv.visitLabel(states.get(HEADERS_END_LF));
+        l1 = new Label();
+        new Cases().add('\n', l1).emit(badRequest);
+        mv.visitLabel(l1);
+        requestComplete();
     }
 
-    private static void doFirstStep(final MethodVisitor mv, final int stateId, final char matchedSoFar, final char nextChar, final Label readUri, final Label doReturn, final Label unknownMethod, final Label ourLabel, final Label nextLabel, final Label badRequest) {
-        final Label isUnknown = new Label();
-        final Label wholeMatched = new Label();
-        final Label exit = new Label();
-        mv.visitLabel(ourLabel);
-        visitRead(mv);
-        mv.visitLookupSwitchInsn(isUnknown,
-                new int[]   { -1,   nextChar,  ' '          },
-                new Label[] { exit, nextLabel, wholeMatched });
-
-        mv.visitLabel(exit);
-        mv.visitIntInsn(BIPUSH, stateId);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(isUnknown);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "stringBuilder", "Ljava/lang/StringBuilder;");
-        mv.visitIntInsn(BIPUSH, matchedSoFar);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        mv.visitJumpInsn(GOTO, unknownMethod);
-
-        mv.visitLabel(wholeMatched);
-        mv.visitLdcInsn(matchedSoFar);
-        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "method", "Ljava/lang/String;");
-        mv.visitJumpInsn(GOTO, readUri);
+    // --------------------------------------------------------------------
+    // Code generation utilities
+    // --------------------------------------------------------------------
+
+    /**
+     * A {@code lookupswitch} on the current character.
+     */
+    final class Cases {
+        private final Map<Integer, Label> cases = new TreeMap<>();
+
+        Cases add(final int c, final Label label) {
+            cases.put(Integer.valueOf(c), label);
+            return this;
+        }
+
+        void emit(final Label dflt) {
+            final int[] keys = new int[cases.size()];
+            final Label[] labels = new Label[keys.length];
+            int i = 0;
+            for (Map.Entry<Integer, Label> entry : cases.entrySet()) {
+                keys[i] = entry.getKey().intValue();
+                labels[i++] = entry.getValue();
+            }
+            mv.visitVarInsn(ILOAD, CH);
+            mv.visitLookupSwitchInsn(dflt, keys, labels);
+        }
     }
 
-    private static void doTwoStep(final MethodVisitor mv, final int stateId, final char matchedSoFar, final char nextChar1, final char nextChar2, final Label readUri, final Label doReturn, final Label unknownMethod, final Label ourLabel, final Label nextLabel1, final Label nextLabel2, final Label badRequest) {
-        final Label isUnknown = new Label();
-        final Label wholeMatched = new Label();
-        final Label exit = new Label();
-        mv.visitLabel(ourLabel);
-        visitRead(mv);
-        mv.visitLookupSwitchInsn(isUnknown,
-                new int[]   { -1,   nextChar1,  nextChar2,  ' '          },
-                new Label[] { exit, nextLabel1, nextLabel2, wholeMatched });
-
-        mv.visitLabel(exit);
-        mv.visitIntInsn(BIPUSH, stateId);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(isUnknown);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "stringBuilder", "Ljava/lang/StringBuilder;");
-        mv.visitIntInsn(BIPUSH, matchedSoFar);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        mv.visitJumpInsn(GOTO, unknownMethod);
-
-        mv.visitLabel(wholeMatched);
-        mv.visitLdcInsn(matchedSoFar);
-        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "method", "Ljava/lang/String;");
-        mv.visitJumpInsn(GOTO, readUri);
+    /**
+     * Get a label which moves to the given state and continues with the next byte.  The code for the label is
+     * emitted at the end of the method.
+     */
+    private Label transition(final int state) {
+        Label label = transitions.get(Integer.valueOf(state));
+        if (label == null) {
+            transitions.put(Integer.valueOf(state), label = new Label());
+        }
+        return label;
     }
 
-    private static void doSimpleStep(final MethodVisitor mv, final int stateId, final String matchedSoFar, final char nextChar, final Label readUri, final Label doReturn, final Label unknownMethod, final Label ourLabel, final Label nextLabel, final Label badRequest) {
-        final Label isUnknown = new Label();
-        final Label wholeMatched = new Label();
-        final Label exit = new Label();
-        mv.visitLabel(ourLabel);
-        visitRead(mv);
-        mv.visitLookupSwitchInsn(isUnknown,
-                new int[]   { -1,   nextChar,  ' '          },
-                new Label[] { exit, nextLabel, wholeMatched });
-
-        mv.visitLabel(exit);
-        mv.visitIntInsn(BIPUSH, stateId);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(isUnknown);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "stringBuilder", "Ljava/lang/StringBuilder;");
-        mv.visitLdcInsn(matchedSoFar);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        mv.visitJumpInsn(GOTO, unknownMethod);
-
-        mv.visitLabel(wholeMatched);
-        mv.visitLdcInsn(matchedSoFar);
-        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "method", "Ljava/lang/String;");
-        mv.visitJumpInsn(GOTO, readUri);
+    private void setState(final int state) {
+        pushInt(state);
+        mv.visitVarInsn(ISTORE, STATE);
+        mv.visitJumpInsn(GOTO, loop);
     }
 
-    private static void doFinalStep(final MethodVisitor mv, final int stateId, final String matchedSoFar, final Label readUri, final Label doReturn, final Label unknownMethod, final Label ourLabel, final Label badRequest) {
-        final Label isUnknown = new Label();
-        final Label wholeMatched = new Label();
-        final Label exit = new Label();
-        mv.visitLabel(ourLabel);
-        visitRead(mv);
-        mv.visitLookupSwitchInsn(isUnknown,
-                new int[]   { -1,   ' '          },
-                new Label[] { exit, wholeMatched });
-
-        mv.visitLabel(exit);
-        mv.visitIntInsn(BIPUSH, stateId);
-        mv.visitJumpInsn(GOTO, doReturn);
-
-        mv.visitLabel(isUnknown);
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "isControl", "(C)Z");
-        mv.visitJumpInsn(IFNE, badRequest);
-        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "stringBuilder", "Ljava/lang/StringBuilder;");
-        mv.visitFieldInsn(GETSTATIC, "org/xnio/http/util/Methods", matchedSoFar, "Ljava/lang/String;");
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
-        mv.visitVarInsn(ILOAD, CH);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;");
-        mv.visitJumpInsn(GOTO, unknownMethod);
-
-        mv.visitLabel(wholeMatched);
-        mv.visitFieldInsn(GETSTATIC, "org/xnio/http/util/Methods", matchedSoFar, "Ljava/lang/String;");
-        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "method", "Ljava/lang/String;");
-        mv.visitJumpInsn(GOTO, readUri);
+    private void pushInt(final int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else {
+            mv.visitIntInsn(SIPUSH, value);
+        }
+    }
+
+    private void position() {
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_BUFFER, "position", "()I");
+    }
+
+    private void positionMinusOne() {
+        position();
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ISUB);
     }
 
     /**
-     * Read character from buffer, store it in CH and on stack
-     *
-     * @param mv
+     * Skip ahead to the next delimiter and continue with the next byte.
+     */
+    private void scan(final long d1, final long d2, final long d3) {
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitVarInsn(ALOAD, BUFFER);
+        position();
+        mv.visitLdcInsn(Long.valueOf(d1));
+        mv.visitLdcInsn(Long.valueOf(d2));
+        mv.visitLdcInsn(Long.valueOf(d3));
+        mv.visitMethodInsn(INVOKESTATIC, READ_LISTENER, "scan", "(Ljava/nio/ByteBuffer;IJJJ)I");
+        mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_BUFFER, "position", "(I)Ljava/nio/Buffer;");
+        mv.visitInsn(POP);
+        mv.visitJumpInsn(GOTO, loop);
+    }
+
+    /**
+     * Push the string from the position in the given field up to the current character.
      */
-    private static void visitRead(final MethodVisitor mv) {
-        mv.visitVarInsn(ALOAD, BYTE_BUFFER);
-        mv.visitMethodInsn(INVOKESTATIC, READ_LISTENER, "read", "(java/nio/ByteBuffer)I");
+    private void string(final String startField) {
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETFIELD, READ_LISTENER, startField, "I");
+        positionMinusOne();
+        mv.visitMethodInsn(INVOKESTATIC, READ_LISTENER, "string", "(Ljava/nio/ByteBuffer;II)Ljava/lang/String;");
+    }
+
+    /**
+     * Push the offsets array and the index of the given offset of the current header.
+     */
+    private void headerOffset(final int which) {
+        mv.visitVarInsn(ALOAD, HEADER_OFFSETS);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "headerCount", "I");
+        mv.visitInsn(ICONST_2);
+        mv.visitInsn(ISHL);
+        pushInt(which);
+        mv.visitInsn(IADD);
+    }
+
+    /**
+     * Set {@code idx} to the offset index of the current header, and count it.
+     */
+    private void nextHeader() {
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETFIELD, READ_LISTENER, "headerCount", "I");
         mv.visitInsn(DUP);
-        mv.visitVarInsn(ISTORE, CH);
+        mv.visitInsn(ICONST_2);
+        mv.visitInsn(ISHL);
+        mv.visitVarInsn(ISTORE, IDX);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitInsn(SWAP);
+        mv.visitFieldInsn(PUTFIELD, READ_LISTENER, "headerCount", "I");
+    }
+
+    private void requestComplete() {
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitVarInsn(ALOAD, BUFFER);
+        mv.visitMethodInsn(INVOKESPECIAL, READ_LISTENER, "requestComplete", "(Ljava/nio/ByteBuffer;)V");
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, STATE);
+        mv.visitJumpInsn(GOTO, done);
     }
 }
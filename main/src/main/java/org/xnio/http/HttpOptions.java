@@ -32,8 +32,48 @@ public final class HttpOptions {
     private HttpOptions() {
     }
 
+    /**
+     * Enable persistent connections on a server.  When enabled (the default), an HTTP/1.1 connection is kept open for
+     * further requests unless either side sends {@code Connection: close}, and an HTTP/1.0 connection is kept open if
+     * the client asks for it with {@code Connection: keep-alive}.
+     */
     public static final Option<Boolean> HTTP_KEEPALIVE = Option.simple(HttpOptions.class, "HTTP_KEEPALIVE", Boolean.class);
 
+    /**
+     * The time, in milliseconds, that a server connection may wait for the next request before it is closed.  Zero
+     * or unset means no limit.
+     */
+    public static final Option<Integer> HTTP_IDLE_TIMEOUT = Option.simple(HttpOptions.class, "HTTP_IDLE_TIMEOUT", Integer.class);
+
+    /**
+     * The time, in milliseconds, allowed to read a request head, from its first byte.  Zero or unset means no limit.
+     */
+    public static final Option<Integer> HTTP_REQUEST_HEAD_TIMEOUT = Option.simple(HttpOptions.class, "HTTP_REQUEST_HEAD_TIMEOUT", Integer.class);
+
+    /**
+     * The time, in milliseconds, that a response may wait for a server connection to become writable before the
+     * connection is closed.  Each time the connection becomes writable, the wait starts over.  Zero or unset means no
+     * limit.
+     */
+    public static final Option<Integer> HTTP_WRITE_TIMEOUT = Option.simple(HttpOptions.class, "HTTP_WRITE_TIMEOUT", Integer.class);
+
+    /**
+     * Recycle the exchanges of a server once they are complete, reusing them for later requests handled by the same IO
+     * thread.  Handlers must not use an exchange once its request has been read and its response written in full.
+     */
+    public static final Option<Boolean> HTTP_EXCHANGE_RECYCLING = Option.simple(HttpOptions.class, "HTTP_EXCHANGE_RECYCLING", Boolean.class);
+
+    /**
+     * Check for use of server exchanges after they are recycled.  Recycled exchanges are never reused, and any later
+     * use of one fails with an exception whose cause shows where the exchange was recycled.  Only meaningful along
+     * with {@link #HTTP_EXCHANGE_RECYCLING}.
+     */
+    public static final Option<Boolean> HTTP_EXCHANGE_RECYCLING_DEBUG = Option.simple(HttpOptions.class, "HTTP_EXCHANGE_RECYCLING_DEBUG", Boolean.class);
+
+    /**
+     * Enable HTTP/1.1 request pipelining on a server connection.  When enabled, requests without a body are read and
+     * dispatched ahead of the completion of earlier responses; the responses are still written in request order.
+     */
     public static final Option<Boolean> HTTP_PIPELINE = Option.simple(HttpOptions.class, "HTTP_PIPELINE", Boolean.class);
 
     /**
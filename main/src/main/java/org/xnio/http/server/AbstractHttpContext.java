@@ -57,7 +57,7 @@ public abstract class AbstractHttpContext implements HttpContext {
     protected void executeNext(final HttpServerExchange exchange) {
         HttpHandler handler = handlerUpdater.get(this);
         if (handler != null) {
-            handler.equals(exchange);
+            handler.handleRequest(exchange);
         }
     }
 }
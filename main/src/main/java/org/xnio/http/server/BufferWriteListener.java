@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.channels.StreamSinkChannel;
+
+/**
+ * A write listener which sends the contents of a buffer as the rest of the response body.  The response is shut down
+ * once the buffer is written, after which the completion task (if any) is run.  The completion task is also run if
+ * the response fails, in which case the connection is closed.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class BufferWriteListener implements ChannelListener<StreamSinkChannel> {
+    private final HttpServerConnection connection;
+    private final ByteBuffer buffer;
+    private final Runnable completionTask;
+
+    BufferWriteListener(final HttpServerConnection connection, final ByteBuffer buffer, final Runnable completionTask) {
+        this.connection = connection;
+        this.buffer = buffer;
+        this.completionTask = completionTask;
+    }
+
+    public void handleEvent(final StreamSinkChannel channel) {
+        final ByteBuffer buffer = this.buffer;
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    channel.resumeWrites();
+                    return;
+                }
+            }
+            channel.shutdownWrites();
+            if (! channel.flush()) {
+                channel.resumeWrites();
+                return;
+            }
+            channel.suspendWrites();
+        } catch (IOException e) {
+            IoUtils.safeClose(connection);
+        }
+        if (completionTask != null) {
+            completionTask.run();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.xnio.Buffers;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+
+/**
+ * A response body channel which encodes the {@code chunked} transfer coding, if the response was started with that
+ * coding; otherwise data is passed through unchanged.  Each write becomes one chunk, and the chunk header is sent
+ * from a small buffer of its own in the same gathering write as the data, so the data is never copied to frame it.
+ * The terminating CRLF of each chunk is sent in front of the next chunk header, or of the last chunk.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class ChunkedStreamSinkChannel implements StreamSinkChannel {
+    private static final ByteBuffer LAST_CHUNK;
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    static {
+        final byte[] bytes = { '\r', '\n', '0', '\r', '\n', '\r', '\n' };
+        final ByteBuffer lastChunk = ByteBuffer.allocateDirect(bytes.length);
+        lastChunk.put(bytes).flip();
+        LAST_CHUNK = lastChunk.asReadOnlyBuffer();
+    }
+
+    private final HttpServerExchange exchange;
+    private final StreamSinkChannel delegate;
+    private final ChannelListener.Setter<ChunkedStreamSinkChannel> writeSetter;
+    private final ChannelListener.SimpleSetter<ChunkedStreamSinkChannel> closeSetter = new ChannelListener.SimpleSetter<ChunkedStreamSinkChannel>();
+    /**
+     * The header of the current chunk, preceded by the terminator of the previous chunk.
+     */
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(20);
+    /**
+     * 1 if the response is chunked, -1 if it is not, or 0 if the response has not yet been started.
+     */
+    private int chunked;
+    private boolean firstChunk = true;
+    private long chunkRemaining;
+    private ByteBuffer lastChunk;
+    private boolean shutdown;
+    private boolean delegateShutdown;
+
+    ChunkedStreamSinkChannel(final HttpServerExchange exchange, final StreamSinkChannel delegate) {
+        this.exchange = exchange;
+        this.delegate = delegate;
+        writeSetter = ChannelListeners.getDelegatingSetter(delegate.getWriteSetter(), this);
+        chunkHeader.limit(0);
+    }
+
+    private boolean isChunked() {
+        int chunked = this.chunked;
+        if (chunked == 0) {
+            final HeaderMap headers = exchange.getResponseHeaders();
+            if (! headers.isLocked()) {
+                // not started yet
+                return false;
+            }
+            final String transferEncoding = headers.getLast(Headers.TRANSFER_ENCODING);
+            this.chunked = chunked = transferEncoding != null && transferEncoding.equalsIgnoreCase(Headers.CHUNKED) ? 1 : -1;
+        }
+        return chunked == 1;
+    }
+
+    public int write(final ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        if (! isChunked()) {
+            return delegate.write(srcs, offset, length);
+        }
+        if (chunkRemaining == 0L) {
+            final long size = Buffers.remaining(srcs, offset, length);
+            if (size == 0L) {
+                return 0L;
+            }
+            startChunk(size);
+        }
+        // limit the data to the current chunk
+        final long chunkRemaining = this.chunkRemaining;
+        int count = 0;
+        long available = 0L;
+        int limitIndex = -1;
+        int savedLimit = 0;
+        while (count < length && available < chunkRemaining) {
+            final ByteBuffer src = srcs[offset + count ++];
+            final int remaining = src.remaining();
+            if (available + remaining > chunkRemaining) {
+                limitIndex = offset + count - 1;
+                savedLimit = src.limit();
+                src.limit(src.position() + (int) (chunkRemaining - available));
+                available = chunkRemaining;
+            } else {
+                available += remaining;
+            }
+        }
+        final ByteBuffer chunkHeader = this.chunkHeader;
+        final long res;
+        try {
+            if (chunkHeader.hasRemaining()) {
+                final ByteBuffer[] all = new ByteBuffer[count + 1];
+                all[0] = chunkHeader;
+                System.arraycopy(srcs, offset, all, 1, count);
+                final int headerRemaining = chunkHeader.remaining();
+                final long written = delegate.write(all);
+                res = Math.max(0L, written - headerRemaining);
+            } else {
+                res = delegate.write(srcs, offset, count);
+            }
+        } finally {
+            if (limitIndex != -1) {
+                srcs[limitIndex].limit(savedLimit);
+            }
+        }
+        this.chunkRemaining = chunkRemaining - res;
+        return res;
+    }
+
+    private void startChunk(final long size) {
+        final ByteBuffer chunkHeader = this.chunkHeader;
+        chunkHeader.clear();
+        if (firstChunk) {
+            firstChunk = false;
+        } else {
+            chunkHeader.put((byte) '\r').put((byte) '\n');
+        }
+        for (int shift = 60 - (Long.numberOfLeadingZeros(size) & ~3); shift >= 0; shift -= 4) {
+            chunkHeader.put(HEX[(int) (size >>> shift) & 0xf]);
+        }
+        chunkHeader.put((byte) '\r').put((byte) '\n');
+        chunkHeader.flip();
+        chunkRemaining = size;
+    }
+
+    public long transferFrom(final FileChannel src, final long position, final long count) throws IOException {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        if (! isChunked()) {
+            return delegate.transferFrom(src, position, count);
+        }
+        if (chunkRemaining == 0L) {
+            final long size = Math.min(count, src.size() - position);
+            if (size <= 0L) {
+                return 0L;
+            }
+            startChunk(size);
+        }
+        final ByteBuffer chunkHeader = this.chunkHeader;
+        while (chunkHeader.hasRemaining()) {
+            if (delegate.write(chunkHeader) == 0) {
+                return 0L;
+            }
+        }
+        final long res = delegate.transferFrom(src, position, Math.min(count, chunkRemaining));
+        chunkRemaining -= res;
+        return res;
+    }
+
+    public long transferFrom(final StreamSourceChannel source, final long count, final ByteBuffer throughBuffer) throws IOException {
+        return IoUtils.transfer(source, count, throughBuffer, this);
+    }
+
+    public boolean flush() throws IOException {
+        if (shutdown && isChunked()) {
+            if (chunkRemaining > 0L) {
+                throw new IOException("Response was shut down in the middle of a chunk");
+            }
+            ByteBuffer lastChunk = this.lastChunk;
+            if (lastChunk == null) {
+                this.lastChunk = lastChunk = LAST_CHUNK.duplicate();
+                if (firstChunk) {
+                    // no chunk to terminate
+                    lastChunk.position(2);
+                }
+            }
+            while (lastChunk.hasRemaining()) {
+                if (delegate.write(lastChunk) == 0) {
+                    return false;
+                }
+            }
+        }
+        if (shutdown && ! delegateShutdown) {
+            delegateShutdown = true;
+            delegate.shutdownWrites();
+        }
+        return delegate.flush();
+    }
+
+    public void shutdownWrites() throws IOException {
+        shutdown = true;
+    }
+
+    public void suspendWrites() {
+        delegate.suspendWrites();
+    }
+
+    public void resumeWrites() {
+        delegate.resumeWrites();
+    }
+
+    public boolean isWriteResumed() {
+        return delegate.isWriteResumed();
+    }
+
+    public void wakeupWrites() {
+        delegate.wakeupWrites();
+    }
+
+    public void awaitWritable() throws IOException {
+        delegate.awaitWritable();
+    }
+
+    public void awaitWritable(final long time, final TimeUnit timeUnit) throws IOException {
+        delegate.awaitWritable(time, timeUnit);
+    }
+
+    public XnioExecutor getWriteThread() {
+        return delegate.getWriteThread();
+    }
+
+    public ChannelListener.Setter<ChunkedStreamSinkChannel> getWriteSetter() {
+        return writeSetter;
+    }
+
+    public ChannelListener.Setter<ChunkedStreamSinkChannel> getCloseSetter() {
+        return closeSetter;
+    }
+
+    public XnioWorker getWorker() {
+        return delegate.getWorker();
+    }
+
+    public boolean isOpen() {
+        return ! shutdown && delegate.isOpen();
+    }
+
+    /**
+     * Close the channel.  If the response is complete, the last chunk is sent first if possible; the underlying
+     * channel is closed in any case.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        try {
+            if (! shutdown && chunkRemaining == 0L) {
+                shutdownWrites();
+                flush();
+            }
+        } finally {
+            try {
+                delegate.close();
+            } finally {
+                ChannelListeners.invokeChannelListener(this, closeSetter.get());
+            }
+        }
+    }
+
+    public boolean supportsOption(final Option<?> option) {
+        return delegate.supportsOption(option);
+    }
+
+    public <T> T getOption(final Option<T> option) throws IOException {
+        return delegate.getOption(option);
+    }
+
+    public <T> T setOption(final Option<T> option, final T value) throws IllegalArgumentException, IOException {
+        return delegate.setOption(option, value);
+    }
+}
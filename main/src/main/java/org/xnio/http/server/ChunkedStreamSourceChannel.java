@@ -0,0 +1,453 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.Pooled;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+/**
+ * A request body channel which decodes the {@code chunked} transfer coding.  Chunk data is read straight into the
+ * caller's buffer whenever no framing bytes are pending, so it is only copied when it arrived in the same read as a
+ * chunk header.  Chunk extensions and trailers are discarded.  Once the last chunk has been read, any bytes read past
+ * the end of the body are pushed back onto the connection and the request is terminated.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class ChunkedStreamSourceChannel implements StreamSourceChannel {
+    private static final int SIZE = 0;
+    private static final int EXTENSION = 1;
+    private static final int SIZE_LF = 2;
+    private static final int DATA = 3;
+    private static final int DATA_CR = 4;
+    private static final int DATA_LF = 5;
+    private static final int TRAILER_START = 6;
+    private static final int TRAILER = 7;
+    private static final int TRAILER_LF = 8;
+    private static final int END_LF = 9;
+    private static final int DONE = 10;
+
+    private final HttpServerExchange exchange;
+    private final StreamSourceChannel delegate;
+    private final ChannelListener.SimpleSetter<ChunkedStreamSourceChannel> readSetter = new ChannelListener.SimpleSetter<ChunkedStreamSourceChannel>();
+    private final ChannelListener.SimpleSetter<ChunkedStreamSourceChannel> closeSetter = new ChannelListener.SimpleSetter<ChunkedStreamSourceChannel>();
+    private final ChannelListener<StreamSourceChannel> delegateReadListener = new ChannelListener<StreamSourceChannel>() {
+        public void handleEvent(final StreamSourceChannel channel) {
+            if (draining) {
+                drain();
+            } else {
+                ChannelListeners.invokeChannelListener(ChunkedStreamSourceChannel.this, readSetter.get());
+            }
+        }
+    };
+    /**
+     * The buffer holding bytes which were read but not yet decoded.
+     */
+    private Pooled<ByteBuffer> pooled;
+    private int state;
+    private boolean sizeDigits;
+    private long chunkRemaining;
+    private boolean resumed;
+    private boolean draining;
+    private boolean closed;
+
+    ChunkedStreamSourceChannel(final HttpServerExchange exchange, final StreamSourceChannel delegate) {
+        this.exchange = exchange;
+        this.delegate = delegate;
+    }
+
+    public int read(final ByteBuffer dst) throws IOException {
+        return closed ? -1 : readBody(dst);
+    }
+
+    private int readBody(final ByteBuffer dst) throws IOException {
+        if (state == DONE) {
+            return -1;
+        }
+        int total = 0;
+        try {
+            for (;;) {
+                final ByteBuffer buffer = pooled == null ? null : pooled.getResource();
+                if (state == DATA) {
+                    if (! dst.hasRemaining()) {
+                        return total;
+                    }
+                    final long chunkRemaining = this.chunkRemaining;
+                    final int res;
+                    if (buffer != null && buffer.hasRemaining()) {
+                        res = (int) Math.min(chunkRemaining, Math.min(buffer.remaining(), dst.remaining()));
+                        final int lim = buffer.limit();
+                        buffer.limit(buffer.position() + res);
+                        dst.put(buffer);
+                        buffer.limit(lim);
+                    } else {
+                        // nothing buffered, so read the data in place
+                        final int lim = dst.limit();
+                        if (dst.remaining() > chunkRemaining) {
+                            dst.limit(dst.position() + (int) chunkRemaining);
+                        }
+                        try {
+                            res = delegate.read(dst);
+                        } finally {
+                            dst.limit(lim);
+                        }
+                        if (res == -1) {
+                            throw new EOFException("Unexpected end of chunked request body");
+                        } else if (res == 0) {
+                            return total;
+                        }
+                    }
+                    total += res;
+                    if ((this.chunkRemaining = chunkRemaining - res) == 0L) {
+                        state = DATA_CR;
+                    }
+                } else if (buffer == null || ! buffer.hasRemaining()) {
+                    if (! fill()) {
+                        return total;
+                    }
+                } else {
+                    decode(buffer);
+                    if (state == DONE) {
+                        finished();
+                        return total == 0 ? -1 : total;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the connection cannot be reused
+            IoUtils.safeClose(exchange.getConnection());
+            final Pooled<ByteBuffer> pooled = this.pooled;
+            if (pooled != null) {
+                this.pooled = null;
+                pooled.free();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read more bytes to decode.
+     *
+     * @return {@code true} if bytes were read, {@code false} if none are available
+     * @throws IOException if an I/O error occurs or the stream ends prematurely
+     */
+    private boolean fill() throws IOException {
+        Pooled<ByteBuffer> pooled = this.pooled;
+        if (pooled == null) {
+            this.pooled = pooled = exchange.getConnection().getBufferPool().allocate();
+        }
+        final ByteBuffer buffer = pooled.getResource();
+        buffer.clear();
+        final int res;
+        try {
+            res = delegate.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+        if (res == -1) {
+            throw new EOFException("Unexpected end of chunked request body");
+        }
+        return res > 0;
+    }
+
+    /**
+     * Decode framing bytes until chunk data is reached, the body ends, or the buffer is empty.
+     *
+     * @param buffer the buffer to decode
+     * @throws IOException if the framing is invalid
+     */
+    private void decode(final ByteBuffer buffer) throws IOException {
+        int state = this.state;
+        long chunkRemaining = this.chunkRemaining;
+        byte b;
+        try {
+            while (buffer.hasRemaining() && state != DATA && state != DONE) {
+                b = buffer.get();
+                switch (state) {
+                    case SIZE: {
+                        final int digit = Character.digit(b, 16);
+                        if (digit != -1) {
+                            if (chunkRemaining > Long.MAX_VALUE >> 4) {
+                                throw new IOException("Chunk size is too large");
+                            }
+                            chunkRemaining = chunkRemaining << 4 | digit;
+                            sizeDigits = true;
+                            break;
+                        } else if (! sizeDigits) {
+                            throw new IOException("Invalid chunk size");
+                        }
+                        switch (b) {
+                            case ';': case ' ': case '\t': state = EXTENSION; break;
+                            case '\r': state = SIZE_LF; break;
+                            default: throw new IOException("Invalid chunk size");
+                        }
+                        break;
+                    }
+                    case EXTENSION: {
+                        if (b == '\r') {
+                            state = SIZE_LF;
+                        }
+                        break;
+                    }
+                    case SIZE_LF: {
+                        if (b != '\n') {
+                            throw new IOException("Invalid chunk header");
+                        }
+                        sizeDigits = false;
+                        state = chunkRemaining == 0L ? TRAILER_START : DATA;
+                        break;
+                    }
+                    case DATA_CR: {
+                        if (b != '\r') {
+                            throw new IOException("Missing chunk terminator");
+                        }
+                        state = DATA_LF;
+                        break;
+                    }
+                    case DATA_LF: {
+                        if (b != '\n') {
+                            throw new IOException("Missing chunk terminator");
+                        }
+                        state = SIZE;
+                        break;
+                    }
+                    case TRAILER_START: {
+                        state = b == '\r' ? END_LF : TRAILER;
+                        break;
+                    }
+                    case TRAILER: {
+                        if (b == '\r') {
+                            state = TRAILER_LF;
+                        }
+                        break;
+                    }
+                    case TRAILER_LF: {
+                        if (b != '\n') {
+                            throw new IOException("Invalid trailer");
+                        }
+                        state = TRAILER_START;
+                        break;
+                    }
+                    case END_LF: {
+                        if (b != '\n') {
+                            throw new IOException("Invalid trailer");
+                        }
+                        state = DONE;
+                        break;
+                    }
+                    default: throw new IllegalStateException();
+                }
+            }
+        } finally {
+            this.state = state;
+            this.chunkRemaining = chunkRemaining;
+        }
+    }
+
+    /**
+     * Complete the request body, handing any bytes read past its end back to the connection.
+     */
+    private void finished() {
+        final Pooled<ByteBuffer> pooled = this.pooled;
+        this.pooled = null;
+        if (pooled != null) {
+            if (pooled.getResource().hasRemaining()) {
+                exchange.getConnection().getPushBackChannel().unget(pooled);
+            } else {
+                pooled.free();
+            }
+        }
+        draining = false;
+        delegate.suspendReads();
+        exchange.terminateRequest();
+    }
+
+    public long read(final ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+        long total = 0L;
+        for (int i = 0; i < length; i ++) {
+            final ByteBuffer dst = dsts[offset + i];
+            if (dst.hasRemaining()) {
+                final int res = read(dst);
+                if (res == -1) {
+                    return total == 0L ? -1L : total;
+                }
+                total += res;
+                if (dst.hasRemaining()) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    public long transferTo(final long position, final long count, final FileChannel target) throws IOException {
+        return target.transferFrom(this, position, count);
+    }
+
+    public long transferTo(final long count, final ByteBuffer throughBuffer, final StreamSinkChannel target) throws IOException {
+        return IoUtils.transfer(this, count, throughBuffer, target);
+    }
+
+    /**
+     * Discard as much of the unread request body as is immediately available.
+     */
+    private void drain() {
+        final Pooled<ByteBuffer> discard = exchange.getConnection().getBufferPool().allocate();
+        try {
+            final ByteBuffer buffer = discard.getResource();
+            int res;
+            do {
+                buffer.clear();
+                res = readBody(buffer);
+            } while (res > 0);
+            if (res == 0 && ! draining) {
+                draining = true;
+                delegate.getReadSetter().set(delegateReadListener);
+                delegate.resumeReads();
+            }
+        } catch (IOException e) {
+            IoUtils.safeClose(exchange.getConnection());
+        } finally {
+            discard.free();
+        }
+    }
+
+    private boolean isReadable() {
+        return state == DONE || closed || pooled != null && pooled.getResource().hasRemaining();
+    }
+
+    public void suspendReads() {
+        resumed = false;
+        // once the body is complete, the connection's channel belongs to the next request
+        if (state != DONE && ! draining) {
+            delegate.suspendReads();
+        }
+    }
+
+    public void resumeReads() {
+        resumed = true;
+        if (isReadable()) {
+            // buffered bytes will not cause the delegate to become readable
+            getReadThread().execute(new Runnable() {
+                public void run() {
+                    if (resumed) {
+                        ChannelListeners.invokeChannelListener(ChunkedStreamSourceChannel.this, readSetter.get());
+                    }
+                }
+            });
+        } else if (! draining) {
+            delegate.getReadSetter().set(delegateReadListener);
+            delegate.resumeReads();
+        }
+    }
+
+    public boolean isReadResumed() {
+        return resumed;
+    }
+
+    public void wakeupReads() {
+        resumeReads();
+    }
+
+    /**
+     * Discard the rest of the request body, reading it through to the last chunk so that the connection may be reused.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void shutdownReads() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        resumed = false;
+        if (state != DONE) {
+            drain();
+        }
+    }
+
+    public void awaitReadable() throws IOException {
+        if (! isReadable()) {
+            delegate.awaitReadable();
+        }
+    }
+
+    public void awaitReadable(final long time, final TimeUnit timeUnit) throws IOException {
+        if (! isReadable()) {
+            delegate.awaitReadable(time, timeUnit);
+        }
+    }
+
+    public XnioExecutor getReadThread() {
+        return delegate.getReadThread();
+    }
+
+    public ChannelListener.Setter<ChunkedStreamSourceChannel> getReadSetter() {
+        return readSetter;
+    }
+
+    public ChannelListener.Setter<ChunkedStreamSourceChannel> getCloseSetter() {
+        return closeSetter;
+    }
+
+    public XnioWorker getWorker() {
+        return delegate.getWorker();
+    }
+
+    public boolean isOpen() {
+        return ! closed;
+    }
+
+    public void close() throws IOException {
+        if (! closed) {
+            shutdownReads();
+            ChannelListeners.invokeChannelListener(this, closeSetter.get());
+        }
+    }
+
+    public boolean supportsOption(final Option<?> option) {
+        return false;
+    }
+
+    public <T> T getOption(final Option<T> option) throws IOException {
+        return null;
+    }
+
+    public <T> T setOption(final Option<T> option, final T value) throws IllegalArgumentException, IOException {
+        return null;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.xnio.Buffers;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.Pool;
+import org.xnio.Pooled;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+/**
+ * A response channel wrapper which gathers small writes into a pooled buffer.  The buffered data is sent when it
+ * reaches a size threshold (together with the write which reached it, in one gathering write), when the channel is
+ * flushed, or, for writes made on the channel's I/O thread, once the current I/O event has been handled.  Writes
+ * which are at least as large as the threshold are not copied.
+ * <p>
+ * The wrapper is opt-in; install it with {@link #install(HttpServerExchange)}.  Writes made from other threads are
+ * only sent on flush, so such callers must flush the channel when they are done writing.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class CoalescingResponseChannel implements StreamSinkChannel {
+    private final StreamSinkChannel delegate;
+    private final Pool<ByteBuffer> bufferPool;
+    private final int threshold;
+    private final ChannelListener.SimpleSetter<CoalescingResponseChannel> writeSetter = new ChannelListener.SimpleSetter<CoalescingResponseChannel>();
+    private final ChannelListener.SimpleSetter<CoalescingResponseChannel> closeSetter = new ChannelListener.SimpleSetter<CoalescingResponseChannel>();
+    private final ChannelListener<StreamSinkChannel> delegateWriteListener = new ChannelListener<StreamSinkChannel>() {
+        public void handleEvent(final StreamSinkChannel channel) {
+            try {
+                if (! flushBuffer()) {
+                    return;
+                }
+            } catch (IOException e) {
+                IoUtils.safeClose(channel);
+                return;
+            }
+            if (resumed) {
+                ChannelListeners.invokeChannelListener(CoalescingResponseChannel.this, writeSetter.get());
+            } else {
+                channel.suspendWrites();
+            }
+        }
+    };
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushScheduled = false;
+            try {
+                if (! flushBuffer()) {
+                    // finish from the write listener
+                    delegate.resumeWrites();
+                }
+            } catch (IOException e) {
+                IoUtils.safeClose(delegate);
+            }
+        }
+    };
+    private Pooled<ByteBuffer> pooled;
+    private boolean resumed;
+    private boolean shutdown;
+    private boolean delegateShutdown;
+    private boolean flushScheduled;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param delegate the channel to write to
+     * @param bufferPool the pool to take the buffer from
+     * @param threshold the amount of buffered data at which it is sent; no larger than the pool's buffer size
+     */
+    public CoalescingResponseChannel(final StreamSinkChannel delegate, final Pool<ByteBuffer> bufferPool, final int threshold) {
+        this.delegate = delegate;
+        this.bufferPool = bufferPool;
+        this.threshold = threshold;
+        delegate.getWriteSetter().set(delegateWriteListener);
+    }
+
+    /**
+     * Wrap the response channel of an exchange, using the connection's buffer pool.  Buffered data is sent once the
+     * pooled buffer is full.
+     *
+     * @param exchange the exchange
+     * @return the installed channel
+     */
+    public static CoalescingResponseChannel install(final HttpServerExchange exchange) {
+        final Pool<ByteBuffer> bufferPool = exchange.getConnection().getBufferPool();
+        final int threshold;
+        final Pooled<ByteBuffer> pooled = bufferPool.allocate();
+        try {
+            threshold = pooled.getResource().capacity();
+        } finally {
+            pooled.free();
+        }
+        final CoalescingResponseChannel channel = new CoalescingResponseChannel(exchange.getResponseChannel(), bufferPool, threshold);
+        exchange.setResponseChannel(channel);
+        return channel;
+    }
+
+    private ByteBuffer getBuffer() {
+        final Pooled<ByteBuffer> pooled = this.pooled;
+        if (pooled != null) {
+            return pooled.getResource();
+        }
+        final Pooled<ByteBuffer> newPooled = this.pooled = bufferPool.allocate();
+        final ByteBuffer buffer = newPooled.getResource();
+        buffer.clear();
+        final XnioExecutor thread = delegate.getWriteThread();
+        if (! flushScheduled && Thread.currentThread() == thread) {
+            // send whatever is buffered once the current event is handled
+            flushScheduled = true;
+            thread.execute(flushTask);
+        }
+        return buffer;
+    }
+
+    private void releaseBuffer() {
+        final Pooled<ByteBuffer> pooled = this.pooled;
+        if (pooled != null) {
+            this.pooled = null;
+            pooled.free();
+        }
+    }
+
+    /**
+     * Send as much of the buffered data as possible.
+     *
+     * @return {@code true} if no buffered data remains
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean flushBuffer() throws IOException {
+        final Pooled<ByteBuffer> pooled = this.pooled;
+        if (pooled == null) {
+            return true;
+        }
+        final ByteBuffer buffer = pooled.getResource();
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                if (delegate.write(buffer) == 0) {
+                    return false;
+                }
+            }
+        } finally {
+            buffer.compact();
+        }
+        releaseBuffer();
+        return true;
+    }
+
+    public int write(final ByteBuffer src) throws IOException {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        final int total = src.remaining();
+        if (pooled == null && total >= threshold) {
+            return delegate.write(src);
+        }
+        final ByteBuffer buffer = getBuffer();
+        if (buffer.position() + total < threshold) {
+            buffer.put(src);
+            return total;
+        }
+        return (int) writeThrough(buffer, new ByteBuffer[] { src }, 0, 1, total);
+    }
+
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        final long total = Buffers.remaining(srcs, offset, length);
+        if (pooled == null && total >= threshold) {
+            return delegate.write(srcs, offset, length);
+        }
+        final ByteBuffer buffer = getBuffer();
+        if (buffer.position() + total < threshold) {
+            for (int i = 0; i < length; i ++) {
+                buffer.put(srcs[offset + i]);
+            }
+            return total;
+        }
+        return writeThrough(buffer, srcs, offset, length, total);
+    }
+
+    /**
+     * Send the buffered data along with the given data, in a single gathering write.  Whatever is left of the given
+     * data is buffered, as far as it fits.
+     *
+     * @return the number of bytes of the given data which were consumed
+     */
+    private long writeThrough(final ByteBuffer buffer, final ByteBuffer[] srcs, final int offset, final int length, final long total) throws IOException {
+        final ByteBuffer[] all = new ByteBuffer[length + 1];
+        all[0] = buffer;
+        System.arraycopy(srcs, offset, all, 1, length);
+        buffer.flip();
+        try {
+            delegate.write(all);
+        } finally {
+            buffer.compact();
+        }
+        if (buffer.position() == 0) {
+            releaseBuffer();
+        } else {
+            for (int i = 0; i < length && buffer.hasRemaining(); i ++) {
+                Buffers.copy(buffer, srcs[offset + i]);
+            }
+        }
+        return total - Buffers.remaining(srcs, offset, length);
+    }
+
+    public long transferFrom(final FileChannel src, final long position, final long count) throws IOException {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        return flushBuffer() ? delegate.transferFrom(src, position, count) : 0L;
+    }
+
+    public long transferFrom(final StreamSourceChannel source, final long count, final ByteBuffer throughBuffer) throws IOException {
+        return IoUtils.transfer(source, count, throughBuffer, this);
+    }
+
+    public boolean flush() throws IOException {
+        if (! flushBuffer()) {
+            return false;
+        }
+        if (shutdown && ! delegateShutdown) {
+            delegateShutdown = true;
+            delegate.shutdownWrites();
+        }
+        return delegate.flush();
+    }
+
+    public void shutdownWrites() throws IOException {
+        shutdown = true;
+    }
+
+    public void suspendWrites() {
+        resumed = false;
+        if (pooled == null) {
+            delegate.suspendWrites();
+        }
+    }
+
+    public void resumeWrites() {
+        resumed = true;
+        delegate.resumeWrites();
+    }
+
+    public boolean isWriteResumed() {
+        return resumed;
+    }
+
+    public void wakeupWrites() {
+        resumed = true;
+        delegate.wakeupWrites();
+    }
+
+    public void awaitWritable() throws IOException {
+        delegate.awaitWritable();
+    }
+
+    public void awaitWritable(final long time, final TimeUnit timeUnit) throws IOException {
+        delegate.awaitWritable(time, timeUnit);
+    }
+
+    public XnioExecutor getWriteThread() {
+        return delegate.getWriteThread();
+    }
+
+    public ChannelListener.Setter<CoalescingResponseChannel> getWriteSetter() {
+        return writeSetter;
+    }
+
+    public ChannelListener.Setter<CoalescingResponseChannel> getCloseSetter() {
+        return closeSetter;
+    }
+
+    public XnioWorker getWorker() {
+        return delegate.getWorker();
+    }
+
+    public boolean isOpen() {
+        return ! shutdown && delegate.isOpen();
+    }
+
+    /**
+     * Close the channel.  Buffered data is sent if possible; the underlying channel is closed in any case.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        shutdown = true;
+        try {
+            flushBuffer();
+        } finally {
+            releaseBuffer();
+            try {
+                delegate.close();
+            } finally {
+                ChannelListeners.invokeChannelListener(this, closeSetter.get());
+            }
+        }
+    }
+
+    public boolean supportsOption(final Option<?> option) {
+        return delegate.supportsOption(option);
+    }
+
+    public <T> T getOption(final Option<T> option) throws IOException {
+        return delegate.getOption(option);
+    }
+
+    public <T> T setOption(final Option<T> option, final T value) throws IllegalArgumentException, IOException {
+        return delegate.setOption(option, value);
+    }
+}
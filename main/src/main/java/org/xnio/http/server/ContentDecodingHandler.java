@@ -0,0 +1,90 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import org.xnio.http.util.Headers;
+
+/**
+ * A handler which decompresses request bodies sent in the {@code gzip} or {@code deflate} content coding.  The
+ * request channel is replaced by one which inflates the body as it is read, using decompressors which are pooled per
+ * I/O thread; the request headers are left as they were received.  A request in any other content coding is
+ * rejected with a {@code 415} response.
+ * <p>
+ * The body may expand to no more than a fixed multiple of its compressed size; reading a body which exceeds that
+ * ratio fails with an {@code IOException}.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class ContentDecodingHandler extends AbstractHttpContext implements HttpHandler, HttpContext {
+    /**
+     * The default maximum ratio of decompressed to compressed bytes.
+     */
+    public static final int DEFAULT_MAX_RATIO = 100;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int maxRatio;
+    private final InflaterPool gzipPool = new InflaterPool(true, BUFFER_SIZE);
+    private final InflaterPool deflatePool = new InflaterPool(false, BUFFER_SIZE);
+
+    /**
+     * Construct a new instance with the default maximum ratio.
+     */
+    public ContentDecodingHandler() {
+        this(DEFAULT_MAX_RATIO);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param maxRatio the maximum ratio of decompressed to compressed bytes
+     */
+    public ContentDecodingHandler(final int maxRatio) {
+        if (maxRatio < 1) {
+            throw new IllegalArgumentException("maxRatio must be at least 1");
+        }
+        this.maxRatio = maxRatio;
+    }
+
+    public void handleRequest(final HttpServerExchange exchange) {
+        final String contentEncoding = exchange.getRequestHeaders().getLast(Headers.CONTENT_ENCODING);
+        if (contentEncoding != null) {
+            final String coding = contentEncoding.trim();
+            final InflaterPool pool;
+            if (coding.equalsIgnoreCase(Headers.GZIP) || coding.equalsIgnoreCase(Headers.X_GZIP)) {
+                pool = gzipPool;
+            } else if (coding.equalsIgnoreCase(Headers.DEFLATE)) {
+                pool = deflatePool;
+            } else if (coding.equalsIgnoreCase(Headers.IDENTITY)) {
+                pool = null;
+            } else {
+                exchange.sendErrorResponse(415);
+                return;
+            }
+            if (pool != null) {
+                exchange.setRequestChannel(new InflatingStreamSourceChannel(exchange.getRequestChannel(), pool, maxRatio));
+            }
+        }
+        executeNext(exchange);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.util.zip.Deflater;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+
+/**
+ * A handler which compresses response bodies in the {@code gzip} or {@code deflate} content coding, as negotiated
+ * by the request's {@code Accept-Encoding} header.  Responses are compressed as they are written, using compressors
+ * which are pooled per I/O thread.  Only responses of an allowed content type are compressed, and responses with a
+ * known length smaller than the minimum size are sent as they are.
+ * <p>
+ * Since the compressed length is not known up front, a compressed response is sent in the {@code chunked} transfer
+ * coding, so this handler must follow a {@link TransferEncodingHandler}; if the response cannot be chunked, its
+ * channel is not wrapped at all and it is sent uncompressed.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class ContentEncodingHandler extends AbstractHttpContext implements HttpHandler, HttpContext {
+    /**
+     * The default minimum size of a response to compress.
+     */
+    public static final int DEFAULT_MINIMUM_SIZE = 1024;
+
+    private static final String[] DEFAULT_CONTENT_TYPES = { "text/*", "application/javascript", "application/json", "application/xml", "image/svg+xml" };
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int minimumSize;
+    private final String[] contentTypes;
+    private final DeflaterPool gzipPool;
+    private final DeflaterPool deflatePool;
+
+    /**
+     * Construct a new instance with the default minimum size, compression level and content types.
+     */
+    public ContentEncodingHandler() {
+        this(DEFAULT_MINIMUM_SIZE, Deflater.DEFAULT_COMPRESSION, DEFAULT_CONTENT_TYPES);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param minimumSize the minimum length of a response to compress, if its length is known
+     * @param level the compression level
+     * @param contentTypes the content types to compress; a type of the form {@code "text/*"} matches all subtypes
+     */
+    public ContentEncodingHandler(final int minimumSize, final int level, final String... contentTypes) {
+        this.minimumSize = minimumSize;
+        this.contentTypes = contentTypes.clone();
+        gzipPool = new DeflaterPool(true, level, BUFFER_SIZE);
+        deflatePool = new DeflaterPool(false, level, BUFFER_SIZE);
+    }
+
+    public void handleRequest(final HttpServerExchange exchange) {
+        final String acceptEncoding = exchange.getRequestHeaders().getLast(Headers.ACCEPT_ENCODING);
+        // without chunking underneath, the response channel is left alone
+        if (acceptEncoding != null && exchange.isChunkedResponseAvailable()) {
+            final DeflaterPool pool;
+            final String coding;
+            if (accepts(acceptEncoding, Headers.GZIP)) {
+                pool = gzipPool;
+                coding = Headers.GZIP;
+            } else if (accepts(acceptEncoding, Headers.DEFLATE)) {
+                pool = deflatePool;
+                coding = Headers.DEFLATE;
+            } else {
+                pool = null;
+                coding = null;
+            }
+            if (pool != null) {
+                final DeflatingStreamSinkChannel channel = new DeflatingStreamSinkChannel(exchange.getResponseChannel());
+                exchange.setResponseChannel(channel);
+                exchange.addResponseStartTask(new Runnable() {
+                    public void run() {
+                        if (isCompressible(exchange)) {
+                            final HeaderMap headers = exchange.getResponseHeaders();
+                            headers.remove(Headers.CONTENT_LENGTH);
+                            headers.put(Headers.CONTENT_ENCODING, coding);
+                            headers.add(Headers.VARY, Headers.ACCEPT_ENCODING);
+                            channel.start(pool);
+                        }
+                    }
+                });
+            }
+        }
+        executeNext(exchange);
+    }
+
+    private boolean isCompressible(final HttpServerExchange exchange) {
+        if (! exchange.isResponseBodyAllowed() || exchange.getResponseCode() == 206) {
+            return false;
+        }
+        final HeaderMap headers = exchange.getResponseHeaders();
+        if (headers.contains(Headers.CONTENT_ENCODING) || headers.contains(Headers.TRANSFER_ENCODING)) {
+            return false;
+        }
+        final String contentLength = headers.getLast(Headers.CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) < minimumSize) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        String contentType = headers.getLast(Headers.CONTENT_TYPE);
+        if (contentType == null) {
+            return false;
+        }
+        final int semi = contentType.indexOf(';');
+        if (semi != -1) {
+            contentType = contentType.substring(0, semi);
+        }
+        contentType = contentType.trim();
+        for (String allowed : contentTypes) {
+            if (allowed.endsWith("/*") ? contentType.regionMatches(true, 0, allowed, 0, allowed.length() - 1) : contentType.equalsIgnoreCase(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine whether an {@code Accept-Encoding} header value accepts a content coding.
+     *
+     * @param acceptEncoding the header value
+     * @param coding the content coding
+     * @return {@code true} if the coding is accepted
+     */
+    static boolean accepts(final String acceptEncoding, final String coding) {
+        boolean accepted = false;
+        for (String item : acceptEncoding.split(",")) {
+            final int semi = item.indexOf(';');
+            final String name = (semi == -1 ? item : item.substring(0, semi)).trim();
+            final boolean exact = name.equalsIgnoreCase(coding);
+            if (exact || name.equals("*")) {
+                accepted = semi == -1 || getQuality(item.substring(semi + 1)) > 0.0f;
+                if (exact) {
+                    // an explicit entry takes precedence over a wildcard
+                    return accepted;
+                }
+            }
+        }
+        return accepted;
+    }
+
+    private static float getQuality(final String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0.0f;
+                }
+            }
+        }
+        return 1.0f;
+    }
+}
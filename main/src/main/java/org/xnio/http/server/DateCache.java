@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.http.util.Headers;
+
+/**
+ * A cache of the current date in HTTP date format, shared by all the connections of an XNIO worker.  The value is
+ * refreshed by a timer once per second, so responses never need to format a date of their own.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class DateCache {
+    private static final Map<XnioWorker, DateCache> CACHES = new WeakHashMap<XnioWorker, DateCache>();
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // weak, so that the cache does not keep its worker in the map
+    private final WeakReference<XnioWorker> worker;
+    private final DateFormat format;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Runnable refreshTask = new Runnable() {
+        public void run() {
+            refresh();
+        }
+    };
+    private volatile Entry entry;
+    private volatile XnioExecutor executor;
+
+    private DateCache(final XnioWorker worker) {
+        this.worker = new WeakReference<XnioWorker>(worker);
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        this.format = format;
+        entry = createEntry(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the date cache of an XNIO worker.
+     *
+     * @param worker the worker
+     * @return the date cache
+     */
+    public static DateCache getInstance(final XnioWorker worker) {
+        synchronized (CACHES) {
+            DateCache cache = CACHES.get(worker);
+            if (cache == null) {
+                CACHES.put(worker, cache = new DateCache(worker));
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Get the current date, formatted for use as the value of a {@code Date} header.
+     *
+     * @return the current date
+     */
+    public String getDate() {
+        return getEntry().value;
+    }
+
+    /**
+     * Get the complete {@code Date} header line for the current date.  The returned buffer is read-only and may be
+     * consumed by the caller.
+     *
+     * @return the encoded header line
+     */
+    ByteBuffer getEncodedHeader() {
+        return getEntry().encoded.duplicate();
+    }
+
+    private Entry getEntry() {
+        final Entry entry = this.entry;
+        if (started.get()) {
+            return entry;
+        }
+        // no timer yet, so check the value ourselves
+        final long now = System.currentTimeMillis();
+        if (now / 1000L == entry.second) {
+            return entry;
+        }
+        synchronized (format) {
+            return this.entry = createEntry(now);
+        }
+    }
+
+    /**
+     * Start refreshing the date once per second on the given executor, if it is not already being refreshed.  The
+     * timer stops when the worker is shut down.
+     *
+     * @param executor the executor to run the timer on
+     */
+    void start(final XnioExecutor executor) {
+        if (started.compareAndSet(false, true)) {
+            this.executor = executor;
+            refresh();
+        }
+    }
+
+    private void refresh() {
+        final XnioWorker worker = this.worker.get();
+        if (worker == null || worker.isShutdown()) {
+            started.set(false);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (format) {
+            entry = createEntry(now);
+        }
+        // wake up just after the next second begins
+        executor.executeAfter(refreshTask, 1000L - now % 1000L, TimeUnit.MILLISECONDS);
+    }
+
+    private Entry createEntry(final long now) {
+        final String value = format.format(new Date(now));
+        final byte[] bytes = (Headers.DATE + ": " + value + "\r\n").getBytes(US_ASCII);
+        final ByteBuffer encoded = ByteBuffer.allocateDirect(bytes.length);
+        encoded.put(bytes).flip();
+        return new Entry(now / 1000L, value, encoded.asReadOnlyBuffer());
+    }
+
+    private static final class Entry {
+        private final long second;
+        private final String value;
+        private final ByteBuffer encoded;
+
+        Entry(final long second, final String value, final ByteBuffer encoded) {
+            this.second = second;
+            this.value = value;
+            this.encoded = encoded;
+        }
+    }
+}
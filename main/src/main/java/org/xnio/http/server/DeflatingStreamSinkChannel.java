@@ -0,0 +1,342 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+/**
+ * A response body channel which compresses data in the {@code gzip} or {@code deflate} content coding as it is
+ * written.  The data is passed through unchanged unless {@link #start(DeflaterPool)} is called when the response is
+ * started.  Written data is fed to the compressor as it arrives, and only a single output buffer of compressed data
+ * is ever held; a write which cannot be compressed because that buffer cannot be sent accepts no more data.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class DeflatingStreamSinkChannel implements StreamSinkChannel {
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final StreamSinkChannel delegate;
+    private final ChannelListener.Setter<DeflatingStreamSinkChannel> writeSetter;
+    private final ChannelListener.SimpleSetter<DeflatingStreamSinkChannel> closeSetter = new ChannelListener.SimpleSetter<DeflatingStreamSinkChannel>();
+    private DeflaterPool pool;
+    /**
+     * The compressor in use, or {@code null} if the data is not compressed or compression is complete.
+     */
+    private DeflaterPool.Entry entry;
+    private boolean trailerWritten;
+    private boolean shutdown;
+    private boolean delegateShutdown;
+    /**
+     * Set if data was written since the compressor was last flushed.
+     */
+    private boolean unflushed;
+
+    DeflatingStreamSinkChannel(final StreamSinkChannel delegate) {
+        this.delegate = delegate;
+        writeSetter = ChannelListeners.getDelegatingSetter(delegate.getWriteSetter(), this);
+    }
+
+    /**
+     * Start compressing the data written to this channel.
+     *
+     * @param pool the pool to take the compressor from
+     */
+    void start(final DeflaterPool pool) {
+        this.pool = pool;
+        final DeflaterPool.Entry entry = this.entry = pool.allocate();
+        final ByteBuffer output = entry.output;
+        output.clear();
+        if (pool.isGzip()) {
+            output.put(GZIP_HEADER);
+        }
+        output.flip();
+    }
+
+    private void release() {
+        final DeflaterPool.Entry entry = this.entry;
+        if (entry != null) {
+            this.entry = null;
+            pool.free(entry);
+        }
+    }
+
+    /**
+     * Write out the pending compressed data.
+     *
+     * @return {@code true} if all the compressed data was written
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean drain() throws IOException {
+        final ByteBuffer output = entry.output;
+        while (output.hasRemaining()) {
+            if (delegate.write(output) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compress and write out the input which the compressor holds.
+     *
+     * @return {@code true} if all of the input was consumed
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean deflate() throws IOException {
+        final Deflater deflater = entry.deflater;
+        while (! deflater.needsInput()) {
+            fill(deflater);
+            if (! drain()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fill(final Deflater deflater) {
+        final ByteBuffer output = entry.output;
+        output.clear();
+        output.limit(deflater.deflate(output.array(), output.arrayOffset(), output.capacity()));
+    }
+
+    public int write(final ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        final DeflaterPool.Entry entry = this.entry;
+        if (entry == null) {
+            return delegate.write(srcs, offset, length);
+        }
+        if (! drain() || ! deflate()) {
+            return 0L;
+        }
+        final Deflater deflater = entry.deflater;
+        final byte[] input = entry.input;
+        final boolean gzip = pool.isGzip();
+        long total = 0L;
+        for (int i = 0; i < length; i ++) {
+            final ByteBuffer src = srcs[offset + i];
+            while (src.hasRemaining()) {
+                if (! deflater.needsInput() && ! deflate()) {
+                    return total;
+                }
+                final int cnt = Math.min(src.remaining(), input.length);
+                src.get(input, 0, cnt);
+                if (gzip) {
+                    entry.crc.update(input, 0, cnt);
+                }
+                deflater.setInput(input, 0, cnt);
+                unflushed = true;
+                total += cnt;
+            }
+        }
+        deflate();
+        return total;
+    }
+
+    public long transferFrom(final FileChannel src, final long position, final long count) throws IOException {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        return entry == null ? delegate.transferFrom(src, position, count) : src.transferTo(position, count, this);
+    }
+
+    public long transferFrom(final StreamSourceChannel source, final long count, final ByteBuffer throughBuffer) throws IOException {
+        return IoUtils.transfer(source, count, throughBuffer, this);
+    }
+
+    /**
+     * Flush the channel.  Before the channel is shut down, the compressor is flushed so that all the data written so
+     * far can be decompressed by the peer; once it is shut down, the compressor is finished and returned to its pool.
+     *
+     * @return {@code true} if the channel was flushed
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean flush() throws IOException {
+        final DeflaterPool.Entry entry = this.entry;
+        if (entry != null) {
+            if (! drain() || ! deflate()) {
+                return false;
+            }
+            if (! shutdown) {
+                // push out everything written so far, so that the peer can decompress it
+                if (unflushed && ! syncFlush(entry.deflater)) {
+                    return false;
+                }
+                return delegate.flush();
+            }
+            final Deflater deflater = entry.deflater;
+            deflater.finish();
+            while (! deflater.finished()) {
+                fill(deflater);
+                if (! drain()) {
+                    return false;
+                }
+            }
+            if (pool.isGzip() && ! trailerWritten) {
+                trailerWritten = true;
+                final ByteBuffer output = entry.output;
+                output.clear();
+                putIntLE(output, (int) entry.crc.getValue());
+                putIntLE(output, (int) deflater.getBytesRead());
+                output.flip();
+                if (! drain()) {
+                    return false;
+                }
+            }
+            release();
+        }
+        if (shutdown && ! delegateShutdown) {
+            delegateShutdown = true;
+            delegate.shutdownWrites();
+        }
+        return delegate.flush();
+    }
+
+    /**
+     * Write out all the input given to the compressor so far, ending on a byte boundary without finishing the stream.
+     *
+     * @param deflater the compressor
+     * @return {@code true} if all the compressed data was written
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean syncFlush(final Deflater deflater) throws IOException {
+        final ByteBuffer output = entry.output;
+        do {
+            output.clear();
+            output.limit(deflater.deflate(output.array(), output.arrayOffset(), output.capacity(), Deflater.SYNC_FLUSH));
+            if (! drain()) {
+                return false;
+            }
+        } while (output.limit() == output.capacity());
+        unflushed = false;
+        return true;
+    }
+
+    private static void putIntLE(final ByteBuffer buffer, final int value) {
+        buffer.put((byte) value).put((byte) (value >> 8)).put((byte) (value >> 16)).put((byte) (value >> 24));
+    }
+
+    public void shutdownWrites() throws IOException {
+        shutdown = true;
+    }
+
+    public void suspendWrites() {
+        delegate.suspendWrites();
+    }
+
+    public void resumeWrites() {
+        delegate.resumeWrites();
+    }
+
+    public boolean isWriteResumed() {
+        return delegate.isWriteResumed();
+    }
+
+    public void wakeupWrites() {
+        delegate.wakeupWrites();
+    }
+
+    public void awaitWritable() throws IOException {
+        delegate.awaitWritable();
+    }
+
+    public void awaitWritable(final long time, final TimeUnit timeUnit) throws IOException {
+        delegate.awaitWritable(time, timeUnit);
+    }
+
+    public XnioExecutor getWriteThread() {
+        return delegate.getWriteThread();
+    }
+
+    public ChannelListener.Setter<DeflatingStreamSinkChannel> getWriteSetter() {
+        return writeSetter;
+    }
+
+    public ChannelListener.Setter<DeflatingStreamSinkChannel> getCloseSetter() {
+        return closeSetter;
+    }
+
+    public XnioWorker getWorker() {
+        return delegate.getWorker();
+    }
+
+    public boolean isOpen() {
+        return ! shutdown && delegate.isOpen();
+    }
+
+    /**
+     * Close the channel.  The compressed data is completed first if possible; the compressor is returned to its pool
+     * and the underlying channel is closed in any case.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        try {
+            if (! shutdown) {
+                shutdownWrites();
+                flush();
+            }
+        } finally {
+            release();
+            try {
+                delegate.close();
+            } finally {
+                ChannelListeners.invokeChannelListener(this, closeSetter.get());
+            }
+        }
+    }
+
+    public boolean supportsOption(final Option<?> option) {
+        return delegate.supportsOption(option);
+    }
+
+    public <T> T getOption(final Option<T> option) throws IOException {
+        return delegate.getOption(option);
+    }
+
+    public <T> T setOption(final Option<T> option, final T value) throws IllegalArgumentException, IOException {
+        return delegate.setOption(option, value);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.xnio.XnioExecutor;
+
+/**
+ * A pool of recycled exchanges, shared by the connections of one IO thread.  The most recently recycled exchange is
+ * reused first, while it is still likely to be in the cache.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class ExchangePool {
+    private static final Map<XnioExecutor, ExchangePool> POOLS = new WeakHashMap<XnioExecutor, ExchangePool>();
+
+    /**
+     * The maximum number of idle exchanges kept for reuse.
+     */
+    private static final int MAX_SIZE = 256;
+
+    private final ArrayDeque<HttpServerExchange> exchanges = new ArrayDeque<HttpServerExchange>();
+
+    private ExchangePool() {
+    }
+
+    /**
+     * Get the exchange pool of an IO thread.
+     *
+     * @param executor the IO thread's executor
+     * @return the exchange pool
+     */
+    static ExchangePool getInstance(final XnioExecutor executor) {
+        synchronized (POOLS) {
+            ExchangePool pool = POOLS.get(executor);
+            if (pool == null) {
+                POOLS.put(executor, pool = new ExchangePool());
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Take an exchange from the pool, or create a new one if the pool is empty.
+     *
+     * @return the exchange, which must be {@linkplain HttpServerExchange#init initialized} before use
+     */
+    HttpServerExchange allocate() {
+        final HttpServerExchange exchange;
+        synchronized (this) {
+            exchange = exchanges.pollLast();
+        }
+        return exchange == null ? new HttpServerExchange() : exchange;
+    }
+
+    /**
+     * Return a recycled exchange to the pool.  The exchange is dropped if the pool is full.
+     *
+     * @param exchange the exchange
+     */
+    synchronized void free(final HttpServerExchange exchange) {
+        if (exchanges.size() < MAX_SIZE) {
+            exchanges.addLast(exchange);
+        }
+    }
+}
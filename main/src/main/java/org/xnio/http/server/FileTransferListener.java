@@ -0,0 +1,130 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.Pooled;
+import org.xnio.channels.StreamSinkChannel;
+
+/**
+ * A write listener which sends a region of a file as the response body.  Without a buffer, the file is transferred
+ * directly by {@link StreamSinkChannel#transferFrom(FileChannel, long, long)}, which lets the kernel copy it to a
+ * plain socket; with one, the file is copied through that buffer (as is needed when the connection is encrypted).
+ * The response is shut down once the file is written, and the file is closed.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class FileTransferListener implements ChannelListener<StreamSinkChannel> {
+    private final HttpServerConnection connection;
+    private final FileChannel file;
+    private final Pooled<ByteBuffer> pooled;
+    private long position;
+    private long count;
+
+    FileTransferListener(final HttpServerConnection connection, final FileChannel file, final long position, final long count, final Pooled<ByteBuffer> pooled) {
+        this.connection = connection;
+        this.file = file;
+        this.position = position;
+        this.count = count;
+        this.pooled = pooled;
+        if (pooled != null) {
+            // start out with nothing buffered
+            pooled.getResource().limit(0);
+        }
+    }
+
+    public void handleEvent(final StreamSinkChannel channel) {
+        try {
+            if (transfer(channel)) {
+                channel.shutdownWrites();
+                if (channel.flush()) {
+                    channel.suspendWrites();
+                    complete();
+                    return;
+                }
+            }
+            channel.resumeWrites();
+        } catch (IOException e) {
+            IoUtils.safeClose(connection);
+            complete();
+        }
+    }
+
+    /**
+     * Write as much of the file as possible.
+     *
+     * @param channel the response channel
+     * @return {@code true} if the file was written in full
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean transfer(final StreamSinkChannel channel) throws IOException {
+        final Pooled<ByteBuffer> pooled = this.pooled;
+        if (pooled == null) {
+            long res;
+            while (count > 0L) {
+                res = channel.transferFrom(file, position, count);
+                if (res == 0L) {
+                    if (position >= file.size()) {
+                        throw new EOFException("File was truncated");
+                    }
+                    return false;
+                }
+                position += res;
+                count -= res;
+            }
+            return true;
+        }
+        final ByteBuffer buffer = pooled.getResource();
+        while (buffer.hasRemaining() || count > 0L) {
+            if (! buffer.hasRemaining()) {
+                buffer.clear();
+                if (count < buffer.remaining()) {
+                    buffer.limit((int) count);
+                }
+                final int res = file.read(buffer, position);
+                if (res == -1) {
+                    throw new EOFException("File was truncated");
+                }
+                buffer.flip();
+                position += res;
+                count -= res;
+            }
+            if (channel.write(buffer) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void complete() {
+        if (pooled != null) {
+            pooled.free();
+        }
+        IoUtils.safeClose(file);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.xnio.FutureResult;
+import org.xnio.IoUtils;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+
+/**
+ * The fields of a form submission, as collected by {@link FormParser#parse(HttpServerExchange, File, long)}.  Field
+ * values are held in memory, up to a maximum size each and in total; uploaded files are written to temporary files as
+ * they arrive, up to a maximum size each, and are deleted when the form data is closed.  The number of fields is
+ * limited as well.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class FormData implements FormDataHandler, Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FutureResult<FormData> result;
+    private final File directory;
+    private final long maxFieldSize;
+    private final int maxFields;
+    private final long maxMemorySize;
+    private final long maxFileSize;
+    private final Map<String, List<Field>> fields = new LinkedHashMap<String, List<Field>>();
+    private String name;
+    private String fileName;
+    private HeaderMap headers;
+    private ByteArrayOutputStream value;
+    private File file;
+    private FileChannel fileChannel;
+    private int fieldCount;
+    /**
+     * The total size of the field values held in memory, including the current one.
+     */
+    private long memorySize;
+    private long fileSize;
+
+    FormData(final FutureResult<FormData> result, final File directory, final long maxFieldSize, final int maxFields, final long maxMemorySize, final long maxFileSize) {
+        this.result = result;
+        this.directory = directory;
+        this.maxFieldSize = maxFieldSize;
+        this.maxFields = maxFields;
+        this.maxMemorySize = maxMemorySize;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Get the names of the fields, in the order in which they first appeared.
+     *
+     * @return the field names
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * Get all the fields with a name.
+     *
+     * @param name the field name
+     * @return the fields, which may be empty
+     */
+    public List<Field> get(final String name) {
+        final List<Field> list = fields.get(name);
+        return list == null ? Collections.<Field>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Get the first field with a name.
+     *
+     * @param name the field name
+     * @return the field, or {@code null} if there is none
+     */
+    public Field getFirst(final String name) {
+        final List<Field> list = fields.get(name);
+        return list == null ? null : list.get(0);
+    }
+
+    public void startPart(final String name, final String fileName, final HeaderMap headers) throws IOException {
+        if (++ fieldCount > maxFields) {
+            throw new IOException("Form has more than " + maxFields + " fields");
+        }
+        this.name = name;
+        this.fileName = fileName;
+        this.headers = headers;
+        if (fileName != null) {
+            final File file = this.file = File.createTempFile("upload", ".part", directory);
+            fileChannel = new FileOutputStream(file).getChannel();
+            fileSize = 0L;
+        } else {
+            value = new ByteArrayOutputStream();
+        }
+    }
+
+    public void partData(final ByteBuffer data) throws IOException {
+        final FileChannel fileChannel = this.fileChannel;
+        if (fileChannel != null) {
+            if ((fileSize += data.remaining()) > maxFileSize) {
+                throw new IOException("Uploaded file \"" + fileName + "\" exceeds the maximum size of " + maxFileSize + " bytes");
+            }
+            while (data.hasRemaining()) {
+                fileChannel.write(data);
+            }
+            return;
+        }
+        final int remaining = data.remaining();
+        if (value.size() + (long) remaining > maxFieldSize) {
+            throw new IOException("Form field \"" + name + "\" exceeds the maximum size of " + maxFieldSize + " bytes");
+        }
+        if ((memorySize += remaining) > maxMemorySize) {
+            throw new IOException("Form fields exceed the maximum total size of " + maxMemorySize + " bytes");
+        }
+        if (data.hasArray()) {
+            value.write(data.array(), data.arrayOffset() + data.position(), remaining);
+            data.position(data.limit());
+        } else {
+            final byte[] bytes = new byte[remaining];
+            data.get(bytes);
+            value.write(bytes);
+        }
+    }
+
+    public void endPart() throws IOException {
+        final Field field;
+        if (fileChannel != null) {
+            final FileChannel fileChannel = this.fileChannel;
+            this.fileChannel = null;
+            fileChannel.close();
+            field = new Field(name, null, fileName, file, headers);
+            file = null;
+        } else {
+            field = new Field(name, new String(value.toByteArray(), getCharset(headers)), null, null, headers);
+            value = null;
+        }
+        List<Field> list = fields.get(name);
+        if (list == null) {
+            fields.put(name, list = new ArrayList<Field>(1));
+        }
+        list.add(field);
+    }
+
+    private static Charset getCharset(final HeaderMap headers) {
+        final String contentType = headers == null ? null : headers.getFirst(Headers.CONTENT_TYPE);
+        final String charset = contentType == null ? null : FormParser.getParameter(contentType, "charset");
+        if (charset != null) {
+            try {
+                return Charset.forName(charset);
+            } catch (IllegalArgumentException e) {
+                // unknown or invalid charset
+            }
+        }
+        return UTF_8;
+    }
+
+    public void complete() {
+        result.setResult(this);
+    }
+
+    public void failed(final IOException exception) {
+        IoUtils.safeClose(fileChannel);
+        if (file != null) {
+            file.delete();
+        }
+        close();
+        result.setException(exception);
+    }
+
+    /**
+     * Delete the uploaded files.
+     */
+    public void close() {
+        for (List<Field> list : fields.values()) {
+            for (Field field : list) {
+                if (field.file != null) {
+                    field.file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * A form field.
+     */
+    public static final class Field {
+        private final String name;
+        private final String value;
+        private final String fileName;
+        private final File file;
+        private final HeaderMap headers;
+
+        Field(final String name, final String value, final String fileName, final File file, final HeaderMap headers) {
+            this.name = name;
+            this.value = value;
+            this.fileName = fileName;
+            this.file = file;
+            this.headers = headers;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the value of the field.
+         *
+         * @return the value, or {@code null} if the field is an uploaded file
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * Determine whether the field is an uploaded file.
+         *
+         * @return {@code true} if the field is a file
+         */
+        public boolean isFile() {
+            return file != null;
+        }
+
+        /**
+         * Get the file name given by the client for an uploaded file.
+         *
+         * @return the file name, or {@code null} if the field is not a file
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Get the temporary file holding an uploaded file.
+         *
+         * @return the file, or {@code null} if the field is not a file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Get the part headers of a multipart field.
+         *
+         * @return the headers, or {@code null} if the form was URL-encoded
+         */
+        public HeaderMap getHeaders() {
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.xnio.http.util.HeaderMap;
+
+/**
+ * A receiver of the parts of a form submission, as they are decoded by a {@link FormParser}.  Part data is passed as
+ * slices of the parser's read buffers, which are only valid for the duration of the call; a handler which needs to
+ * keep the data must copy it.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public interface FormDataHandler {
+
+    /**
+     * Begin a part.
+     *
+     * @param name the part's field name
+     * @param fileName the file name of an uploaded file, or {@code null} if the part is not a file
+     * @param headers the part headers, or {@code null} if the form is URL-encoded
+     * @throws IOException to abort parsing
+     */
+    void startPart(String name, String fileName, HeaderMap headers) throws IOException;
+
+    /**
+     * Receive some of the data of the current part.  URL-encoded values are already decoded.
+     *
+     * @param data the data
+     * @throws IOException to abort parsing
+     */
+    void partData(ByteBuffer data) throws IOException;
+
+    /**
+     * End the current part.
+     *
+     * @throws IOException to abort parsing
+     */
+    void endPart() throws IOException;
+
+    /**
+     * Indicate that the whole form was parsed.
+     */
+    void complete();
+
+    /**
+     * Indicate that parsing failed, either because the body could not be read or decoded or because this handler
+     * aborted it.
+     *
+     * @param exception the cause of the failure
+     */
+    void failed(IOException exception);
+}
@@ -0,0 +1,50 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental decoder of a form body.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+interface FormDecoder {
+
+    /**
+     * Decode all the bytes in a buffer.  The buffer may be modified, and nothing in it is referenced once this method
+     * returns.
+     *
+     * @param buffer the buffer
+     * @throws IOException if the body is invalid, or the handler aborted decoding
+     */
+    void decode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Indicate the end of the body.
+     *
+     * @throws IOException if the body is incomplete, or the handler aborted decoding
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,221 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.xnio.ChannelListener;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+import org.xnio.Pooled;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.http.util.Headers;
+
+/**
+ * A parser for form submissions in the {@code multipart/form-data} and {@code application/x-www-form-urlencoded}
+ * types.  The request body is decoded as it is read, one pooled buffer at a time, so no more than one buffer of it is
+ * held in memory however large it is.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class FormParser {
+    public static final String MULTIPART_FORM_DATA = "multipart/form-data";
+    public static final String APPLICATION_X_WWW_FORM_URLENCODED = "application/x-www-form-urlencoded";
+
+    /**
+     * The default maximum number of fields in a form.
+     */
+    public static final int DEFAULT_MAX_FIELDS = 1000;
+    /**
+     * The default maximum total size of the field values of a {@link FormData} which are held in memory.
+     */
+    public static final long DEFAULT_MAX_MEMORY_SIZE = 4L << 20;
+
+    private FormParser() {
+    }
+
+    /**
+     * Parse the request body of an exchange, passing its parts to a handler as they are decoded.  The request
+     * channel's read listener is replaced until the body is complete.  If the request has no supported content type,
+     * the handler fails at once.  A URL-encoded form may have at most {@link #DEFAULT_MAX_FIELDS} fields.
+     *
+     * @param exchange the exchange
+     * @param handler the handler
+     */
+    public static void parse(final HttpServerExchange exchange, final FormDataHandler handler) {
+        parse(exchange, handler, DEFAULT_MAX_FIELDS);
+    }
+
+    private static void parse(final HttpServerExchange exchange, final FormDataHandler handler, final int maxFields) {
+        final FormDecoder decoder;
+        try {
+            decoder = createDecoder(exchange.getRequestHeaders().getLast(Headers.CONTENT_TYPE), handler, maxFields);
+        } catch (IOException e) {
+            handler.failed(e);
+            return;
+        }
+        final StreamSourceChannel channel = exchange.getRequestChannel();
+        final Reader reader = new Reader(exchange, decoder, handler);
+        channel.getReadSetter().set(reader);
+        reader.handleEvent(channel);
+    }
+
+    /**
+     * Parse the request body of an exchange into a {@link FormData}, with the default limits on the number of fields
+     * and the memory they take up, and no limit on the size of uploaded files.  Uploaded files are written to
+     * temporary files as they are received.
+     *
+     * @param exchange the exchange
+     * @param directory the directory for uploaded files, or {@code null} for the default temporary directory
+     * @param maxFieldSize the maximum size of a field value which is not a file
+     * @return the future form data
+     */
+    public static IoFuture<FormData> parse(final HttpServerExchange exchange, final File directory, final long maxFieldSize) {
+        return parse(exchange, directory, maxFieldSize, DEFAULT_MAX_FIELDS, DEFAULT_MAX_MEMORY_SIZE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Parse the request body of an exchange into a {@link FormData}.  Uploaded files are written to temporary files
+     * as they are received.  Parsing fails as soon as any of the limits is exceeded.
+     *
+     * @param exchange the exchange
+     * @param directory the directory for uploaded files, or {@code null} for the default temporary directory
+     * @param maxFieldSize the maximum size of a field value which is not a file
+     * @param maxFields the maximum number of fields, including files
+     * @param maxMemorySize the maximum total size of the field values which are not files
+     * @param maxFileSize the maximum size of an uploaded file
+     * @return the future form data
+     */
+    public static IoFuture<FormData> parse(final HttpServerExchange exchange, final File directory, final long maxFieldSize, final int maxFields, final long maxMemorySize, final long maxFileSize) {
+        final FutureResult<FormData> result = new FutureResult<FormData>();
+        parse(exchange, new FormData(result, directory, maxFieldSize, maxFields, maxMemorySize, maxFileSize), maxFields);
+        return result.getIoFuture();
+    }
+
+    private static FormDecoder createDecoder(final String contentType, final FormDataHandler handler, final int maxFields) throws IOException {
+        if (contentType != null) {
+            final int semi = contentType.indexOf(';');
+            final String type = (semi == -1 ? contentType : contentType.substring(0, semi)).trim();
+            if (type.equalsIgnoreCase(APPLICATION_X_WWW_FORM_URLENCODED)) {
+                return new UrlEncodedFormDecoder(handler, maxFields);
+            } else if (type.equalsIgnoreCase(MULTIPART_FORM_DATA)) {
+                final String boundary = getParameter(contentType, "boundary");
+                if (boundary == null || boundary.length() == 0 || boundary.length() > 70) {
+                    throw new IOException("Invalid multipart boundary");
+                }
+                return new MultipartFormDecoder(boundary, handler);
+            }
+        }
+        throw new IOException("Unsupported form content type: " + contentType);
+    }
+
+    /**
+     * Get a parameter of a header value of the form {@code value; name=param; name="quoted param"}.
+     *
+     * @param value the header value
+     * @param name the parameter name
+     * @return the parameter, or {@code null} if it is not present
+     */
+    static String getParameter(final String value, final String name) {
+        final int length = value.length();
+        int pos = value.indexOf(';');
+        while (pos != -1 && pos < length) {
+            pos ++;
+            while (pos < length && value.charAt(pos) == ' ') {
+                pos ++;
+            }
+            final int eq = value.indexOf('=', pos);
+            if (eq == -1) {
+                return null;
+            }
+            final boolean match = value.substring(pos, eq).trim().equalsIgnoreCase(name);
+            pos = eq + 1;
+            while (pos < length && value.charAt(pos) == ' ') {
+                pos ++;
+            }
+            final String param;
+            if (pos < length && value.charAt(pos) == '"') {
+                final StringBuilder b = new StringBuilder();
+                pos ++;
+                char c;
+                while (pos < length && (c = value.charAt(pos ++)) != '"') {
+                    if (c == '\\' && pos < length) {
+                        c = value.charAt(pos ++);
+                    }
+                    b.append(c);
+                }
+                param = b.toString();
+                pos = value.indexOf(';', pos);
+            } else {
+                final int end = value.indexOf(';', pos);
+                param = (end == -1 ? value.substring(pos) : value.substring(pos, end)).trim();
+                pos = end;
+            }
+            if (match) {
+                return param;
+            }
+        }
+        return null;
+    }
+
+    private static final class Reader implements ChannelListener<StreamSourceChannel> {
+        private final HttpServerExchange exchange;
+        private final FormDecoder decoder;
+        private final FormDataHandler handler;
+
+        Reader(final HttpServerExchange exchange, final FormDecoder decoder, final FormDataHandler handler) {
+            this.exchange = exchange;
+            this.decoder = decoder;
+            this.handler = handler;
+        }
+
+        public void handleEvent(final StreamSourceChannel channel) {
+            // the decoder holds nothing from the buffer between reads
+            final Pooled<ByteBuffer> pooled = exchange.getConnection().getBufferPool().allocate();
+            try {
+                final ByteBuffer buffer = pooled.getResource();
+                for (;;) {
+                    buffer.clear();
+                    final int res = channel.read(buffer);
+                    if (res == -1) {
+                        channel.suspendReads();
+                        decoder.finish();
+                        handler.complete();
+                        return;
+                    } else if (res == 0) {
+                        channel.resumeReads();
+                        return;
+                    }
+                    buffer.flip();
+                    decoder.decode(buffer);
+                }
+            } catch (IOException e) {
+                channel.suspendReads();
+                handler.failed(e);
+            } finally {
+                pooled.free();
+            }
+        }
+    }
+}
@@ -27,13 +27,14 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import org.xnio.ChannelListener;
 import org.xnio.IoUtils;
+import org.xnio.OptionMap;
 import org.xnio.Pool;
 import org.xnio.channels.AcceptingChannel;
 import org.xnio.channels.ConnectedChannel;
 import org.xnio.channels.ConnectedStreamChannel;
-import org.xnio.channels.PushBackStreamChannel;
 import org.xnio.channels.StreamSinkChannel;
 import org.xnio.channels.StreamSourceChannel;
+import org.xnio.http.HttpOptions;
 
 /**
  * An HTTP server socket binding context.
@@ -44,6 +45,15 @@ public final class HostHttpContext extends AbstractHttpContext {
     private final Pool<ByteBuffer> bufferPool;
     private final SocketAddress bindAddress;
     private final AcceptingChannel<? extends ConnectedStreamChannel> channel;
+    private final boolean pipelining;
+    private final boolean keepAlive;
+    private final int idleTimeout;
+    private final int requestHeadTimeout;
+    private final int writeTimeout;
+    private final boolean recycling;
+    private final boolean recyclingDebug;
+    private final boolean webSocketEnabled;
+    private final boolean secure;
     private final ChannelListener<AcceptingChannel<? extends ConnectedStreamChannel>> acceptListener = new ChannelListener<AcceptingChannel<? extends ConnectedStreamChannel>>() {
         public void handleEvent(final AcceptingChannel<? extends ConnectedStreamChannel> channel) {
             for (;;) {
@@ -53,12 +63,8 @@ public final class HostHttpContext extends AbstractHttpContext {
                     if (streamChannel == null) {
                         return;
                     }
-                    final PushBackStreamChannel pushBackStreamChannel = new PushBackStreamChannel(streamChannel);
-                    final HttpServerConnection connection = new HttpServerConnection(streamChannel);
-                    final HttpReadListener readListener = new HttpReadListener(connection, bufferPool);
-                    pushBackStreamChannel.getReadSetter().set(readListener);
-                    pushBackStreamChannel.resumeReads();
-                    readListener.handleEvent(pushBackStreamChannel);
+                    final HttpServerConnection connection = new HttpServerConnection(streamChannel, HostHttpContext.this, bufferPool, pipelining);
+                    connection.startRequests();
                 } catch (IOException ignored) {
                     return;
                 }
@@ -66,10 +72,19 @@ public final class HostHttpContext extends AbstractHttpContext {
         }
     };
 
-    HostHttpContext(final SocketAddress bindAddress, final AcceptingChannel<? extends ConnectedStreamChannel> channel, final Pool<ByteBuffer> bufferPool) {
+    HostHttpContext(final SocketAddress bindAddress, final AcceptingChannel<? extends ConnectedStreamChannel> channel, final Pool<ByteBuffer> bufferPool, final OptionMap optionMap, final boolean secure) {
         this.bindAddress = bindAddress;
         this.channel = channel;
         this.bufferPool = bufferPool;
+        this.secure = secure;
+        pipelining = optionMap.get(HttpOptions.HTTP_PIPELINE, false);
+        keepAlive = optionMap.get(HttpOptions.HTTP_KEEPALIVE, true);
+        idleTimeout = optionMap.get(HttpOptions.HTTP_IDLE_TIMEOUT, 0);
+        requestHeadTimeout = optionMap.get(HttpOptions.HTTP_REQUEST_HEAD_TIMEOUT, 0);
+        writeTimeout = optionMap.get(HttpOptions.HTTP_WRITE_TIMEOUT, 0);
+        recycling = optionMap.get(HttpOptions.HTTP_EXCHANGE_RECYCLING, false);
+        recyclingDebug = optionMap.get(HttpOptions.HTTP_EXCHANGE_RECYCLING_DEBUG, false);
+        webSocketEnabled = optionMap.get(HttpOptions.WEB_SOCKET_ENABLED, false);
     }
 
     public final SocketAddress getBindAddress() {
@@ -100,6 +115,48 @@ public final class HostHttpContext extends AbstractHttpContext {
         return null;
     }
 
+    /**
+     * Determine whether connections to this host are encrypted.
+     *
+     * @return {@code true} if this host was bound with SSL
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * Determine whether connections to this host may be kept open for further requests.
+     *
+     * @return {@code true} if persistent connections are enabled
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    int getRequestHeadTimeout() {
+        return requestHeadTimeout;
+    }
+
+    int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    boolean isRecycling() {
+        return recycling;
+    }
+
+    boolean isRecyclingDebug() {
+        return recyclingDebug;
+    }
+
+    boolean isWebSocketEnabled() {
+        return webSocketEnabled;
+    }
+
     public void close() {
         IoUtils.safeClose(channel);
     }
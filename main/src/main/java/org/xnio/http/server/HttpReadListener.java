@@ -24,13 +24,19 @@ package org.xnio.http.server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import org.xnio.ChannelListener;
 import org.xnio.IoUtils;
 import org.xnio.Pool;
 import org.xnio.Pooled;
 import org.xnio.channels.PushBackStreamChannel;
+import org.xnio.http.Http;
 import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
 import org.xnio.http.util.Methods;
+import org.xnio.http.util.Protocols;
 
 /**
  * Listener which reads requests and headers off of an HTTP stream.
@@ -38,14 +44,55 @@ import org.xnio.http.util.Methods;
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
+    /**
+     * The maximum number of idle header maps kept for reuse.
+     */
+    private static final int MAX_SPARE_HEADER_MAPS = 4;
+
     private final HttpServerConnection serverConnection;
     private final Pool<ByteBuffer> readBufferPool;
+    /**
+     * The read buffer, retained across read events while a request head is incomplete.
+     */
+    private Pooled<ByteBuffer> pooled;
     private int state;
     private String method;
     private String requestUri;
-    private StringBuilder builder = new StringBuilder();
+    private String protocol;
     private HeaderMap requestHeaders;
-    private String key;
+    /**
+     * Set while reading is paused waiting for outstanding exchanges.
+     */
+    private boolean paused;
+    /**
+     * Set while a request is being handled.
+     */
+    private boolean dispatching;
+    /**
+     * Empty header maps holding the storage of completed exchanges' maps, ready to be reused by the next request on the connection.
+     */
+    private final ArrayDeque<HeaderMap> spareHeaderMaps = new ArrayDeque<HeaderMap>(MAX_SPARE_HEADER_MAPS);
+
+    // Parse positions are indexes into the read buffer; they are rebased whenever the buffer is compacted.
+
+    /**
+     * The start of the current request head.
+     */
+    private int mark;
+    /**
+     * The start of the token currently being read.
+     */
+    private int tokenStart;
+    /**
+     * The start of the header block.
+     */
+    private int headersStart;
+    /**
+     * Groups of {@code (nameStart, nameEnd, valueStart, valueEnd)} for each header read so far, plus the header
+     * currently being read.
+     */
+    private int[] headerOffsets = new int[64];
+    private int headerCount;
 
     HttpReadListener(final HttpServerConnection serverConnection, final Pool<ByteBuffer> readBufferPool) {
         this.serverConnection = serverConnection;
@@ -53,27 +100,54 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
     }
 
     public void handleEvent(final PushBackStreamChannel channel) {
+        if (paused) {
+            channel.suspendReads();
+            return;
+        }
         int res;
-        boolean taken = false;
-        Pooled<ByteBuffer> pooled = readBufferPool.allocate();
+        boolean retain = false;
+        if (pooled == null) {
+            pooled = readBufferPool.allocate();
+            mark = 0;
+        }
         try {
             final ByteBuffer buffer = pooled.getResource();
-            while ((res = channel.read(buffer)) > 0) {
+            for (;;) {
+                final int start = buffer.position();
+                if (! buffer.hasRemaining()) {
+                    // request head does not fit in the buffer
+                    IoUtils.safeClose(channel);
+                    return;
+                }
+                if ((res = channel.read(buffer)) <= 0) {
+                    break;
+                }
                 buffer.flip();
-                try {
+                buffer.position(start);
+                do {
                     if (! decode(buffer)) {
                         IoUtils.safeClose(channel);
                         return;
                     }
-                } finally {
-                    buffer.compact();
-                }
+                    if (requestHeaders != null && ! dispatch(channel, buffer)) {
+                        // the rest of the input was pushed back; wait until the connection is ready for more
+                        return;
+                    }
+                } while (buffer.hasRemaining());
+                compact(buffer);
+            }
+            if (res == 0 && buffer.position() > 0) {
+                // keep the partial request head for the next read
+                retain = true;
+                serverConnection.requestHeadStarted();
             }
         } catch (IOException e) {
             shutdownError(channel, e);
             return;
         } finally {
-            if (! taken) pooled.free();
+            if (! retain) {
+                releaseBuffer();
+            }
         }
         if (res == -1) try {
             channel.shutdownReads();
@@ -83,15 +157,257 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
         }
     }
 
-    private static int read(ByteBuffer buffer) {
-        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    /**
+     * Free the read buffer, if it was not pushed back onto the channel.
+     */
+    private void releaseBuffer() {
+        final Pooled<ByteBuffer> pooled = this.pooled;
+        if (pooled != null) {
+            this.pooled = null;
+            pooled.free();
+        }
     }
 
-    private boolean decode(ByteBuffer buffer) {
+    /**
+     * Create the exchange for a completely read request head and pass it to the handler.  If the connection is not
+     * ready for another request once this one is dispatched (because it has a body, or because pipelining is
+     * disabled or at its limit), the rest of the buffer is pushed back onto the channel and reading is paused until
+     * the connection calls {@link #resume()}.
+     *
+     * @param channel the channel
+     * @param buffer the read buffer, positioned after the request head
+     * @return {@code true} to continue reading requests, {@code false} if reading is paused
+     */
+    private boolean dispatch(final PushBackStreamChannel channel, final ByteBuffer buffer) {
+        final HttpServerConnection connection = serverConnection;
+        final HeaderMap requestHeaders = this.requestHeaders;
+        this.requestHeaders = null;
+        final long contentLength = contentLength(requestHeaders);
+        if (contentLength < -1L) {
+            IoUtils.safeClose(channel);
+            return false;
+        }
+        final HeaderMap responseHeaders = spareHeaderMaps.poll();
+        final HttpServerExchange exchange = connection.newExchange(requestHeaders, responseHeaders == null ? new HeaderMap() : responseHeaders, method, contentLength);
+        exchange.setPersistent(connection.isKeepAlive() && isPersistent(protocol, requestHeaders));
+        exchange.setProtocol(protocol);
+        exchange.setRequestPath(requestUri);
+        method = null;
+        requestUri = null;
+        protocol = null;
+        connection.addExchange(exchange);
+        if (contentLength == 0L) {
+            exchange.terminateRequest();
+        }
+        // the bytes after an upgrade request belong to the upgraded protocol, unless the upgrade is refused
+        paused = requestHeaders.contains(Headers.UPGRADE) || ! connection.isReadyForNextRequest();
+        if (paused) {
+            channel.suspendReads();
+            pushBack(channel, buffer);
+        }
+        final HttpHandler handler = connection.getRootHandler();
+        if (handler == null) {
+            IoUtils.safeClose(channel);
+            return false;
+        }
+        dispatching = true;
+        try {
+            handler.handleRequest(exchange);
+        } catch (Throwable t) {
+            // todo log it
+            IoUtils.safeClose(connection);
+            return false;
+        } finally {
+            dispatching = false;
+        }
+        // once the buffer has been pushed back, reading continues on the next read event
+        return ! paused && pooled != null && channel.isOpen();
+    }
+
+    /**
+     * Resume reading requests once the connection is ready for the next one.
+     */
+    void resume() {
+        if (! paused || serverConnection.isUpgraded()) {
+            return;
+        }
+        paused = false;
+        final PushBackStreamChannel channel = serverConnection.getPushBackChannel();
+        channel.getReadSetter().set(this);
+        channel.resumeReads();
+        if (! dispatching) {
+            channel.wakeupReads();
+        }
+    }
+
+    /**
+     * Keep the storage of the header maps of a completed exchange for reuse, as long as not too many are already idle.
+     * The maps themselves are retired, so that any later use of them fails rather than seeing another request's headers.
+     *
+     * @param requestHeaders the request headers
+     * @param responseHeaders the response headers
+     */
+    void recycle(final HeaderMap requestHeaders, final HeaderMap responseHeaders) {
+        final ArrayDeque<HeaderMap> spareHeaderMaps = this.spareHeaderMaps;
+        HeaderMap map = requestHeaders.recycle();
+        if (spareHeaderMaps.size() < MAX_SPARE_HEADER_MAPS) {
+            spareHeaderMaps.add(map);
+        }
+        map = responseHeaders.recycle();
+        if (spareHeaderMaps.size() < MAX_SPARE_HEADER_MAPS) {
+            spareHeaderMaps.add(map);
+        }
+    }
+
+    /**
+     * Determine whether the client allows the connection to be kept open after a request.  HTTP/1.1 connections are
+     * persistent unless the client sends {@code Connection: close}; HTTP/1.0 connections only if it sends
+     * {@code Connection: keep-alive}.
+     *
+     * @param protocol the request protocol
+     * @param requestHeaders the request headers
+     * @return {@code true} if the connection is persistent
+     */
+    private static boolean isPersistent(final String protocol, final HeaderMap requestHeaders) {
+        if (protocol.equals(Protocols.HTTP_1_1)) {
+            return ! HttpServerExchange.containsToken(requestHeaders, Headers.CONNECTION, Headers.CLOSE);
+        } else if (protocol.equals(Protocols.HTTP_1_0)) {
+            return HttpServerExchange.containsToken(requestHeaders, Headers.CONNECTION, Headers.KEEP_ALIVE);
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Push the unread remainder of the read buffer back onto the channel, where it will be read by the request body
+     * channel, by the next request, or by the upgraded connection.  The buffer itself is handed over rather than
+     * copied.
+     *
+     * @param channel the channel
+     * @param buffer the read buffer
+     */
+    private void pushBack(final PushBackStreamChannel channel, final ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            channel.unget(pooled);
+            pooled = null;
+        }
+    }
+
+    /**
+     * Determine the length of the request body.
+     *
+     * @param requestHeaders the request headers
+     * @return the length, -1 if the body is delimited by a transfer coding, or -2 if the length is invalid
+     */
+    private static long contentLength(final HeaderMap requestHeaders) {
+        final String transferEncoding = requestHeaders.getLast(Headers.TRANSFER_ENCODING);
+        if (transferEncoding != null && ! transferEncoding.equalsIgnoreCase(Headers.IDENTITY)) {
+            return -1L;
+        }
+        final String contentLength = requestHeaders.getFirst(Headers.CONTENT_LENGTH);
+        if (contentLength == null) {
+            return 0L;
+        }
+        try {
+            final long length = Long.parseLong(contentLength.trim());
+            return length < 0L ? -2L : length;
+        } catch (NumberFormatException e) {
+            return -2L;
+        }
+    }
+
+    /**
+     * Discard everything before the current request head, and rebase all the parse positions accordingly.  On return
+     * the buffer is ready to be read into.
+     *
+     * @param buffer the read buffer, fully decoded
+     */
+    private void compact(final ByteBuffer buffer) {
+        final int mark = this.mark;
+        buffer.position(mark);
+        buffer.compact();
+        if (mark > 0) {
+            this.mark = 0;
+            tokenStart -= mark;
+            headersStart -= mark;
+            final int[] headerOffsets = this.headerOffsets;
+            // the header being parsed, if any, has offsets beyond the complete ones
+            final int cnt = Math.min((headerCount + 1) << 2, headerOffsets.length);
+            for (int i = 0; i < cnt; i ++) {
+                headerOffsets[i] -= mark;
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------
+    // Word-at-a-time scanning
+    // --------------------------------------------------------------------
+
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long BYTES = 0x0101010101010101L;
+    private static final long SP_WORD = BYTES * ' ';
+    private static final long CR_WORD = BYTES * '\r';
+    private static final long COLON_WORD = BYTES * ':';
+
+    /**
+     * Get a word which has the high bit set in exactly those bytes of {@code word} which are zero.
+     *
+     * @param word the word
+     * @return the zero byte mask
+     */
+    private static long zeroBytes(final long word) {
+        return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+    }
+
+    /**
+     * Skip ahead to the next occurrence of any of three delimiter bytes, examining eight bytes at a time.  Each
+     * delimiter is given as a word with the byte repeated in every position.  Scanning stops short of the delimiter
+     * if fewer than eight bytes remain; the state machine examines the tail one byte at a time.
+     *
+     * @param buffer the buffer
+     * @param pos the position to start from
+     * @param d1 the first delimiter word
+     * @param d2 the second delimiter word
+     * @param d3 the third delimiter word
+     * @return the position of the delimiter, or of the first unscanned byte
+     */
+    private static int scan(final ByteBuffer buffer, int pos, final long d1, final long d2, final long d3) {
+        final int limit = buffer.limit() - 7;
+        long word, match;
+        while (pos < limit) {
+            word = buffer.getLong(pos);
+            match = zeroBytes(word ^ d1) | zeroBytes(word ^ d2) | zeroBytes(word ^ d3);
+            if (match != 0L) {
+                return pos + ((buffer.order() == ByteOrder.BIG_ENDIAN ? Long.numberOfLeadingZeros(match) : Long.numberOfTrailingZeros(match)) >>> 3);
+            }
+            pos += 8;
+        }
+        return pos;
+    }
+
+    private static int trimEnd(final ByteBuffer buffer, final int start, int end) {
+        byte b;
+        while (end > start && ((b = buffer.get(end - 1)) == ' ' || b == '\t')) {
+            end --;
+        }
+        return end;
+    }
+
+    /**
+     * Decode as much of a request head as is available in the buffer.  At build time, this method is replaced by an
+     * equivalent one generated by {@code org.xnio.http.tool.Generator} in the {@code httptool} module, and this one is
+     * kept as {@code decodeHandWritten} for comparison.  Any change to this method must be mirrored in the generator,
+     * or the generated parser will behave differently from the one written here.
+     *
+     * @param buffer the read buffer
+     * @return {@code true} if decoding may continue, {@code false} if the request is invalid
+     */
+    boolean decode(ByteBuffer buffer) {
         int state = this.state;
         try {
             int c;
-            final StringBuilder builder = this.builder;
+            int[] headerOffsets = this.headerOffsets;
+            int idx;
             out: for (;;) {
                 if (! buffer.hasRemaining()) {
                     return true;
@@ -111,14 +427,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'P': state = 100; break;
                             case 'T': state = 140; break;
                             case '\r': break out;
-                            default: builder.append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 1:
                         switch (c) {
-                            case ' ': method = builder.toString(); builder.setLength(0); state = 1000; break;
+                            case ' ': method = string(buffer, mark, buffer.position() - 1); state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(c); break;
+                            default: break;
                         }
                         break;
                     // method = CONNECT
@@ -127,7 +443,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'O': state = 3; break;
                             case ' ': method = "C"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append('C').append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 3:
@@ -135,7 +451,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'N': state = 4; break;
                             case ' ': method = "CO"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("CO").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 4:
@@ -143,7 +459,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'N': state = 5; break;
                             case ' ': method = "CON"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("CON").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 5:
@@ -151,7 +467,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'E': state = 6; break;
                             case ' ': method = "CONN"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("CONN").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 6:
@@ -159,7 +475,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'C': state = 7; break;
                             case ' ': method = "CONNE"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("CONNE").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 7:
@@ -167,14 +483,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'T': state = 8; break;
                             case ' ': method = "CONNEC"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("CONNEC").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 8:
                         switch (c) {
                             case ' ': method = Methods.CONNECT; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.CONNECT).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = DELETE
@@ -183,7 +499,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'E': state = 21; break;
                             case ' ': method = "D"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append('D').append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 21:
@@ -191,7 +507,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'L': state = 22; break;
                             case ' ': method = "DE"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("DE").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 22:
@@ -199,7 +515,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'E': state = 23; break;
                             case ' ': method = "DEL"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("DEL").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 23:
@@ -207,7 +523,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'T': state = 24; break;
                             case ' ': method = "DELE"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("DELE").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 24:
@@ -215,14 +531,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'E': state = 25; break;
                             case ' ': method = "DELET"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("DELET").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 25:
                         switch (c) {
                             case ' ': method = Methods.DELETE; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.DELETE).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = GET
@@ -231,7 +547,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'E': state = 41; break;
                             case ' ': method = "G"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append('G').append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 41:
@@ -239,14 +555,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'T': state = 42; break;
                             case ' ': method = "GE"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("GE").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 42:
                         switch (c) {
                             case ' ': method = Methods.GET; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.GET).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = HEAD
@@ -255,7 +571,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'E': state = 61; break;
                             case ' ': method = "H"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append('H').append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 61:
@@ -263,7 +579,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'A': state = 62; break;
                             case ' ': method = "HE"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("HE").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 62:
@@ -271,14 +587,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'D': state = 63; break;
                             case ' ': method = "HEA"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("HEA").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 63:
                         switch (c) {
                             case ' ': method = Methods.HEAD; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.HEAD).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = OPTIONS
@@ -287,7 +603,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'P': state = 81; break;
                             case ' ': method = "O"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append('O').append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 81:
@@ -295,7 +611,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'T': state = 82; break;
                             case ' ': method = "OP"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("OP").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 82:
@@ -303,7 +619,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'I': state = 83; break;
                             case ' ': method = "OPT"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("OPT").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 83:
@@ -311,7 +627,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'O': state = 84; break;
                             case ' ': method = "OPTI"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("OPTI").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 84:
@@ -319,7 +635,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'N': state = 85; break;
                             case ' ': method = "OPTIO"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("OPTIO").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 85:
@@ -327,14 +643,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'S': state = 86; break;
                             case ' ': method = "OPTION"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("OPTION").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 86:
                         switch (c) {
                             case ' ': method = Methods.OPTIONS; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.OPTIONS).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = POST or PUT
@@ -344,7 +660,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'U': state = 120; break;
                             case ' ': method = "P"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append('P').append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = POST
@@ -353,7 +669,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'S': state = 102; break;
                             case ' ': method = "PO"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("PO").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 102:
@@ -361,14 +677,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'T': state = 103; break;
                             case ' ': method = "POS"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("POS").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 103:
                         switch (c) {
                             case ' ': method = Methods.POST; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.POST).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = PUT
@@ -377,14 +693,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'T': state = 121; break;
                             case ' ': method = "PU"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("PU").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 121:
                         switch (c) {
                             case ' ': method = Methods.PUT; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.PUT).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     // method = TRACE
@@ -393,7 +709,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'R': state = 141; break;
                             case ' ': method = "T"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append('T').append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 141:
@@ -401,7 +717,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'A': state = 142; break;
                             case ' ': method = "TR"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("TR").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 142:
@@ -409,7 +725,7 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'C': state = 143; break;
                             case ' ': method = "TRA"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("TRA").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 143:
@@ -417,14 +733,14 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                             case 'E': state = 144; break;
                             case ' ': method = "TRAC"; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append("TRAC").append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
                     case 144:
                         switch (c) {
                             case ' ': method = Methods.TRACE; state = 1000; break;
                             case '\r': break out;
-                            default: builder.append(Methods.TRACE).append(c); state = 1; break;
+                            default: state = 1; break;
                         }
                         break;
 
@@ -435,32 +751,48 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                         switch (c) {
                             case ' ': break;
                             case '\r': break out;
-                            default: builder.append(c); state = 1001; break;
+                            default: {
+                                tokenStart = buffer.position() - 1;
+                                state = 1001;
+                                buffer.position(scan(buffer, buffer.position(), SP_WORD, CR_WORD, CR_WORD));
+                                break;
+                            }
                         }
                         break;
                     case 1001:
                         switch (c) {
-                            case ' ': requestUri = builder.toString(); builder.setLength(0);
+                            case ' ': requestUri = string(buffer, tokenStart, buffer.position() - 1); state = 1500; break;
+                            case '\r': requestUri = string(buffer, tokenStart, buffer.position() - 1); protocol = Protocols.HTTP_0_9; state = 1002; break;
+                            default: buffer.position(scan(buffer, buffer.position(), SP_WORD, CR_WORD, CR_WORD)); break;
                         }
                         break;
                     case 1002:
                         switch (c) {
-                            case '\n': requestUri = builder.toString(); builder.setLength(0); requestHeaders = new HeaderMap(); state = 2000; break;
+                            // HTTP/0.9 simple request; there are no headers
+                            case '\n': headersStart = buffer.position(); headerCount = 0; requestComplete(buffer); state = 0; return true;
                             default: break out;
                         }
-                        break;
-                    case 1003:
-                        switch (c) {
-
-                        }
-                        break;
 
                     // --------------------------------------------------------------------
                     // Read Protocol version
                     // --------------------------------------------------------------------
                     case 1500:
                         switch (c) {
-                            case 'H': state = 1501; break;
+                            case ' ': break;
+                            case 'H': tokenStart = buffer.position() - 1; state = 1501; break;
+                            default: break out;
+                        }
+                        break;
+                    case 1501:
+                        switch (c) {
+                            case '\r': protocol = protocol(buffer, tokenStart, buffer.position() - 1); state = 1502; break;
+                            case ' ': break out;
+                            default: break;
+                        }
+                        break;
+                    case 1502:
+                        switch (c) {
+                            case '\n': headersStart = buffer.position(); headerCount = 0; state = 2000; break;
                             default: break out;
                         }
                         break;
@@ -471,38 +803,67 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
                     case 2000:
                         switch (c) {
                             case ' ':
+                            case '\t':
                             case ':': break out;
                             case '\r': state = 2005; break;
-                            default: builder.append(c); state = 2001; break;
+                            default: {
+                                idx = headerCount << 2;
+                                if (idx + 4 > headerOffsets.length) {
+                                    this.headerOffsets = headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length << 1);
+                                }
+                                headerOffsets[idx] = buffer.position() - 1;
+                                state = 2001;
+                                break;
+                            }
                         }
                         break;
                     case 2001:
                         switch (c) {
-                            case ':': key = builder.toString(); builder.setLength(0); state = 2002; break;
+                            case ':': headerOffsets[(headerCount << 2) + 1] = buffer.position() - 1; state = 2002; break;
+                            case ' ':
                             case '\r': break out;
-                            default: builder.append(c); break;
+                            default: buffer.position(scan(buffer, buffer.position(), COLON_WORD, SP_WORD, CR_WORD)); break;
                         }
                         break;
                     case 2002:
                         switch (c) {
-                            case ' ': break;
-                            case '\r': requestHeaders.add(key, ""); key = null; state = 2004; break;
-                            default: builder.append(c); state = 2003; break;
+                            case ' ':
+                            case '\t': break;
+                            case '\r': {
+                                idx = headerCount++ << 2;
+                                headerOffsets[idx + 2] = headerOffsets[idx + 3] = buffer.position() - 1;
+                                state = 2004;
+                                break;
+                            }
+                            default: {
+                                headerOffsets[(headerCount << 2) + 2] = buffer.position() - 1;
+                                state = 2003;
+                                buffer.position(scan(buffer, buffer.position(), CR_WORD, CR_WORD, CR_WORD));
+                                break;
+                            }
                         }
                         break;
                     case 2003:
                         switch (c) {
-                            case '\r': requestHeaders.add(key, builder.toString()); builder.setLength(0); key = null; state = 2004; break;
-                            default: builder.append(c); break;
+                            case '\r': {
+                                // trailing whitespace is not part of the value
+                                idx = headerCount++ << 2;
+                                headerOffsets[idx + 3] = trimEnd(buffer, headerOffsets[idx + 2], buffer.position() - 1);
+                                state = 2004;
+                                break;
+                            }
+                            default: buffer.position(scan(buffer, buffer.position(), CR_WORD, CR_WORD, CR_WORD)); break;
                         }
+                        break;
                     case 2004:
                         switch (c) {
                             case '\n': state = 2000; break;
                             default: break out;
                         }
+                        break;
                     case 2005:
                         switch (c) {
-                            case '\n': state = 0; /* TODO HANDLE REQUEST */; requestHeaders = null; break;
+                            case '\n': requestComplete(buffer); state = 0; return true;
                             default: break out;
                         }
                     default: throw new IllegalStateException();
@@ -514,6 +875,74 @@ final class HttpReadListener implements ChannelListener<PushBackStreamChannel> {
         }
     }
 
+    private void requestComplete(final ByteBuffer buffer) {
+        requestHeaders = createHeaderMap(buffer);
+        headerCount = 0;
+        mark = buffer.position();
+    }
+
+    /**
+     * Create the request header map for a completed header block.  The raw block is captured in one piece; header
+     * names and values are only decoded when they are accessed.  A header map left over from an earlier exchange on
+     * the connection is reused if there is one.
+     *
+     * @param buffer the read buffer, positioned just after the end of the header block
+     * @return the header map
+     */
+    private HeaderMap createHeaderMap(final ByteBuffer buffer) {
+        final int pos = buffer.position();
+        final int headersStart = this.headersStart;
+        final int headerCount = this.headerCount;
+        final byte[] block = new byte[pos - headersStart];
+        buffer.position(headersStart);
+        buffer.get(block);
+        final int[] offsets = new int[headerCount << 2];
+        final int[] headerOffsets = this.headerOffsets;
+        for (int i = 0; i < offsets.length; i ++) {
+            offsets[i] = headerOffsets[i] - headersStart;
+        }
+        final HeaderMap map = spareHeaderMaps.poll();
+        if (map == null) {
+            return new HeaderMap(block, offsets, headerCount);
+        }
+        map.reset(block, offsets, headerCount);
+        return map;
+    }
+
+    private static String protocol(final ByteBuffer buffer, final int start, final int end) {
+        if (regionMatches(buffer, start, end, Protocols.HTTP_1_1)) {
+            return Protocols.HTTP_1_1;
+        } else if (regionMatches(buffer, start, end, Protocols.HTTP_1_0)) {
+            return Protocols.HTTP_1_0;
+        } else {
+            return string(buffer, start, end);
+        }
+    }
+
+    private static boolean regionMatches(final ByteBuffer buffer, final int start, final int end, final String str) {
+        final int len = str.length();
+        if (end - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i ++) {
+            if (buffer.get(start + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String string(final ByteBuffer buffer, final int start, final int end) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, Http.LATIN_1);
+        }
+        final char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i ++) {
+            chars[i] = (char) (buffer.get(start + i) & 0xff);
+        }
+        return new String(chars);
+    }
+
     private void shutdownError(final PushBackStreamChannel channel, final IOException e) {
         IoUtils.safeClose(channel);
         // todo log error
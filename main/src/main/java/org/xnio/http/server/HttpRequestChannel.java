@@ -0,0 +1,319 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.Pooled;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.channels.PushBackStreamChannel;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+/**
+ * The request body channel of an HTTP exchange.  Reads are limited to the length of the request body; once the body
+ * has been read in full (or discarded), the request is terminated and the connection may proceed to the next request.
+ * <p>
+ * Each request gets its own channel.  Once the exchange is complete, the channel may not be used any more, except
+ * that suspending, shutting down or closing it again is harmless.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class HttpRequestChannel implements StreamSourceChannel {
+    private final HttpServerExchange exchange;
+    private final HttpServerConnection connection;
+    private final PushBackStreamChannel delegate;
+    private final ChannelListener.SimpleSetter<HttpRequestChannel> readSetter = new ChannelListener.SimpleSetter<HttpRequestChannel>();
+    private final ChannelListener.SimpleSetter<HttpRequestChannel> closeSetter = new ChannelListener.SimpleSetter<HttpRequestChannel>();
+    private final ChannelListener<PushBackStreamChannel> delegateReadListener = new ChannelListener<PushBackStreamChannel>() {
+        public void handleEvent(final PushBackStreamChannel channel) {
+            if (draining) {
+                drain();
+            } else {
+                ChannelListeners.invokeChannelListener(HttpRequestChannel.this, readSetter.get());
+            }
+        }
+    };
+    /**
+     * The number of body bytes not yet read, or -1 if the body is delimited by a transfer coding.
+     */
+    private long remaining;
+    private boolean resumed;
+    private boolean draining;
+    private boolean closed;
+
+    /**
+     * Construct a new instance for the body of a newly read request.
+     *
+     * @param exchange the exchange
+     * @param connection the connection
+     * @param contentLength the length of the body, or -1 if it is delimited by a transfer coding
+     */
+    HttpRequestChannel(final HttpServerExchange exchange, final HttpServerConnection connection, final long contentLength) {
+        this.exchange = exchange;
+        this.connection = connection;
+        delegate = connection.getPushBackChannel();
+        remaining = contentLength;
+    }
+
+    /**
+     * Determine whether this channel belongs to an exchange which is complete.
+     *
+     * @return {@code true} if the exchange is complete
+     */
+    private boolean isStale() {
+        return exchange.getHttpRequestChannel() != this;
+    }
+
+    private void checkCurrent() {
+        if (isStale()) {
+            throw new IllegalStateException("Request channel used after its exchange was complete");
+        }
+    }
+
+    public int read(final ByteBuffer dst) throws IOException {
+        checkCurrent();
+        return closed ? -1 : readBody(dst);
+    }
+
+    private int readBody(final ByteBuffer dst) throws IOException {
+        final long remaining = this.remaining;
+        if (remaining == 0L) {
+            return -1;
+        }
+        final int res;
+        if (remaining > 0L && dst.remaining() > remaining) {
+            final int lim = dst.limit();
+            dst.limit(dst.position() + (int) remaining);
+            try {
+                res = delegate.read(dst);
+            } finally {
+                dst.limit(lim);
+            }
+        } else {
+            res = delegate.read(dst);
+        }
+        return (int) consumed(res);
+    }
+
+    public long read(final ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+        checkCurrent();
+        long total = 0L;
+        for (int i = 0; i < length; i ++) {
+            final ByteBuffer dst = dsts[offset + i];
+            if (dst.hasRemaining()) {
+                final int res = read(dst);
+                if (res == -1) {
+                    return total == 0L ? -1L : total;
+                }
+                total += res;
+                if (dst.hasRemaining()) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    public long transferTo(final long position, final long count, final FileChannel target) throws IOException {
+        checkCurrent();
+        final long remaining = this.remaining;
+        if (remaining == 0L || closed) {
+            return -1L;
+        }
+        return consumed(delegate.transferTo(position, remaining > 0L ? Math.min(count, remaining) : count, target));
+    }
+
+    public long transferTo(final long count, final ByteBuffer throughBuffer, final StreamSinkChannel target) throws IOException {
+        return IoUtils.transfer(this, count, throughBuffer, target);
+    }
+
+    private long consumed(final long res) throws IOException {
+        if (res > 0L) {
+            final long remaining = this.remaining;
+            if (remaining > 0L && (this.remaining = remaining - res) == 0L) {
+                finished();
+            }
+        } else if (res == -1L && remaining > 0L) {
+            // premature end of stream; the connection cannot be reused
+            IoUtils.safeClose(connection);
+        }
+        return res;
+    }
+
+    private void finished() {
+        if (resumed || draining) {
+            delegate.suspendReads();
+        }
+        draining = false;
+        exchange.terminateRequest();
+    }
+
+    /**
+     * Discard as much of the unread request body as is immediately available.
+     */
+    private void drain() {
+        final Pooled<ByteBuffer> pooled = connection.getBufferPool().allocate();
+        try {
+            final ByteBuffer buffer = pooled.getResource();
+            long res;
+            do {
+                buffer.clear();
+                res = readBody(buffer);
+            } while (res > 0L);
+            if (res == 0L && ! draining) {
+                draining = true;
+                delegate.getReadSetter().set(delegateReadListener);
+                delegate.resumeReads();
+            }
+        } catch (IOException e) {
+            IoUtils.safeClose(connection);
+        } finally {
+            pooled.free();
+        }
+    }
+
+    public void suspendReads() {
+        if (isStale()) {
+            // the connection may be reading the next request by now
+            return;
+        }
+        resumed = false;
+        if (remaining != 0L && ! draining) {
+            delegate.suspendReads();
+        }
+    }
+
+    public void resumeReads() {
+        checkCurrent();
+        resumed = true;
+        if (remaining == 0L || closed) {
+            // always readable
+            getReadThread().execute(new Runnable() {
+                public void run() {
+                    if (resumed) {
+                        ChannelListeners.invokeChannelListener(HttpRequestChannel.this, readSetter.get());
+                    }
+                }
+            });
+        } else if (! draining) {
+            delegate.getReadSetter().set(delegateReadListener);
+            delegate.resumeReads();
+        }
+    }
+
+    public boolean isReadResumed() {
+        checkCurrent();
+        return resumed;
+    }
+
+    public void wakeupReads() {
+        resumeReads();
+    }
+
+    /**
+     * Discard the rest of the request body.  If the body is delimited by a transfer coding which has not been
+     * terminated, the connection cannot be reused and is closed.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void shutdownReads() throws IOException {
+        // the request was terminated before the exchange could complete
+        if (closed || isStale()) {
+            return;
+        }
+        closed = true;
+        resumed = false;
+        final long remaining = this.remaining;
+        if (remaining > 0L) {
+            drain();
+        } else if (remaining == -1L) {
+            IoUtils.safeClose(connection);
+        }
+    }
+
+    public void awaitReadable() throws IOException {
+        checkCurrent();
+        if (remaining != 0L && ! closed) {
+            delegate.awaitReadable();
+        }
+    }
+
+    public void awaitReadable(final long time, final TimeUnit timeUnit) throws IOException {
+        checkCurrent();
+        if (remaining != 0L && ! closed) {
+            delegate.awaitReadable(time, timeUnit);
+        }
+    }
+
+    public XnioExecutor getReadThread() {
+        return delegate.getReadThread();
+    }
+
+    public ChannelListener.Setter<HttpRequestChannel> getReadSetter() {
+        checkCurrent();
+        return readSetter;
+    }
+
+    public ChannelListener.Setter<HttpRequestChannel> getCloseSetter() {
+        return closeSetter;
+    }
+
+    public XnioWorker getWorker() {
+        return delegate.getWorker();
+    }
+
+    public boolean isOpen() {
+        return ! closed && ! isStale();
+    }
+
+    public void close() throws IOException {
+        if (! closed && ! isStale()) {
+            shutdownReads();
+            ChannelListeners.invokeChannelListener(this, closeSetter.get());
+        }
+    }
+
+    public boolean supportsOption(final Option<?> option) {
+        return false;
+    }
+
+    public <T> T getOption(final Option<T> option) throws IOException {
+        return null;
+    }
+
+    public <T> T setOption(final Option<T> option, final T value) throws IllegalArgumentException, IOException {
+        return null;
+    }
+}
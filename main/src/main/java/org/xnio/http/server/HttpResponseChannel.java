@@ -0,0 +1,478 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.xnio.Buffers;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.Pooled;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+/**
+ * The response channel of an HTTP exchange.  Responses on a connection are written strictly in request order, so
+ * the channel does not accept any data until all the responses before it have been written in full; until then it
+ * simply appears to be unwritable.
+ * <p>
+ * The channel holds the response to its declared length: data beyond the {@code Content-Length} is refused, and a
+ * response which is shut down short of it, or overrun, closes the connection once it is written.  If the response may
+ * not have a body at all, for example in reply to a {@code HEAD} request, any body data is discarded.
+ * <p>
+ * No data may be written until the response is started, as it would otherwise precede the response head.
+ * <p>
+ * Each response gets its own channel.  Once the exchange is complete, the channel may not be used any more, except
+ * that suspending, shutting down, flushing or closing it again is harmless.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class HttpResponseChannel implements StreamSinkChannel {
+    private final HttpServerExchange exchange;
+    private final HttpServerConnection connection;
+    private final StreamSinkChannel delegate;
+    private final ChannelListener.SimpleSetter<HttpResponseChannel> writeSetter = new ChannelListener.SimpleSetter<HttpResponseChannel>();
+    private final ChannelListener.SimpleSetter<HttpResponseChannel> closeSetter = new ChannelListener.SimpleSetter<HttpResponseChannel>();
+    /**
+     * {@code true} once all previous responses on the connection are complete.  Set on the connection's read thread.
+     */
+    private volatile boolean active;
+    private volatile boolean resumed;
+    private boolean shutdown;
+    private boolean done;
+    /**
+     * Set once the response is started, and its head and body framing are known.
+     */
+    private boolean started;
+    /**
+     * Set if the response may not have a body, so that body data is discarded.
+     */
+    private boolean discard;
+    /**
+     * The number of bytes of the declared body length which are still to be written, or -1 if none was declared.
+     */
+    private long remaining = -1L;
+    /**
+     * The response head, if it has not yet been written in full.
+     */
+    private ByteBuffer[] head;
+    /**
+     * The pooled buffer holding the response head, if any.
+     */
+    private Pooled<ByteBuffer> pooledHead;
+
+    /**
+     * Construct a new instance for the response to a newly read request.
+     *
+     * @param exchange the exchange
+     * @param connection the connection
+     */
+    HttpResponseChannel(final HttpServerExchange exchange, final HttpServerConnection connection) {
+        this.exchange = exchange;
+        this.connection = connection;
+        delegate = connection.getStreamChannel();
+    }
+
+    /**
+     * Determine whether this channel belongs to an exchange which is complete.
+     *
+     * @return {@code true} if the exchange is complete
+     */
+    private boolean isStale() {
+        return exchange.getHttpResponseChannel() != this;
+    }
+
+    private void checkCurrent() {
+        if (isStale()) {
+            throw new IllegalStateException("Response channel used after its exchange was complete");
+        }
+    }
+
+    private void checkStarted() {
+        if (! started) {
+            throw new IllegalStateException("Response data written before the response was started");
+        }
+    }
+
+    /**
+     * Allow this response to be written.  Called by the connection when the previous response is complete.
+     */
+    void activate() {
+        synchronized (this) {
+            active = true;
+            notifyAll();
+        }
+        if (resumed) {
+            delegate.wakeupWrites();
+        }
+    }
+
+    /**
+     * Set the encoded response head, which is written ahead of any response data.
+     *
+     * @param head the response head buffers
+     * @param pooledHead the pooled buffer to free once the head is written, or {@code null} for none
+     */
+    void setHead(final ByteBuffer[] head, final Pooled<ByteBuffer> pooledHead) {
+        this.head = head;
+        this.pooledHead = pooledHead;
+    }
+
+    /**
+     * Set the framing of the response body, once the response is started.
+     *
+     * @param allowed {@code true} if the response may have a body
+     * @param length the declared length of the body, or -1 if it has none
+     */
+    void setBody(final boolean allowed, final long length) {
+        started = true;
+        discard = ! allowed;
+        remaining = length;
+    }
+
+    private void clearHead() {
+        head = null;
+        final Pooled<ByteBuffer> pooledHead = this.pooledHead;
+        if (pooledHead != null) {
+            this.pooledHead = null;
+            pooledHead.free();
+        }
+    }
+
+    /**
+     * Write out the response head, if any.
+     *
+     * @return {@code true} if the head has been written in full
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean writeHead() throws IOException {
+        final ByteBuffer[] head = this.head;
+        if (head == null) {
+            return true;
+        }
+        long res;
+        do {
+            res = delegate.write(head);
+        } while (res > 0L && Buffers.hasRemaining(head));
+        if (Buffers.hasRemaining(head)) {
+            return false;
+        }
+        clearHead();
+        return true;
+    }
+
+    /**
+     * Write out the response head along with the given data, in a single gathering write.
+     *
+     * @return the number of bytes of data written
+     * @throws IOException if an I/O error occurs
+     */
+    private long writeWithHead(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        final ByteBuffer[] head = this.head;
+        final int headLength = head.length;
+        final ByteBuffer[] all = new ByteBuffer[headLength + length];
+        System.arraycopy(head, 0, all, 0, headLength);
+        System.arraycopy(srcs, offset, all, headLength, length);
+        final long headRemaining = Buffers.remaining(head);
+        final long res = delegate.write(all);
+        if (res < headRemaining) {
+            return 0L;
+        }
+        clearHead();
+        return res - headRemaining;
+    }
+
+    /**
+     * Deliver a write notification from the underlying channel.
+     */
+    void invokeWriteListener() {
+        final ChannelListener<? super HttpResponseChannel> listener = writeSetter.get();
+        if (listener == null || ! resumed) {
+            delegate.suspendWrites();
+        } else {
+            connection.restartWriteTimeout();
+            ChannelListeners.invokeChannelListener(this, listener);
+        }
+    }
+
+    public int write(final ByteBuffer src) throws IOException {
+        checkCurrent();
+        checkStarted();
+        if (discard || remaining != -1L) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        if (! active) {
+            return 0;
+        }
+        return head == null ? delegate.write(src) : (int) writeWithHead(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        checkCurrent();
+        checkStarted();
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        if (! active) {
+            return 0L;
+        }
+        if (discard) {
+            long total = 0L;
+            for (int i = 0; i < length; i ++) {
+                final ByteBuffer src = srcs[offset + i];
+                total += src.remaining();
+                src.position(src.limit());
+            }
+            return total;
+        }
+        final long remaining = this.remaining;
+        if (remaining == -1L) {
+            return head == null ? delegate.write(srcs, offset, length) : writeWithHead(srcs, offset, length);
+        }
+        final long res;
+        if (Buffers.remaining(srcs, offset, length) <= remaining) {
+            res = head == null ? delegate.write(srcs, offset, length) : writeWithHead(srcs, offset, length);
+        } else {
+            res = writeLimited(srcs, offset, length, remaining);
+        }
+        this.remaining = remaining - res;
+        return res;
+    }
+
+    /**
+     * Write only as much of the given data as the declared body length allows.
+     *
+     * @return the number of bytes of data written
+     * @throws IOException if an I/O error occurs, or if there is no more room in the body
+     */
+    private long writeLimited(final ByteBuffer[] srcs, final int offset, final int length, final long remaining) throws IOException {
+        if (remaining == 0L) {
+            overrun();
+        }
+        // the data up to the declared length, with the buffer which crosses it cut short
+        int cnt = 0;
+        long before = 0L;
+        ByteBuffer src;
+        while (before + (src = srcs[offset + cnt]).remaining() < remaining) {
+            before += src.remaining();
+            cnt ++;
+        }
+        final ByteBuffer[] limited = new ByteBuffer[cnt + 1];
+        System.arraycopy(srcs, offset, limited, 0, cnt);
+        final ByteBuffer last = limited[cnt] = src.duplicate();
+        last.limit(last.position() + (int) (remaining - before));
+        final long res = head == null ? delegate.write(limited) : writeWithHead(limited, 0, limited.length);
+        src.position(last.position());
+        return res;
+    }
+
+    private void overrun() throws IOException {
+        // the peer cannot tell where this response ends, so no other response may follow it
+        exchange.setPersistent(false);
+        throw new IOException("Response body is longer than its Content-Length");
+    }
+
+    public long transferFrom(final FileChannel src, final long position, final long count) throws IOException {
+        checkCurrent();
+        checkStarted();
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        if (! active) {
+            return 0L;
+        }
+        if (discard) {
+            return Math.max(0L, Math.min(count, src.size() - position));
+        }
+        final long remaining = this.remaining;
+        if (remaining == -1L) {
+            return writeHead() ? delegate.transferFrom(src, position, count) : 0L;
+        }
+        if (remaining == 0L && count > 0L) {
+            overrun();
+        }
+        if (! writeHead()) {
+            return 0L;
+        }
+        final long res = delegate.transferFrom(src, position, Math.min(count, remaining));
+        this.remaining = remaining - res;
+        return res;
+    }
+
+    public long transferFrom(final StreamSourceChannel source, final long count, final ByteBuffer throughBuffer) throws IOException {
+        return IoUtils.transfer(source, count, throughBuffer, this);
+    }
+
+    public boolean flush() throws IOException {
+        if (done) {
+            return true;
+        }
+        checkCurrent();
+        if (! active || ! writeHead() || ! delegate.flush()) {
+            return false;
+        }
+        if (shutdown) {
+            done = true;
+            if (remaining > 0L) {
+                // the peer is still waiting for the rest of the body
+                exchange.setPersistent(false);
+            }
+            connection.stopWriteTimeout();
+            if (resumed) {
+                resumed = false;
+                delegate.suspendWrites();
+            }
+            exchange.terminateResponse();
+        }
+        return true;
+    }
+
+    public void shutdownWrites() throws IOException {
+        if (! done) {
+            checkCurrent();
+        }
+        shutdown = true;
+    }
+
+    public void suspendWrites() {
+        resumed = false;
+        if (active && ! done) {
+            delegate.suspendWrites();
+            connection.stopWriteTimeout();
+        }
+    }
+
+    public void resumeWrites() {
+        checkCurrent();
+        resumed = true;
+        if (active && ! done) {
+            delegate.resumeWrites();
+            connection.startWriteTimeout();
+        }
+    }
+
+    public boolean isWriteResumed() {
+        checkCurrent();
+        return resumed;
+    }
+
+    public void wakeupWrites() {
+        checkCurrent();
+        resumed = true;
+        if (active && ! done) {
+            delegate.wakeupWrites();
+        }
+    }
+
+    public void awaitWritable() throws IOException {
+        checkCurrent();
+        awaitActive();
+        delegate.awaitWritable();
+    }
+
+    public void awaitWritable(final long time, final TimeUnit timeUnit) throws IOException {
+        checkCurrent();
+        awaitActive();
+        delegate.awaitWritable(time, timeUnit);
+    }
+
+    private synchronized void awaitActive() throws IOException {
+        while (! active) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    public XnioExecutor getWriteThread() {
+        return delegate.getWriteThread();
+    }
+
+    public ChannelListener.Setter<HttpResponseChannel> getWriteSetter() {
+        checkCurrent();
+        return writeSetter;
+    }
+
+    public ChannelListener.Setter<HttpResponseChannel> getCloseSetter() {
+        return closeSetter;
+    }
+
+    public XnioWorker getWorker() {
+        return delegate.getWorker();
+    }
+
+    public boolean isOpen() {
+        return ! shutdown && ! isStale() && delegate.isOpen();
+    }
+
+    /**
+     * Close the response channel.  If the response was not completely written, the connection is closed as well.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        if (done) {
+            return;
+        }
+        checkCurrent();
+        shutdown = true;
+        try {
+            if (! flush()) {
+                IoUtils.safeClose(connection);
+                clearHead();
+            }
+        } finally {
+            ChannelListeners.invokeChannelListener(this, closeSetter.get());
+        }
+    }
+
+    public boolean supportsOption(final Option<?> option) {
+        return false;
+    }
+
+    public <T> T getOption(final Option<T> option) throws IOException {
+        return null;
+    }
+
+    public <T> T setOption(final Option<T> option, final T value) throws IllegalArgumentException, IOException {
+        return null;
+    }
+}
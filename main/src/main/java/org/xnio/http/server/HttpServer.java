@@ -73,7 +73,7 @@ public final class HttpServer extends AbstractHttpContext {
      * @throws IOException if the binding did not succeed
      */
     public HostHttpContext bind(SocketAddress address, HttpHandler handler, OptionMap optionMap) throws IOException {
-        return createHost(address, handler, optionMap, xnioWorker.createStreamServer(address, null, optionMap));
+        return createHost(address, handler, optionMap, xnioWorker.createStreamServer(address, null, optionMap), false);
     }
 
     /**
@@ -91,13 +91,13 @@ public final class HttpServer extends AbstractHttpContext {
         if (xnioSsl == null) {
             xnioSsl = xnioWorker.getXnio().getSslProvider(optionMap);
         }
-        return createHost(address, handler, optionMap, xnioSsl.createSslTcpServer(xnioWorker, address, null, optionMap));
+        return createHost(address, handler, optionMap, xnioSsl.createSslTcpServer(xnioWorker, address, null, optionMap), true);
     }
 
-    private static HostHttpContext createHost(final SocketAddress address, final HttpHandler handler, final OptionMap optionMap, final AcceptingChannel<? extends ConnectedStreamChannel> server) {
+    private static HostHttpContext createHost(final SocketAddress address, final HttpHandler handler, final OptionMap optionMap, final AcceptingChannel<? extends ConnectedStreamChannel> server, final boolean secure) {
         final int bufferSize = optionMap.get(Options.RECEIVE_BUFFER, 8192);
         final Pool<ByteBuffer> bufferPool = new ByteBufferSlicePool(BufferAllocator.BYTE_BUFFER_ALLOCATOR, bufferSize, bufferSize * 16);
-        final HostHttpContext host = new HostHttpContext(address, server, bufferPool);
+        final HostHttpContext host = new HostHttpContext(address, server, bufferPool, optionMap, secure);
         if (handler != null) host.setHandler(handler);
         server.getAcceptSetter().set(host.getAcceptListener());
         server.resumeAccepts();
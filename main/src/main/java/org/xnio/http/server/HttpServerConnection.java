@@ -24,24 +24,375 @@ package org.xnio.http.server;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import org.xnio.ChannelListener;
 import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
 import org.xnio.Option;
+import org.xnio.Pool;
+import org.xnio.XnioExecutor;
 import org.xnio.XnioWorker;
 import org.xnio.channels.ConnectedChannel;
 import org.xnio.channels.ConnectedStreamChannel;
+import org.xnio.channels.PushBackStreamChannel;
 import org.xnio.http.util.Attachable;
+import org.xnio.http.util.HeaderMap;
 
 /**
+ * A server connection.  The state of the connection's exchanges belongs to its read thread; when a request or response
+ * terminates on any other thread, the connection catches up on the read thread.
+ *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class HttpServerConnection extends Attachable implements ConnectedChannel {
+    /**
+     * The maximum number of pipelined requests which may be outstanding at once; further requests are not read
+     * until earlier ones complete.
+     */
+    private static final int MAX_PIPELINED_REQUESTS = 32;
+
     private final ConnectedStreamChannel channel;
-    private final ChannelListener.Setter<HttpServerConnection> closeSetter;
+    private final ChannelListener.SimpleSetter<HttpServerConnection> closeSetter = new ChannelListener.SimpleSetter<HttpServerConnection>();
+    private final HostHttpContext host;
+    private final Pool<ByteBuffer> bufferPool;
+    private final PushBackStreamChannel pushBackChannel;
+    private final HttpReadListener readListener;
+    private final boolean pipelining;
+    private final DateCache dateCache;
+    /**
+     * The exchanges which have been dispatched but not yet completed, in request order.  Only accessed from the read
+     * thread.
+     */
+    private final ArrayDeque<HttpServerExchange> exchanges = new ArrayDeque<HttpServerExchange>();
+    /**
+     * The exchange whose response is currently being written, or {@code null} if all dispatched responses are
+     * complete.  Written on the read thread, and read by the write listener.
+     */
+    private volatile HttpServerExchange responseExchange;
+    private final Runnable updateTask = new Runnable() {
+        public void run() {
+            update();
+        }
+    };
+    /**
+     * Set once the connection has been taken over by another protocol.
+     */
+    private volatile boolean upgraded;
+    /**
+     * Set once the connection is to be closed after the responses already dispatched; no further requests are read.
+     */
+    private boolean closing;
+    /**
+     * The deadlines of the connection, each {@code null} if there is no limit.
+     */
+    private final TimerWheel.Timeout idleTimeout;
+    private final TimerWheel.Timeout requestHeadTimeout;
+    private final TimerWheel.Timeout writeTimeout;
+    /**
+     * The pool that completed exchanges are recycled into, or {@code null} if they are not recycled.
+     */
+    private final ExchangePool exchangePool;
 
-    HttpServerConnection(ConnectedStreamChannel channel) {
+    HttpServerConnection(final ConnectedStreamChannel channel, final HostHttpContext host, final Pool<ByteBuffer> bufferPool, final boolean pipelining) {
         this.channel = channel;
-        closeSetter = ChannelListeners.getDelegatingSetter(channel.getCloseSetter(), this);
+        this.host = host;
+        this.bufferPool = bufferPool;
+        this.pipelining = pipelining;
+        pushBackChannel = new PushBackStreamChannel(channel);
+        readListener = new HttpReadListener(this, bufferPool);
+        dateCache = DateCache.getInstance(channel.getWorker());
+        dateCache.start(channel.getWriteThread());
+        if (host.getIdleTimeout() > 0 || host.getRequestHeadTimeout() > 0 || host.getWriteTimeout() > 0) {
+            final TimerWheel wheel = TimerWheel.getInstance(channel.getReadThread());
+            final Runnable closeTask = new Runnable() {
+                public void run() {
+                    IoUtils.safeClose(HttpServerConnection.this);
+                }
+            };
+            idleTimeout = host.getIdleTimeout() > 0 ? wheel.newTimeout(closeTask) : null;
+            requestHeadTimeout = host.getRequestHeadTimeout() > 0 ? wheel.newTimeout(closeTask) : null;
+            writeTimeout = host.getWriteTimeout() > 0 ? wheel.newTimeout(closeTask) : null;
+        } else {
+            idleTimeout = requestHeadTimeout = writeTimeout = null;
+        }
+        exchangePool = host.isRecycling() ? ExchangePool.getInstance(channel.getReadThread()) : null;
+        channel.getCloseSetter().set(new ChannelListener<ConnectedStreamChannel>() {
+            public void handleEvent(final ConnectedStreamChannel channel) {
+                // however the connection was closed, its deadlines must not keep it on the wheel
+                cancelTimeouts();
+                ChannelListeners.invokeChannelListener(HttpServerConnection.this, closeSetter.get());
+            }
+        });
+        channel.getWriteSetter().set(new ChannelListener<ConnectedStreamChannel>() {
+            public void handleEvent(final ConnectedStreamChannel channel) {
+                final HttpServerExchange exchange = responseExchange;
+                if (exchange == null) {
+                    channel.suspendWrites();
+                } else {
+                    exchange.getHttpResponseChannel().invokeWriteListener();
+                }
+            }
+        });
+    }
+
+    /**
+     * Begin reading requests from this connection.
+     */
+    void startRequests() {
+        final PushBackStreamChannel pushBackChannel = this.pushBackChannel;
+        pushBackChannel.getReadSetter().set(readListener);
+        startIdleTimeout();
+        if (channel.getReadThread() == Thread.currentThread()) {
+            pushBackChannel.resumeReads();
+            readListener.handleEvent(pushBackChannel);
+        } else {
+            // requests are only ever read on the read thread
+            pushBackChannel.wakeupReads();
+        }
+    }
+
+    ConnectedStreamChannel getStreamChannel() {
+        return channel;
+    }
+
+    PushBackStreamChannel getPushBackChannel() {
+        return pushBackChannel;
+    }
+
+    Pool<ByteBuffer> getBufferPool() {
+        return bufferPool;
+    }
+
+    DateCache getDateCache() {
+        return dateCache;
+    }
+
+    boolean isSecure() {
+        return host.isSecure();
+    }
+
+    boolean isKeepAlive() {
+        return host.isKeepAlive();
+    }
+
+    boolean isWebSocketEnabled() {
+        return host.isWebSocketEnabled();
+    }
+
+    HttpHandler getRootHandler() {
+        return host.getHandler();
+    }
+
+    private void startIdleTimeout() {
+        final TimerWheel.Timeout timeout = idleTimeout;
+        if (timeout != null) {
+            timeout.schedule(host.getIdleTimeout());
+        }
+    }
+
+    /**
+     * Note that part of a request head has been read.  The connection is no longer idle, and the whole head must
+     * arrive before the request head deadline, which is not pushed out by further reads.
+     */
+    void requestHeadStarted() {
+        final TimerWheel.Timeout idleTimeout = this.idleTimeout;
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+        final TimerWheel.Timeout timeout = requestHeadTimeout;
+        if (timeout != null && ! timeout.isScheduled()) {
+            timeout.schedule(host.getRequestHeadTimeout());
+        }
+    }
+
+    /**
+     * Start the write deadline of a response which is waiting for the connection to become writable, unless it is
+     * already running.
+     */
+    void startWriteTimeout() {
+        final TimerWheel.Timeout timeout = writeTimeout;
+        if (timeout != null && ! timeout.isScheduled()) {
+            timeout.schedule(host.getWriteTimeout());
+        }
+    }
+
+    /**
+     * Push out the write deadline, if it is running, since the connection has become writable.
+     */
+    void restartWriteTimeout() {
+        final TimerWheel.Timeout timeout = writeTimeout;
+        if (timeout != null && timeout.isScheduled()) {
+            timeout.schedule(host.getWriteTimeout());
+        }
+    }
+
+    void stopWriteTimeout() {
+        final TimerWheel.Timeout timeout = writeTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void cancelTimeouts() {
+        final TimerWheel.Timeout idleTimeout = this.idleTimeout;
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+        final TimerWheel.Timeout requestHeadTimeout = this.requestHeadTimeout;
+        if (requestHeadTimeout != null) {
+            requestHeadTimeout.cancel();
+        }
+        final TimerWheel.Timeout writeTimeout = this.writeTimeout;
+        if (writeTimeout != null) {
+            writeTimeout.cancel();
+        }
+    }
+
+    /**
+     * Hand the connection over to another protocol.  No further requests are read; any bytes already read past the
+     * upgrade request remain available from the push-back channel.
+     */
+    void upgrade() {
+        upgraded = true;
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+    }
+
+    boolean isUpgraded() {
+        return upgraded;
+    }
+
+    /**
+     * Get an exchange for a newly read request, reusing a recycled one if possible.
+     *
+     * @param requestHeaders the request headers
+     * @param responseHeaders the (empty) response headers
+     * @param requestMethod the request method
+     * @param contentLength the length of the request body, or -1 if it is delimited by a transfer coding
+     * @return the exchange
+     */
+    HttpServerExchange newExchange(final HeaderMap requestHeaders, final HeaderMap responseHeaders, final String requestMethod, final long contentLength) {
+        final ExchangePool exchangePool = this.exchangePool;
+        final HttpServerExchange exchange = exchangePool == null ? new HttpServerExchange() : exchangePool.allocate();
+        exchange.init(this, requestHeaders, responseHeaders, requestMethod, contentLength);
+        return exchange;
+    }
+
+    /**
+     * Add a newly dispatched exchange.  If no earlier response is outstanding, the exchange's response may be
+     * written immediately.
+     *
+     * @param exchange the exchange
+     */
+    void addExchange(final HttpServerExchange exchange) {
+        exchanges.add(exchange);
+        final TimerWheel.Timeout idleTimeout = this.idleTimeout;
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+        final TimerWheel.Timeout requestHeadTimeout = this.requestHeadTimeout;
+        if (requestHeadTimeout != null) {
+            requestHeadTimeout.cancel();
+        }
+        if (! exchange.isPersistent()) {
+            closing = true;
+        }
+        if (responseExchange == null) {
+            responseExchange = exchange;
+            exchange.getHttpResponseChannel().activate();
+        }
+    }
+
+    /**
+     * Determine whether the next request may be read.  Without pipelining, that is once all previous exchanges are
+     * complete; with pipelining it is as soon as the previous request has been read in full, as long as not too many
+     * responses are outstanding.  No request is read after one which closes the connection.
+     *
+     * @return {@code true} if the next request may be read
+     */
+    boolean isReadyForNextRequest() {
+        if (closing) {
+            return false;
+        }
+        final HttpServerExchange last = exchanges.peekLast();
+        if (last == null) {
+            return true;
+        }
+        return pipelining && last.isRequestTerminated() && exchanges.size() < MAX_PIPELINED_REQUESTS;
+    }
+
+    /**
+     * Note that the request or the response of an exchange has terminated.  The connection is brought up to date
+     * right away if this is called on the read thread, and otherwise as soon as the read thread gets to it.
+     */
+    void exchangeTerminated() {
+        final XnioExecutor readThread = channel.getReadThread();
+        if (readThread == Thread.currentThread()) {
+            update();
+        } else {
+            readThread.execute(updateTask);
+        }
+    }
+
+    /**
+     * Bring the connection up to date with the requests and responses which have terminated: activate the next
+     * response, close the connection after a non-persistent response, and complete the exchanges which are done.
+     * Since requests are read and responses written in order, exchanges always complete in order.  Called on the
+     * read thread only; it is harmless to call it when nothing has changed.
+     */
+    private void update() {
+        final ArrayDeque<HttpServerExchange> exchanges = this.exchanges;
+        HttpServerExchange next = null;
+        for (HttpServerExchange exchange : exchanges) {
+            if (! exchange.isResponseTerminated()) {
+                next = exchange;
+                break;
+            }
+            if (! exchange.isPersistent() && ! upgraded) {
+                // the response has been flushed in full, and no later response may follow it
+                closing = true;
+                IoUtils.safeClose(this);
+            }
+        }
+        if (next != responseExchange) {
+            responseExchange = next;
+            if (next != null) {
+                next.getHttpResponseChannel().activate();
+            }
+        }
+        HttpServerExchange exchange;
+        boolean completed = false;
+        while ((exchange = exchanges.peek()) != null && exchange.isResponseTerminated() && exchange.isRequestTerminated()) {
+            exchanges.poll();
+            exchangeComplete(exchange);
+            completed = true;
+        }
+        if (completed && exchanges.isEmpty() && ! closing) {
+            startIdleTimeout();
+        }
+        if (isReadyForNextRequest()) {
+            readListener.resume();
+        }
+    }
+
+    private void exchangeComplete(final HttpServerExchange exchange) {
+        final ExchangePool exchangePool = this.exchangePool;
+        if (exchangePool != null) {
+            final HeaderMap requestHeaders = exchange.getRequestHeaders();
+            final HeaderMap responseHeaders = exchange.getResponseHeaders();
+            if (host.isRecyclingDebug()) {
+                // never reused, so that any later use is caught
+                requestHeaders.recycle();
+                responseHeaders.recycle();
+                exchange.recycle(true);
+            } else {
+                readListener.recycle(requestHeaders, responseHeaders);
+                exchange.recycle(false);
+                exchangePool.free(exchange);
+            }
+        }
     }
 
     public ConnectedChannel getChannel() {
@@ -24,22 +24,47 @@ package org.xnio.http.server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.Pooled;
 import org.xnio.channels.AssembledConnectedStreamChannel;
 import org.xnio.channels.ConnectedStreamChannel;
 import org.xnio.channels.StreamSinkChannel;
 import org.xnio.channels.StreamSourceChannel;
 import org.xnio.http.util.Attachable;
 import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+import org.xnio.http.util.Methods;
 import org.xnio.http.util.Protocols;
+import org.xnio.http.util.StatusCodes;
 
 /**
  * An HTTP server request/response exchange.  An instance of this class is constructed as soon as the request headers are
- * fully parsed.
+ * fully parsed.  If {@linkplain org.xnio.http.HttpOptions#HTTP_EXCHANGE_RECYCLING recycling} is enabled, the instance is
+ * reused for a later request once the request has been read and the response written in full, so it must not be used
+ * after that point.
  *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class HttpServerExchange extends Attachable {
-    private final HttpServerConnection connection;
+    private static final ByteBuffer CRLF;
+    private static final HeaderMap ERROR_HEADERS;
+
+    static {
+        final ByteBuffer crlf = ByteBuffer.allocateDirect(2);
+        crlf.put((byte) '\r').put((byte) '\n').flip();
+        CRLF = crlf.asReadOnlyBuffer();
+        final HeaderMap errorHeaders = new HeaderMap();
+        errorHeaders.add(Headers.CONTENT_LENGTH, "0");
+        errorHeaders.lock();
+        ERROR_HEADERS = errorHeaders;
+    }
+
+    private HttpServerConnection connection;
     private HeaderMap requestHeaders;
     private HeaderMap responseHeaders;
     private int responseCode = 200;
@@ -60,75 +85,175 @@ public final class HttpServerExchange extends Attachable {
     private String relativePath;
     private StreamSourceChannel requestChannel;
     private StreamSinkChannel responseChannel;
+    private HttpRequestChannel httpRequestChannel;
+    private HttpResponseChannel httpResponseChannel;
+    private volatile boolean requestTerminated;
+    private volatile boolean responseTerminated;
+    private boolean responseStarted;
+    /**
+     * {@code true} if the response channel can encode a chunked body.
+     */
+    private boolean chunkedResponseAvailable;
+    /**
+     * {@code true} if the connection may be kept open for further requests after this exchange.
+     */
+    private boolean persistent;
+    /**
+     * Tasks to run when the response is started, before the response headers are locked.
+     */
+    private List<Runnable> responseStartTasks;
+    /**
+     * Set while the exchange is recycled and waiting to be reused.
+     */
+    private boolean recycled;
+    /**
+     * Where the exchange was recycled, in debug mode.
+     */
+    private Throwable recycledAt;
 
-    protected HttpServerExchange(final HeaderMap requestHeaders, final HeaderMap responseHeaders, final String requestMethod) {
-        this.connection = null;
+    HttpServerExchange() {
+    }
+
+    /**
+     * Prepare this exchange, which is either new or recycled, for a newly read request.
+     *
+     * @param connection the connection
+     * @param requestHeaders the request headers
+     * @param responseHeaders the (empty) response headers
+     * @param requestMethod the request method
+     * @param contentLength the length of the request body, or -1 if it is delimited by a transfer coding
+     */
+    void init(final HttpServerConnection connection, final HeaderMap requestHeaders, final HeaderMap responseHeaders, final String requestMethod, final long contentLength) {
+        this.connection = connection;
         this.requestHeaders = requestHeaders;
         this.responseHeaders = responseHeaders;
         this.requestMethod = requestMethod;
+        // new channels each time, so that a channel kept from an earlier use is recognized as stale
+        requestChannel = httpRequestChannel = new HttpRequestChannel(this, connection, contentLength);
+        responseChannel = httpResponseChannel = new HttpResponseChannel(this, connection);
+        recycled = false;
+    }
+
+    /**
+     * Clear this exchange once it is complete, so that it can be reused for a later request.  Any further use of the
+     * exchange, or of its request and response channels, fails with an {@link IllegalStateException}; only late
+     * calls to close or suspend the channels are harmless.
+     *
+     * @param debug {@code true} to record where the exchange was recycled, for reporting later misuse
+     */
+    void recycle(final boolean debug) {
+        connection = null;
+        requestHeaders = null;
+        responseHeaders = null;
+        responseCode = 200;
+        requestMethod = null;
+        protocol = null;
+        requestScheme = null;
+        requestPath = null;
+        canonicalPath = null;
+        relativePath = null;
+        requestChannel = null;
+        responseChannel = null;
+        httpRequestChannel = null;
+        httpResponseChannel = null;
+        requestTerminated = false;
+        responseTerminated = false;
+        responseStarted = false;
+        chunkedResponseAvailable = false;
+        persistent = false;
+        responseStartTasks = null;
+        clearAttachments();
+        recycled = true;
+        recycledAt = debug ? new Throwable("Exchange recycled here") : null;
+    }
+
+    private void checkActive() {
+        if (recycled) {
+            throw new IllegalStateException("Exchange used after it was complete and recycled", recycledAt);
+        }
+    }
+
+    protected void checkAttachmentAccess() {
+        checkActive();
     }
 
     public String getProtocol() {
+        checkActive();
         return protocol;
     }
 
     public void setProtocol(final String protocol) {
+        checkActive();
         this.protocol = protocol;
     }
 
     public final boolean isHttp09() {
+        checkActive();
         return protocol.equals(Protocols.HTTP_0_9);
     }
 
     public final boolean isHttp10() {
+        checkActive();
         return protocol.equals(Protocols.HTTP_1_0);
     }
 
     public final boolean isHttp11() {
+        checkActive();
         return protocol.equals(Protocols.HTTP_1_1);
     }
 
     public String getRequestMethod() {
+        checkActive();
         return requestMethod;
     }
 
     public void setRequestMethod(final String requestMethod) {
+        checkActive();
         this.requestMethod = requestMethod;
     }
 
     public String getRequestScheme() {
+        checkActive();
         return requestScheme;
     }
 
     public void setRequestScheme(final String requestScheme) {
+        checkActive();
         this.requestScheme = requestScheme;
     }
 
     public String getRequestPath() {
+        checkActive();
         return requestPath;
     }
 
     public void setRequestPath(final String requestPath) {
+        checkActive();
         this.requestPath = requestPath;
     }
 
     public String getRelativePath() {
+        checkActive();
         return relativePath;
     }
 
     public void setRelativePath(final String relativePath) {
+        checkActive();
         this.relativePath = relativePath;
     }
 
     public String getCanonicalPath() {
+        checkActive();
         return canonicalPath;
     }
 
     public void setCanonicalPath(final String canonicalPath) {
+        checkActive();
         this.canonicalPath = canonicalPath;
     }
 
     public HttpServerConnection getConnection() {
+        checkActive();
         return connection;
     }
 
@@ -142,9 +267,14 @@ public final class HttpServerExchange extends Attachable {
      * read
      */
     public ConnectedStreamChannel upgradeChannel() throws IllegalStateException, IOException {
+        checkActive();
         setResponseCode(101);
         startResponse();
-        return new AssembledConnectedStreamChannel(getRequestChannel(), getResponseChannel());
+        // the upgraded protocol's data follows the head, for as long as the connection lasts
+        httpResponseChannel.setBody(true, -1L);
+        connection.upgrade();
+        // read from the push-back channel so that bytes which arrived along with the request are not lost
+        return new AssembledConnectedStreamChannel(connection.getPushBackChannel(), httpResponseChannel);
     }
 
     /**
@@ -153,6 +283,7 @@ public final class HttpServerExchange extends Attachable {
      * @return the source address of the HTTP request
      */
     public InetSocketAddress getSourceAddress() {
+        checkActive();
         return connection.getPeerAddress(InetSocketAddress.class);
     }
 
@@ -162,24 +293,29 @@ public final class HttpServerExchange extends Attachable {
      * @return the destination address of the HTTP request
      */
     public InetSocketAddress getDestinationAddress() {
+        checkActive();
         return connection.getLocalAddress(InetSocketAddress.class);
     }
 
     /**
-     * Get the request headers.
+     * Get the request headers.  The map is reused for a later request on the connection once this exchange is
+     * complete, so it must not be retained beyond that point.
      *
      * @return the request headers
      */
     public final HeaderMap getRequestHeaders() {
+        checkActive();
         return requestHeaders;
     }
 
     /**
-     * Get the response headers.
+     * Get the response headers.  The map is reused for a later response on the connection once this exchange is
+     * complete, so it must not be retained beyond that point.
      *
      * @return the response headers
      */
     public final HeaderMap getResponseHeaders() {
+        checkActive();
         return responseHeaders;
     }
 
@@ -193,6 +329,7 @@ public final class HttpServerExchange extends Attachable {
      * @return the channel for the inbound request
      */
     public final StreamSourceChannel getRequestChannel() {
+        checkActive();
         return requestChannel;
     }
 
@@ -205,6 +342,7 @@ public final class HttpServerExchange extends Attachable {
      * @param requestChannel the replacement channel
      */
     public final void setRequestChannel(final StreamSourceChannel requestChannel) {
+        checkActive();
         this.requestChannel = requestChannel;
     }
 
@@ -212,7 +350,16 @@ public final class HttpServerExchange extends Attachable {
      * Force the codec to treat the request as fully read.  Should only be invoked by handlers which downgrade
      * the socket or implement a transfer coding.
      */
-    final void terminateRequest() {}
+    final void terminateRequest() {
+        if (! requestTerminated) {
+            requestTerminated = true;
+            connection.exchangeTerminated();
+        }
+    }
+
+    final boolean isRequestTerminated() {
+        return requestTerminated;
+    }
 
     /**
      * Get the response channel. The {@link StreamSinkChannel#close()} or {@link StreamSinkChannel#shutdownWrites()}
@@ -226,6 +373,7 @@ public final class HttpServerExchange extends Attachable {
      * @return the response channel
      */
     public final StreamSinkChannel getResponseChannel() {
+        checkActive();
         return responseChannel;
     }
 
@@ -238,6 +386,7 @@ public final class HttpServerExchange extends Attachable {
      * @param responseChannel the replacement channel
      */
     public final void setResponseChannel(final StreamSinkChannel responseChannel) {
+        checkActive();
         this.responseChannel = responseChannel;
     }
 
@@ -249,6 +398,7 @@ public final class HttpServerExchange extends Attachable {
      * @throws IllegalStateException if a response or upgrade was already sent
      */
     public final void setResponseCode(final int responseCode) {
+        checkActive();
         this.responseCode = responseCode;
     }
 
@@ -258,6 +408,7 @@ public final class HttpServerExchange extends Attachable {
      * @return the response code
      */
     public int getResponseCode() {
+        checkActive();
         return responseCode;
     }
 
@@ -265,19 +416,280 @@ public final class HttpServerExchange extends Attachable {
      * Force the codec to treat the response as fully written.  Should only be invoked by handlers which downgrade
      * the socket or implement a transfer coding.
      */
-    final void terminateResponse() {}
+    final void terminateResponse() {
+        if (! responseTerminated) {
+            responseTerminated = true;
+            connection.exchangeTerminated();
+        }
+    }
+
+    final boolean isResponseTerminated() {
+        return responseTerminated;
+    }
+
+    /**
+     * Indicate that the response channel encodes the {@code chunked} transfer coding for responses which are started
+     * without a {@code Content-Length}.
+     */
+    void setChunkedResponseAvailable() {
+        chunkedResponseAvailable = true;
+    }
+
+    boolean isChunkedResponseAvailable() {
+        return chunkedResponseAvailable;
+    }
+
+    void setPersistent(final boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * Determine whether the connection is kept open for further requests after this exchange.  This is decided from
+     * the request when it is read, and may change when the response is started.
+     *
+     * @return {@code true} if the connection is persistent
+     */
+    boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Determine the declared length of a response body.
+     *
+     * @param headers the response headers
+     * @return the length, or -1 if the body is not delimited by a valid {@code Content-Length}
+     */
+    private static long responseLength(final HeaderMap headers) {
+        final String contentLength = headers.getFirst(Headers.CONTENT_LENGTH);
+        if (contentLength == null || headers.contains(Headers.TRANSFER_ENCODING)) {
+            return -1L;
+        }
+        try {
+            final long length = Long.parseLong(contentLength.trim());
+            return length < 0L ? -1L : length;
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Determine whether a comma-separated header has a given token in any of its values, ignoring case.
+     *
+     * @param headers the header map
+     * @param headerName the header name
+     * @param token the token
+     * @return {@code true} if the token is present
+     */
+    static boolean containsToken(final HeaderMap headers, final String headerName, final String token) {
+        if (! headers.contains(headerName)) {
+            return false;
+        }
+        final int len = token.length();
+        for (String value : headers.get(headerName)) {
+            final int valueLength = value.length();
+            int start = 0;
+            while (start < valueLength) {
+                int end = value.indexOf(',', start);
+                if (end == -1) {
+                    end = valueLength;
+                }
+                int s = start, e = end;
+                while (s < e && value.charAt(s) <= ' ') {
+                    s ++;
+                }
+                while (e > s && value.charAt(e - 1) <= ' ') {
+                    e --;
+                }
+                if (e - s == len && value.regionMatches(true, s, token, 0, len)) {
+                    return true;
+                }
+                start = end + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a task to run when the response is started, before the response headers are locked.  Tasks run in the
+     * order they were added.
+     *
+     * @param task the task
+     */
+    void addResponseStartTask(final Runnable task) {
+        List<Runnable> tasks = responseStartTasks;
+        if (tasks == null) {
+            responseStartTasks = tasks = new ArrayList<Runnable>(2);
+        }
+        tasks.add(task);
+    }
+
+    boolean isResponseBodyAllowed() {
+        final int code = responseCode;
+        return code >= 200 && code != 204 && code != 304 && ! requestMethod.equals(Methods.HEAD);
+    }
+
+    HttpRequestChannel getHttpRequestChannel() {
+        return httpRequestChannel;
+    }
+
+    HttpResponseChannel getHttpResponseChannel() {
+        return httpResponseChannel;
+    }
 
     /**
      * Transmit the response headers.  After this method successfully returns, the response channel may become writable.
      *  If this method fails, the response channel should have been closed automatically, however it is advisable to add
      * a {@code finally}-block to ensure that it is closed (and also the request channel if the request was not wholly
-     * read when the response headers are written).
+     * read when the response headers are written).  A {@code Date} header is added from the worker's
+     * {@link DateCache} unless one was already set.
+     * <p>
+     * A {@code Connection} header is added when the connection is to be closed after an HTTP/1.1 response, or kept
+     * open after an HTTP/1.0 one.  A response body with neither a length nor a chunked encoding is delimited by
+     * closing the connection.
+     * <p>
+     * The response head is encoded into a single pooled buffer, which is sent along with the first response data in
+     * one gathering write.
      *
      * @throws IOException if the response headers could not be sent
      * @throws IllegalStateException if the response headers were already sent
      */
     public void startResponse() throws IOException, IllegalStateException {
+        checkActive();
+        if (responseStarted) {
+            throw new IllegalStateException("Response already started");
+        }
+        responseStarted = true;
+        final List<Runnable> tasks = responseStartTasks;
+        if (tasks != null) {
+            responseStartTasks = null;
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+        final HeaderMap responseHeaders = this.responseHeaders;
+        if (isResponseBodyAllowed() && ! responseHeaders.contains(Headers.CONTENT_LENGTH) && ! responseHeaders.contains(Headers.TRANSFER_ENCODING)) {
+            // the length is not known up front
+            if (chunkedResponseAvailable) {
+                responseHeaders.put(Headers.TRANSFER_ENCODING, Headers.CHUNKED);
+            } else {
+                persistent = false;
+            }
+        }
+        if (responseCode >= 200 && ! isHttp09()) {
+            if (persistent && containsToken(responseHeaders, Headers.CONNECTION, Headers.CLOSE)) {
+                persistent = false;
+            } else if (! persistent) {
+                responseHeaders.put(Headers.CONNECTION, Headers.CLOSE);
+            } else if (isHttp10()) {
+                responseHeaders.put(Headers.CONNECTION, Headers.KEEP_ALIVE);
+            }
+        }
         responseHeaders.lock();
-        // todo send
+        if (isHttp09()) {
+            // HTTP/0.9 responses have no head, and the body is delimited by closing the connection
+            httpResponseChannel.setBody(true, -1L);
+            return;
+        }
+        final boolean bodyAllowed = isResponseBodyAllowed();
+        httpResponseChannel.setBody(bodyAllowed, bodyAllowed ? responseLength(responseHeaders) : -1L);
+        final ByteBuffer statusLine = StatusCodes.getStatusLine(protocol, responseCode);
+        final ByteBuffer dateLine = responseHeaders.contains(Headers.DATE) ? null : connection.getDateCache().getEncodedHeader();
+        final Pooled<ByteBuffer> pooled = connection.getBufferPool().allocate();
+        final ByteBuffer buffer = pooled.getResource();
+        final int fixedLength = statusLine.remaining() + (dateLine == null ? 0 : dateLine.remaining()) + 2;
+        if (fixedLength <= buffer.remaining()) {
+            buffer.put(statusLine);
+            if (dateLine != null) {
+                buffer.put(dateLine);
+            }
+            // leave room for the final CRLF
+            buffer.limit(buffer.limit() - 2);
+            if (responseHeaders.encodeTo(buffer)) {
+                buffer.limit(buffer.limit() + 2);
+                buffer.put((byte) '\r').put((byte) '\n');
+                buffer.flip();
+                httpResponseChannel.setHead(new ByteBuffer[] { buffer }, pooled);
+                return;
+            }
+            statusLine.flip();
+            if (dateLine != null) {
+                dateLine.flip();
+            }
+        }
+        // the head does not fit in one buffer, so send it in pieces
+        pooled.free();
+        if (dateLine == null) {
+            httpResponseChannel.setHead(new ByteBuffer[] { statusLine, responseHeaders.getEncoded(), CRLF.duplicate() }, null);
+        } else {
+            httpResponseChannel.setHead(new ByteBuffer[] { statusLine, dateLine, responseHeaders.getEncoded(), CRLF.duplicate() }, null);
+        }
+    }
+
+    /**
+     * Send a region of a file as the response body, starting the response first if it was not yet started.  A
+     * {@code Content-Length} header is added for the region unless one was already set.  On plain connections the
+     * file is transferred to the socket by the kernel without being copied into the process; on SSL connections it
+     * is copied through a pooled buffer.  The transfer proceeds asynchronously, after which the response channel is
+     * shut down and the file channel is closed.
+     *
+     * @param file the file to send
+     * @param position the position of the region in the file
+     * @param count the length of the region
+     * @throws IOException if the response could not be started
+     */
+    public void sendFile(final FileChannel file, final long position, final long count) throws IOException {
+        checkActive();
+        final long length = Math.max(0L, Math.min(count, file.size() - position));
+        if (! responseStarted) {
+            if (! responseHeaders.contains(Headers.CONTENT_LENGTH)) {
+                responseHeaders.put(Headers.CONTENT_LENGTH, Long.toString(length));
+            }
+            startResponse();
+        }
+        final Pooled<ByteBuffer> pooled = connection.isSecure() ? connection.getBufferPool().allocate() : null;
+        final FileTransferListener listener = new FileTransferListener(connection, file, position, length, pooled);
+        final StreamSinkChannel channel = responseChannel;
+        channel.getWriteSetter().set(listener);
+        listener.handleEvent(channel);
+    }
+
+    /**
+     * Send an empty response with the given status code.  Any response headers which were set are discarded, as is
+     * the rest of the request body.  The response is sent from pre-encoded buffers for the standard status codes.
+     *
+     * @param code the status code
+     * @throws IllegalStateException if the response was already started
+     */
+    public void sendErrorResponse(final int code) throws IllegalStateException {
+        checkActive();
+        if (responseStarted) {
+            throw new IllegalStateException("Response already started");
+        }
+        responseCode = code;
+        final HeaderMap headers = responseHeaders;
+        headers.clear();
+        headers.addAll(ERROR_HEADERS);
+        final HttpResponseChannel channel = httpResponseChannel;
+        try {
+            startResponse();
+            requestChannel.shutdownReads();
+            channel.shutdownWrites();
+            if (! channel.flush()) {
+                channel.getWriteSetter().set(new ChannelListener<HttpResponseChannel>() {
+                    public void handleEvent(final HttpResponseChannel channel) {
+                        try {
+                            if (channel.flush()) {
+                                channel.suspendWrites();
+                            }
+                        } catch (IOException e) {
+                            IoUtils.safeClose(connection);
+                        }
+                    }
+                });
+                channel.resumeWrites();
+            }
+        } catch (IOException e) {
+            IoUtils.safeClose(connection);
+        }
     }
 }
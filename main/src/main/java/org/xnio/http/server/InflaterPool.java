@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of {@link Inflater} instances along with their input and output buffers.  Each thread has a pool of its own,
+ * so that decompressors are reused by the I/O thread which reads the requests without any locking.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class InflaterPool {
+    /**
+     * The maximum number of idle decompressors kept by each thread.
+     */
+    private static final int MAX_IDLE = 16;
+
+    private final boolean gzip;
+    private final int bufferSize;
+    private final ThreadLocal<ArrayDeque<Entry>> idle = new ThreadLocal<ArrayDeque<Entry>>() {
+        protected ArrayDeque<Entry> initialValue() {
+            return new ArrayDeque<Entry>();
+        }
+    };
+
+    /**
+     * Construct a new instance.
+     *
+     * @param gzip {@code true} to read the raw deflate data of the {@code gzip} coding, {@code false} to read the
+     * zlib format used by the {@code deflate} coding
+     * @param bufferSize the size of the input and output buffers
+     */
+    InflaterPool(final boolean gzip, final int bufferSize) {
+        this.gzip = gzip;
+        this.bufferSize = bufferSize;
+    }
+
+    boolean isGzip() {
+        return gzip;
+    }
+
+    Entry allocate() {
+        final Entry entry = idle.get().poll();
+        return entry != null ? entry : new Entry(new Inflater(gzip), bufferSize);
+    }
+
+    void free(final Entry entry) {
+        final ArrayDeque<Entry> idle = this.idle.get();
+        if (idle.size() < MAX_IDLE) {
+            entry.inflater.reset();
+            entry.crc.reset();
+            entry.input.clear().flip();
+            idle.add(entry);
+        } else {
+            entry.inflater.end();
+        }
+    }
+
+    static final class Entry {
+        final Inflater inflater;
+        final CRC32 crc = new CRC32();
+        /**
+         * The compressed data which was read but not yet given to the inflater.
+         */
+        final ByteBuffer input;
+        final byte[] output;
+
+        Entry(final Inflater inflater, final int bufferSize) {
+            this.inflater = inflater;
+            input = ByteBuffer.allocate(bufferSize);
+            input.flip();
+            output = new byte[bufferSize];
+        }
+    }
+}
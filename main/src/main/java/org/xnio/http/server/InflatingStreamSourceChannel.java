@@ -0,0 +1,475 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+/**
+ * A request body channel which decompresses the {@code gzip} or {@code deflate} content coding as it is read.  The
+ * compressed data is read one buffer at a time and inflated straight into the caller's buffer where possible, so the
+ * body is never held in memory as a whole.  The ratio of decompressed to compressed bytes is limited, so that a small
+ * request cannot expand into an arbitrarily large body.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class InflatingStreamSourceChannel implements StreamSourceChannel {
+    private static final int GZIP_HEADER = 0;
+    private static final int GZIP_EXTRA_LENGTH = 1;
+    private static final int GZIP_EXTRA = 2;
+    private static final int GZIP_NAME = 3;
+    private static final int GZIP_COMMENT = 4;
+    private static final int GZIP_HEADER_CRC = 5;
+    private static final int BODY = 6;
+    private static final int GZIP_TRAILER = 7;
+    private static final int GZIP_NEXT_MEMBER = 8;
+    private static final int END = 9;
+    private static final int DONE = 10;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final StreamSourceChannel delegate;
+    private final InflaterPool pool;
+    private final int maxRatio;
+    private final ChannelListener.SimpleSetter<InflatingStreamSourceChannel> readSetter = new ChannelListener.SimpleSetter<InflatingStreamSourceChannel>();
+    private final ChannelListener.SimpleSetter<InflatingStreamSourceChannel> closeSetter = new ChannelListener.SimpleSetter<InflatingStreamSourceChannel>();
+    private final ChannelListener<StreamSourceChannel> delegateReadListener = new ChannelListener<StreamSourceChannel>() {
+        public void handleEvent(final StreamSourceChannel channel) {
+            ChannelListeners.invokeChannelListener(InflatingStreamSourceChannel.this, readSetter.get());
+        }
+    };
+    /**
+     * The decompressor in use, or {@code null} once the body is complete or the channel is closed.
+     */
+    private InflaterPool.Entry entry;
+    private int state;
+    private int flags;
+    private int count;
+    private long value;
+    private long compressed;
+    private long inflated;
+    private boolean resumed;
+    private boolean closed;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param delegate the channel to read the compressed body from
+     * @param pool the pool to take the decompressor from
+     * @param maxRatio the maximum ratio of decompressed to compressed bytes
+     */
+    InflatingStreamSourceChannel(final StreamSourceChannel delegate, final InflaterPool pool, final int maxRatio) {
+        this.delegate = delegate;
+        this.pool = pool;
+        this.maxRatio = maxRatio;
+        entry = pool.allocate();
+        state = pool.isGzip() ? GZIP_HEADER : BODY;
+    }
+
+    private void release() {
+        final InflaterPool.Entry entry = this.entry;
+        if (entry != null) {
+            this.entry = null;
+            pool.free(entry);
+        }
+    }
+
+    public int read(final ByteBuffer dst) throws IOException {
+        if (closed || state == DONE) {
+            return -1;
+        }
+        final InflaterPool.Entry entry = this.entry;
+        final Inflater inflater = entry.inflater;
+        final ByteBuffer input = entry.input;
+        int total = 0;
+        int res;
+        for (;;) {
+            switch (state) {
+                case BODY: {
+                    if (! dst.hasRemaining()) {
+                        return total;
+                    }
+                    res = inflate(dst);
+                    if (res > 0) {
+                        total += res;
+                        continue;
+                    }
+                    if (inflater.finished()) {
+                        // take back the bytes which follow the compressed data
+                        input.position(input.limit() - inflater.getRemaining());
+                        state = pool.isGzip() ? GZIP_TRAILER : END;
+                        count = 0;
+                        value = 0L;
+                        continue;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Compressed request body requires a preset dictionary");
+                    }
+                    if (! inflater.needsInput()) {
+                        return total;
+                    }
+                    res = fill();
+                    if (res == -1) {
+                        throw new EOFException("Compressed request body is truncated");
+                    } else if (res == 0) {
+                        return total;
+                    }
+                    inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                    input.position(input.limit());
+                    continue;
+                }
+                case END: {
+                    if (input.hasRemaining() || (res = fill()) > 0) {
+                        throw new IOException("Unexpected data after the compressed request body");
+                    } else if (res == 0) {
+                        return total;
+                    }
+                    finished();
+                    return total == 0 ? -1 : total;
+                }
+                default: {
+                    if (! input.hasRemaining()) {
+                        res = fill();
+                        if (res == 0) {
+                            return total;
+                        } else if (res == -1) {
+                            if (state == GZIP_NEXT_MEMBER) {
+                                finished();
+                                return total == 0 ? -1 : total;
+                            }
+                            throw new EOFException("Compressed request body is truncated");
+                        }
+                    }
+                    gzipByte(input.get() & 0xff);
+                    continue;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read more compressed data.  The input buffer must be empty.
+     *
+     * @return the number of bytes read, or -1 at the end of the body
+     * @throws IOException if an I/O error occurs
+     */
+    private int fill() throws IOException {
+        final ByteBuffer input = entry.input;
+        input.clear();
+        final int res;
+        try {
+            res = delegate.read(input);
+        } finally {
+            input.flip();
+        }
+        if (res > 0) {
+            compressed += res;
+        }
+        return res;
+    }
+
+    private int inflate(final ByteBuffer dst) throws IOException {
+        final InflaterPool.Entry entry = this.entry;
+        final Inflater inflater = entry.inflater;
+        final boolean gzip = pool.isGzip();
+        final int res;
+        try {
+            if (dst.hasArray()) {
+                final int offset = dst.arrayOffset() + dst.position();
+                res = inflater.inflate(dst.array(), offset, dst.remaining());
+                if (gzip) {
+                    entry.crc.update(dst.array(), offset, res);
+                }
+                dst.position(dst.position() + res);
+            } else {
+                final byte[] output = entry.output;
+                res = inflater.inflate(output, 0, Math.min(output.length, dst.remaining()));
+                if (gzip) {
+                    entry.crc.update(output, 0, res);
+                }
+                dst.put(output, 0, res);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed request body", e);
+        }
+        inflated += res;
+        if (inflated > compressed * maxRatio) {
+            throw new IOException("Compressed request body exceeds the maximum expansion ratio of " + maxRatio);
+        }
+        return res;
+    }
+
+    /**
+     * Process one byte of a {@code gzip} member header or trailer.
+     *
+     * @param b the byte
+     * @throws IOException if the header or trailer is invalid
+     */
+    private void gzipByte(final int b) throws IOException {
+        switch (state) {
+            case GZIP_NEXT_MEMBER: {
+                // another member follows
+                entry.inflater.reset();
+                entry.crc.reset();
+                state = GZIP_HEADER;
+                count = 0;
+                // fall through
+            }
+            case GZIP_HEADER: {
+                if (count == 0 && b != 0x1f || count == 1 && b != 0x8b || count == 2 && b != 8) {
+                    throw new IOException("Invalid gzip header in request body");
+                }
+                if (count == 3) {
+                    flags = b;
+                }
+                if (++ count == 10) {
+                    nextHeaderField();
+                }
+                return;
+            }
+            case GZIP_EXTRA_LENGTH: {
+                value |= (long) b << (count << 3);
+                if (++ count == 2) {
+                    state = GZIP_EXTRA;
+                    count = (int) value;
+                    if (count == 0) {
+                        nextHeaderField();
+                    }
+                }
+                return;
+            }
+            case GZIP_EXTRA: {
+                if (-- count == 0) {
+                    nextHeaderField();
+                }
+                return;
+            }
+            case GZIP_NAME:
+            case GZIP_COMMENT: {
+                if (b == 0) {
+                    nextHeaderField();
+                }
+                return;
+            }
+            case GZIP_HEADER_CRC: {
+                if (++ count == 2) {
+                    nextHeaderField();
+                }
+                return;
+            }
+            case GZIP_TRAILER: {
+                value |= (long) b << (count << 3);
+                if (++ count == 8) {
+                    if ((int) value != (int) entry.crc.getValue() || (int) (value >>> 32) != (int) entry.inflater.getBytesWritten()) {
+                        throw new IOException("Corrupt gzip data in request body");
+                    }
+                    state = GZIP_NEXT_MEMBER;
+                }
+                return;
+            }
+            default: {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    /**
+     * Move on to the next optional field of the {@code gzip} member header, or to the compressed data.
+     */
+    private void nextHeaderField() {
+        final int flags = this.flags;
+        count = 0;
+        value = 0L;
+        if ((flags & FEXTRA) != 0) {
+            this.flags = flags & ~FEXTRA;
+            state = GZIP_EXTRA_LENGTH;
+        } else if ((flags & FNAME) != 0) {
+            this.flags = flags & ~FNAME;
+            state = GZIP_NAME;
+        } else if ((flags & FCOMMENT) != 0) {
+            this.flags = flags & ~FCOMMENT;
+            state = GZIP_COMMENT;
+        } else if ((flags & FHCRC) != 0) {
+            this.flags = flags & ~FHCRC;
+            state = GZIP_HEADER_CRC;
+        } else {
+            state = BODY;
+            final ByteBuffer input = entry.input;
+            entry.inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            input.position(input.limit());
+        }
+    }
+
+    private void finished() {
+        state = DONE;
+        release();
+    }
+
+    public long read(final ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+        long total = 0L;
+        for (int i = 0; i < length; i ++) {
+            final ByteBuffer dst = dsts[offset + i];
+            if (dst.hasRemaining()) {
+                final int res = read(dst);
+                if (res == -1) {
+                    return total == 0L ? -1L : total;
+                }
+                total += res;
+                if (dst.hasRemaining()) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    public long transferTo(final long position, final long count, final FileChannel target) throws IOException {
+        return target.transferFrom(this, position, count);
+    }
+
+    public long transferTo(final long count, final ByteBuffer throughBuffer, final StreamSinkChannel target) throws IOException {
+        return IoUtils.transfer(this, count, throughBuffer, target);
+    }
+
+    private boolean isReadable() {
+        final InflaterPool.Entry entry = this.entry;
+        return entry == null || entry.input.hasRemaining() || state == BODY && ! entry.inflater.needsInput();
+    }
+
+    public void suspendReads() {
+        resumed = false;
+        delegate.suspendReads();
+    }
+
+    public void resumeReads() {
+        resumed = true;
+        if (isReadable()) {
+            // buffered bytes will not cause the delegate to become readable
+            getReadThread().execute(new Runnable() {
+                public void run() {
+                    if (resumed) {
+                        ChannelListeners.invokeChannelListener(InflatingStreamSourceChannel.this, readSetter.get());
+                    }
+                }
+            });
+        } else {
+            delegate.getReadSetter().set(delegateReadListener);
+            delegate.resumeReads();
+        }
+    }
+
+    public boolean isReadResumed() {
+        return resumed;
+    }
+
+    public void wakeupReads() {
+        resumeReads();
+    }
+
+    /**
+     * Discard the rest of the request body.  The decompressor is returned to its pool, and the rest of the compressed
+     * body is discarded by the underlying channel.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void shutdownReads() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        resumed = false;
+        release();
+        delegate.shutdownReads();
+    }
+
+    public void awaitReadable() throws IOException {
+        if (! isReadable()) {
+            delegate.awaitReadable();
+        }
+    }
+
+    public void awaitReadable(final long time, final TimeUnit timeUnit) throws IOException {
+        if (! isReadable()) {
+            delegate.awaitReadable(time, timeUnit);
+        }
+    }
+
+    public XnioExecutor getReadThread() {
+        return delegate.getReadThread();
+    }
+
+    public ChannelListener.Setter<InflatingStreamSourceChannel> getReadSetter() {
+        return readSetter;
+    }
+
+    public ChannelListener.Setter<InflatingStreamSourceChannel> getCloseSetter() {
+        return closeSetter;
+    }
+
+    public XnioWorker getWorker() {
+        return delegate.getWorker();
+    }
+
+    public boolean isOpen() {
+        return ! closed;
+    }
+
+    public void close() throws IOException {
+        if (! closed) {
+            shutdownReads();
+            ChannelListeners.invokeChannelListener(this, closeSetter.get());
+        }
+    }
+
+    public boolean supportsOption(final Option<?> option) {
+        return false;
+    }
+
+    public <T> T getOption(final Option<T> option) throws IOException {
+        return null;
+    }
+
+    public <T> T setOption(final Option<T> option, final T value) throws IllegalArgumentException, IOException {
+        return null;
+    }
+}
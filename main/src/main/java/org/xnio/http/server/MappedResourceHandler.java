@@ -0,0 +1,332 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xnio.Buffers;
+import org.xnio.IoUtils;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+import org.xnio.http.util.Methods;
+
+/**
+ * An HTTP handler which serves static files from a directory.  Files up to a configurable size are memory-mapped,
+ * and the mapped regions are kept in a cache which is bounded by total size; the least recently used regions are
+ * evicted, and unmapped as soon as no response is still being written from them.  Larger files are sent with
+ * {@link HttpServerExchange#sendFile(FileChannel, long, long)}.
+ * <p>
+ * The request path (without the query string) is resolved against the root directory after removing the configured
+ * prefix, which would normally be the path of the {@link PathHttpContext} the handler is registered under.  The path
+ * is used as-is, without percent-decoding; paths containing {@code .} or {@code ..} segments are rejected.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class MappedResourceHandler implements HttpHandler {
+    /**
+     * How often a cached region is checked against its file, in milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 1000L;
+
+    private final File root;
+    private final String prefix;
+    private final long maxCacheSize;
+    private final long maxMappedSize;
+    // access-ordered, so iteration starts at the least recently used region
+    private final LinkedHashMap<String, Region> cache = new LinkedHashMap<String, Region>(16, 0.75f, true);
+    private long cacheSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param root the directory to serve files from
+     * @param prefix the request path prefix to remove, or {@code ""} for none
+     * @param maxCacheSize the maximum total size of the mapped regions to cache
+     * @param maxMappedSize the maximum size of a file to map
+     */
+    public MappedResourceHandler(final File root, final String prefix, final long maxCacheSize, final long maxMappedSize) {
+        this.root = root;
+        this.prefix = prefix;
+        this.maxCacheSize = maxCacheSize;
+        this.maxMappedSize = Math.min(maxMappedSize, maxCacheSize);
+    }
+
+    public void handleRequest(final HttpServerExchange exchange) {
+        final String method = exchange.getRequestMethod();
+        final boolean head = method.equals(Methods.HEAD);
+        if (! head && ! method.equals(Methods.GET)) {
+            exchange.sendErrorResponse(405);
+            return;
+        }
+        final String path = StaticResources.getRelativePath(exchange, prefix);
+        if (path == null) {
+            exchange.sendErrorResponse(404);
+            return;
+        }
+        Region region = getRegion(path);
+        try {
+            if (region == null) {
+                final File file = StaticResources.resolve(root, path);
+                if (file == null || ! file.isFile()) {
+                    exchange.sendErrorResponse(404);
+                    return;
+                }
+                if (file.length() > maxMappedSize) {
+                    sendFile(exchange, file, head);
+                    return;
+                }
+                region = map(path, file);
+            }
+            final HeaderMap headers = exchange.getResponseHeaders();
+            headers.put(Headers.CONTENT_LENGTH, Long.toString(region.buffer.remaining()));
+            headers.put(Headers.CONTENT_TYPE, region.contentType);
+            exchange.startResponse();
+            final Region sent = region;
+            region = null;
+            final BufferWriteListener listener = new BufferWriteListener(exchange.getConnection(), head ? Buffers.EMPTY_BYTE_BUFFER : sent.buffer.duplicate(), new Runnable() {
+                public void run() {
+                    sent.release();
+                }
+            });
+            exchange.getResponseChannel().getWriteSetter().set(listener);
+            listener.handleEvent(exchange.getResponseChannel());
+        } catch (IOException e) {
+            IoUtils.safeClose(exchange.getConnection());
+        } finally {
+            if (region != null) {
+                region.release();
+            }
+        }
+    }
+
+    private static void sendFile(final HttpServerExchange exchange, final File file, final boolean head) throws IOException {
+        final FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            final HeaderMap headers = exchange.getResponseHeaders();
+            headers.put(Headers.CONTENT_LENGTH, Long.toString(channel.size()));
+            headers.put(Headers.CONTENT_TYPE, StaticResources.getContentType(file.getName()));
+            exchange.sendFile(channel, 0L, head ? 0L : channel.size());
+        } catch (IOException e) {
+            IoUtils.safeClose(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Get a cached region, checking that its file has not changed.  The caller must release the returned region.
+     *
+     * @param path the relative path
+     * @return the region, or {@code null} if there is no valid cached region
+     */
+    private Region getRegion(final String path) {
+        final Region region;
+        synchronized (cache) {
+            region = cache.get(path);
+            if (region == null || ! region.acquire()) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        final long now = System.currentTimeMillis();
+        if (now - region.checked < CHECK_INTERVAL) {
+            hits.incrementAndGet();
+            return region;
+        }
+        final File file = region.file;
+        if (file.lastModified() == region.lastModified && file.length() == region.buffer.remaining()) {
+            region.checked = now;
+            hits.incrementAndGet();
+            return region;
+        }
+        // the file has changed
+        synchronized (cache) {
+            if (cache.get(path) == region) {
+                cache.remove(path);
+                cacheSize -= region.buffer.remaining();
+                region.release();
+            }
+        }
+        region.release();
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Map a file and add it to the cache.  The caller must release the returned region.
+     *
+     * @param path the relative path
+     * @param file the file
+     * @return the region
+     * @throws IOException if the file could not be mapped
+     */
+    private Region map(final String path, final File file) throws IOException {
+        final long lastModified = file.lastModified();
+        final MappedByteBuffer buffer;
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            final FileChannel channel = is.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        } finally {
+            IoUtils.safeClose(is);
+        }
+        final Region region = new Region(file, buffer, lastModified, StaticResources.getContentType(file.getName()));
+        // one reference for the cache and one for the caller
+        region.acquire();
+        synchronized (cache) {
+            final Region old = cache.put(path, region);
+            if (old != null) {
+                cacheSize -= old.buffer.remaining();
+                old.release();
+            }
+            cacheSize += buffer.remaining();
+            final Iterator<Region> iterator = cache.values().iterator();
+            while (cacheSize > maxCacheSize && iterator.hasNext()) {
+                final Region eldest = iterator.next();
+                if (eldest != region) {
+                    iterator.remove();
+                    cacheSize -= eldest.buffer.remaining();
+                    eldest.release();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Get the number of requests which were served from a cached region.
+     *
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests which found no valid cached region.
+     *
+     * @return the number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of regions which were evicted to keep the cache within its size limit.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the total size of the cached regions.
+     *
+     * @return the cache size in bytes
+     */
+    public long getCacheSize() {
+        synchronized (cache) {
+            return cacheSize;
+        }
+    }
+
+    /**
+     * Remove all the regions from the cache.  Each region is unmapped once no response is being written from it.
+     */
+    public void clear() {
+        synchronized (cache) {
+            for (Region region : cache.values()) {
+                region.release();
+            }
+            cache.clear();
+            cacheSize = 0L;
+        }
+    }
+
+    /**
+     * A mapped file region.  The region is reference counted, and is unmapped when the last reference is released.
+     */
+    private static final class Region {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+        private final String contentType;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private volatile long checked;
+
+        Region(final File file, final MappedByteBuffer buffer, final long lastModified, final String contentType) {
+            this.file = file;
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            checked = System.currentTimeMillis();
+        }
+
+        boolean acquire() {
+            int refs;
+            do {
+                refs = this.refs.get();
+                if (refs == 0) {
+                    return false;
+                }
+            } while (! this.refs.compareAndSet(refs, refs + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Unmap a buffer right away, rather than when it is garbage collected.  This relies on the JDK's internal buffer
+     * cleaner; if it is not available, the buffer is left for the garbage collector.
+     *
+     * @param buffer the buffer to unmap
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable ignored) {
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+
+/**
+ * An incremental decoder for {@code multipart/form-data} bodies (RFC 2388, RFC 2046).  Part data is passed to the
+ * handler as slices of the buffer being decoded.  Since the boundary delimiter may be split between buffers, the bytes
+ * of a partial match at the end of a buffer are held back; they are never copied, because they are known to equal the
+ * start of the delimiter, so if the match fails they are passed on from the delimiter itself.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class MultipartFormDecoder implements FormDecoder {
+    private static final int PREAMBLE = 0;
+    private static final int BOUNDARY_TAIL = 1;
+    private static final int BOUNDARY_DASH = 2;
+    private static final int BOUNDARY_LF = 3;
+    private static final int HEADERS = 4;
+    private static final int DATA = 5;
+    private static final int EPILOGUE = 6;
+
+    private static final int MAX_HEADER_SIZE = 8192;
+
+    private final FormDataHandler handler;
+    /**
+     * The delimiter which precedes each boundary: CRLF, two hyphens, and the boundary.
+     */
+    private final byte[] delimiter;
+    private final StringBuilder headerBlock = new StringBuilder();
+    private int state;
+    /**
+     * The number of delimiter bytes matched so far; the body starts at the beginning of a line, so the CRLF of the
+     * first delimiter is taken as matched.
+     */
+    private int matchIndex = 2;
+    /**
+     * The position in the current buffer at which the current match started, or -1 if it started in an earlier one.
+     */
+    private int matchStart = -1;
+    /**
+     * The number of matched bytes which are held back from earlier buffers.
+     */
+    private int held;
+
+    MultipartFormDecoder(final String boundary, final FormDataHandler handler) {
+        final int length = boundary.length();
+        final byte[] delimiter = new byte[length + 4];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
+        delimiter[2] = '-';
+        delimiter[3] = '-';
+        for (int i = 0; i < length; i ++) {
+            delimiter[i + 4] = (byte) boundary.charAt(i);
+        }
+        this.delimiter = delimiter;
+        this.handler = handler;
+    }
+
+    public void decode(final ByteBuffer buffer) throws IOException {
+        final byte[] delimiter = this.delimiter;
+        final int limit = buffer.limit();
+        int pos = buffer.position();
+        int start = pos;
+        while (pos < limit) {
+            final byte b = buffer.get(pos ++);
+            switch (state) {
+                case PREAMBLE: {
+                    if (b == delimiter[matchIndex]) {
+                        if (++ matchIndex == delimiter.length) {
+                            matchIndex = 0;
+                            state = BOUNDARY_TAIL;
+                        }
+                    } else {
+                        matchIndex = b == '\r' ? 1 : 0;
+                    }
+                    break;
+                }
+                case BOUNDARY_TAIL: {
+                    if (b == '-') {
+                        state = BOUNDARY_DASH;
+                    } else if (b == '\r') {
+                        state = BOUNDARY_LF;
+                    } else if (b != ' ' && b != '\t') {
+                        throw new IOException("Invalid multipart boundary");
+                    }
+                    break;
+                }
+                case BOUNDARY_DASH: {
+                    if (b != '-') {
+                        throw new IOException("Invalid multipart boundary");
+                    }
+                    state = EPILOGUE;
+                    break;
+                }
+                case BOUNDARY_LF: {
+                    if (b != '\n') {
+                        throw new IOException("Invalid multipart boundary");
+                    }
+                    headerBlock.setLength(0);
+                    state = HEADERS;
+                    break;
+                }
+                case HEADERS: {
+                    final StringBuilder headerBlock = this.headerBlock;
+                    headerBlock.append((char) (b & 0xff));
+                    final int length = headerBlock.length();
+                    if (length > MAX_HEADER_SIZE) {
+                        throw new IOException("Multipart part headers are too large");
+                    }
+                    if (b == '\n' && (length == 2 || length >= 4 && headerBlock.charAt(length - 3) == '\n')) {
+                        startPart();
+                        state = DATA;
+                        start = pos;
+                    }
+                    break;
+                }
+                case DATA: {
+                    if (b == delimiter[matchIndex]) {
+                        if (matchIndex == 0) {
+                            matchStart = pos - 1;
+                        }
+                        if (++ matchIndex == delimiter.length) {
+                            if (matchStart > start) {
+                                emit(buffer, start, matchStart);
+                            }
+                            matchIndex = 0;
+                            matchStart = -1;
+                            held = 0;
+                            handler.endPart();
+                            state = BOUNDARY_TAIL;
+                        }
+                    } else if (matchIndex > 0) {
+                        if (held > 0) {
+                            // the held bytes were data after all
+                            handler.partData(ByteBuffer.wrap(delimiter, 0, held));
+                            held = 0;
+                        }
+                        matchIndex = 0;
+                        matchStart = -1;
+                        // this byte may start a new match
+                        pos --;
+                    }
+                    break;
+                }
+                case EPILOGUE: {
+                    pos = limit;
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException();
+                }
+            }
+        }
+        if (state == DATA) {
+            if (matchIndex == 0) {
+                if (limit > start) {
+                    emit(buffer, start, limit);
+                }
+            } else {
+                if (matchStart > start) {
+                    emit(buffer, start, matchStart);
+                }
+                matchStart = -1;
+                held = matchIndex;
+            }
+        }
+        buffer.position(limit);
+    }
+
+    private void emit(final ByteBuffer buffer, final int from, final int to) throws IOException {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        handler.partData(slice);
+    }
+
+    private void startPart() throws IOException {
+        final HeaderMap headers = new HeaderMap();
+        final StringBuilder headerBlock = this.headerBlock;
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = headerBlock.indexOf("\r\n", lineStart)) > lineStart) {
+            final int colon = headerBlock.indexOf(":", lineStart);
+            if (colon == -1 || colon > lineEnd) {
+                throw new IOException("Invalid multipart part header");
+            }
+            headers.add(headerBlock.substring(lineStart, colon).trim(), headerBlock.substring(colon + 1, lineEnd).trim());
+            lineStart = lineEnd + 2;
+        }
+        final String disposition = headers.getFirst(Headers.CONTENT_DISPOSITION);
+        final String name = disposition == null ? null : FormParser.getParameter(disposition, "name");
+        if (name == null) {
+            throw new IOException("Multipart part has no field name");
+        }
+        handler.startPart(name, FormParser.getParameter(disposition, "filename"), headers);
+    }
+
+    public void finish() throws IOException {
+        if (state != EPILOGUE) {
+            throw new EOFException("Multipart body is incomplete");
+        }
+    }
+}
@@ -25,6 +25,7 @@ package org.xnio.http.server;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
+import org.xnio.http.util.Headers;
 import org.xnio.http.util.SecureHashMap;
 
 /**
@@ -48,7 +49,7 @@ public final class NameVirtualHostHttpHandler implements HttpHandler {
     }
 
     public void handleRequest(final HttpServerExchange exchange) {
-        final String host = exchange.getRequestURI().getHost();
+        final String host = getHost(exchange.getRequestHeaders().getFirst(Headers.HOST));
         String testHost = host == null ? null : host.toLowerCase(Locale.US);
         NameVirtualHostContext matched;
         HttpHandler handler;
@@ -73,15 +74,33 @@ public final class NameVirtualHostHttpHandler implements HttpHandler {
                     }
                 }
                 testHost = testHost.substring(1);
+            } else {
+                break;
             }
         }
         handler = fallbackHandler;
         if (handler != null) {
             handler.handleRequest(exchange);
+            return;
         }
         exchange.sendErrorResponse(500);
     }
 
+    /**
+     * Get the host name from a {@code Host} header value, without the port.
+     *
+     * @param hostHeader the header value, or {@code null} if there is none
+     * @return the host name, or {@code null} if there is none
+     */
+    private static String getHost(final String hostHeader) {
+        if (hostHeader == null) {
+            return null;
+        }
+        final int colon = hostHeader.lastIndexOf(':');
+        // IPv6 literals contain colons of their own
+        return colon == -1 || hostHeader.indexOf(']', colon) != -1 ? hostHeader : hostHeader.substring(0, colon);
+    }
+
     public HttpHandler getFallbackHandler() {
         return fallbackHandler;
     }
@@ -0,0 +1,380 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.xnio.Buffers;
+import org.xnio.IoUtils;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+import org.xnio.http.util.Methods;
+
+/**
+ * An HTTP handler which serves static files from memory, along with {@code gzip} and {@code deflate} variants
+ * which are compressed once, when the file is loaded.  The variant is chosen by the request's
+ * {@code Accept-Encoding} header.  Each variant has an entity tag which is computed at load time, and conditional
+ * requests ({@code If-None-Match} and {@code If-Modified-Since}) are answered with a {@code 304} response from the
+ * cache alone.  The response headers of each variant are prepared and locked ahead of time, so they are shared by
+ * all the responses which use them.
+ * <p>
+ * Requests for other methods, for missing files and for files which are too large to cache are passed on to the
+ * next handler (for example a {@link MappedResourceHandler}).  Paths are resolved in the same way as by
+ * {@code MappedResourceHandler}.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class PrecompressedResourceHandler implements HttpHandler {
+    /**
+     * How often a cached resource is checked against its file, in milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 1000L;
+
+    private final File root;
+    private final String prefix;
+    private final long maxCacheSize;
+    private final long maxResourceSize;
+    private final HttpHandler next;
+    // access-ordered, so iteration starts at the least recently used resource
+    private final LinkedHashMap<String, Resource> cache = new LinkedHashMap<String, Resource>(16, 0.75f, true);
+    private long cacheSize;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param root the directory to serve files from
+     * @param prefix the request path prefix to remove, or {@code ""} for none
+     * @param maxCacheSize the maximum total size of the cached resources, including their compressed variants
+     * @param maxResourceSize the maximum size of a file to cache
+     * @param next the handler for requests which are not served from the cache, or {@code null} to send a 404
+     */
+    public PrecompressedResourceHandler(final File root, final String prefix, final long maxCacheSize, final long maxResourceSize, final HttpHandler next) {
+        this.root = root;
+        this.prefix = prefix;
+        this.maxCacheSize = maxCacheSize;
+        this.maxResourceSize = Math.min(maxResourceSize, maxCacheSize);
+        this.next = next;
+    }
+
+    public void handleRequest(final HttpServerExchange exchange) {
+        final String method = exchange.getRequestMethod();
+        final boolean head = method.equals(Methods.HEAD);
+        final String path;
+        if ((head || method.equals(Methods.GET)) && (path = StaticResources.getRelativePath(exchange, prefix)) != null) {
+            final Resource resource;
+            try {
+                resource = getResource(path);
+            } catch (IOException e) {
+                exchange.sendErrorResponse(500);
+                return;
+            }
+            if (resource != null) {
+                send(exchange, resource, head);
+                return;
+            }
+        }
+        final HttpHandler next = this.next;
+        if (next == null) {
+            exchange.sendErrorResponse(404);
+        } else {
+            next.handleRequest(exchange);
+        }
+    }
+
+    private static void send(final HttpServerExchange exchange, final Resource resource, final boolean head) {
+        final HeaderMap requestHeaders = exchange.getRequestHeaders();
+        final Variant variant = resource.select(requestHeaders.getFirst(Headers.ACCEPT_ENCODING));
+        final boolean notModified;
+        final String ifNoneMatch = requestHeaders.getFirst(Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            notModified = matches(ifNoneMatch, variant.etag);
+        } else {
+            final String ifModifiedSince = requestHeaders.getFirst(Headers.IF_MODIFIED_SINCE);
+            notModified = ifModifiedSince != null && ! resource.isModifiedSince(ifModifiedSince);
+        }
+        final ByteBuffer body;
+        if (notModified) {
+            exchange.setResponseCode(304);
+            exchange.getResponseHeaders().addAll(variant.notModifiedHeaders);
+            body = Buffers.EMPTY_BYTE_BUFFER;
+        } else {
+            exchange.getResponseHeaders().addAll(variant.headers);
+            body = head ? Buffers.EMPTY_BYTE_BUFFER : variant.body.duplicate();
+        }
+        try {
+            exchange.startResponse();
+            final BufferWriteListener listener = new BufferWriteListener(exchange.getConnection(), body, null);
+            exchange.getResponseChannel().getWriteSetter().set(listener);
+            listener.handleEvent(exchange.getResponseChannel());
+        } catch (IOException e) {
+            IoUtils.safeClose(exchange.getConnection());
+        }
+    }
+
+    /**
+     * Determine whether an {@code If-None-Match} header value matches an entity tag, using the weak comparison.
+     *
+     * @param ifNoneMatch the header value
+     * @param etag the entity tag
+     * @return {@code true} if the value matches
+     */
+    private static boolean matches(final String ifNoneMatch, final String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a resource, loading it if it is not cached or its file has changed.
+     *
+     * @param path the relative path
+     * @return the resource, or {@code null} if the file does not exist or is too large to cache
+     * @throws IOException if the file could not be read
+     */
+    private Resource getResource(final String path) throws IOException {
+        Resource resource;
+        synchronized (cache) {
+            resource = cache.get(path);
+        }
+        if (resource != null) {
+            final long now = System.currentTimeMillis();
+            if (now - resource.checked < CHECK_INTERVAL) {
+                return resource;
+            }
+            final File file = resource.file;
+            if (file.lastModified() == resource.lastModified && file.length() == resource.length) {
+                resource.checked = now;
+                return resource;
+            }
+        }
+        final File file = StaticResources.resolve(root, path);
+        if (file == null || ! file.isFile() || file.length() > maxResourceSize) {
+            if (resource != null) {
+                remove(path, resource);
+            }
+            return null;
+        }
+        resource = load(file);
+        synchronized (cache) {
+            final Resource old = cache.put(path, resource);
+            if (old != null) {
+                cacheSize -= old.size;
+            }
+            cacheSize += resource.size;
+            final Iterator<Resource> iterator = cache.values().iterator();
+            while (cacheSize > maxCacheSize && iterator.hasNext()) {
+                final Resource eldest = iterator.next();
+                if (eldest != resource) {
+                    iterator.remove();
+                    cacheSize -= eldest.size;
+                }
+            }
+        }
+        return resource;
+    }
+
+    private void remove(final String path, final Resource resource) {
+        synchronized (cache) {
+            if (cache.get(path) == resource) {
+                cache.remove(path);
+                cacheSize -= resource.size;
+            }
+        }
+    }
+
+    private static Resource load(final File file) throws IOException {
+        final long lastModified = file.lastModified();
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream is = new DataInputStream(new FileInputStream(file));
+        try {
+            is.readFully(bytes);
+        } finally {
+            IoUtils.safeClose(is);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        final String tag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length);
+        final String contentType = StaticResources.getContentType(file.getName());
+        final SimpleDateFormat format = createDateFormat();
+        final String lastModifiedString = format.format(new Date(lastModified));
+        final boolean compressible = isCompressible(contentType);
+        final Variant identity = new Variant(bytes, null, tag, contentType, lastModifiedString, compressible);
+        Variant gzip = null;
+        Variant deflate = null;
+        if (compressible) {
+            final ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length);
+            final GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped);
+            gzipStream.write(bytes);
+            gzipStream.close();
+            if (gzipped.size() < bytes.length) {
+                gzip = new Variant(gzipped.toByteArray(), "gzip", tag, contentType, lastModifiedString, true);
+            }
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.length);
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                final DeflaterOutputStream deflateStream = new DeflaterOutputStream(deflated, deflater);
+                deflateStream.write(bytes);
+                deflateStream.close();
+            } finally {
+                deflater.end();
+            }
+            if (deflated.size() < bytes.length) {
+                deflate = new Variant(deflated.toByteArray(), "deflate", tag, contentType, lastModifiedString, true);
+            }
+        }
+        return new Resource(file, lastModified, bytes.length, lastModifiedString, identity, gzip, deflate);
+    }
+
+    private static boolean isCompressible(final String contentType) {
+        return contentType.startsWith("text/") || contentType.equals("application/javascript") || contentType.equals("application/json") || contentType.equals("application/xml") || contentType.equals("image/svg+xml");
+    }
+
+    private static SimpleDateFormat createDateFormat() {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Remove all the resources from the cache.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            cacheSize = 0L;
+        }
+    }
+
+    /**
+     * Get the total size of the cached resources, including their compressed variants.
+     *
+     * @return the cache size in bytes
+     */
+    public long getCacheSize() {
+        synchronized (cache) {
+            return cacheSize;
+        }
+    }
+
+    private static final class Resource {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final String lastModifiedString;
+        private final Variant identity;
+        private final Variant gzip;
+        private final Variant deflate;
+        private final long size;
+        private volatile long checked;
+
+        Resource(final File file, final long lastModified, final long length, final String lastModifiedString, final Variant identity, final Variant gzip, final Variant deflate) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.lastModifiedString = lastModifiedString;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.deflate = deflate;
+            size = identity.body.capacity() + (gzip == null ? 0 : gzip.body.capacity()) + (deflate == null ? 0 : deflate.body.capacity());
+            checked = System.currentTimeMillis();
+        }
+
+        Variant select(final String acceptEncoding) {
+            if (acceptEncoding != null) {
+                if (gzip != null && ContentEncodingHandler.accepts(acceptEncoding, Headers.GZIP)) {
+                    return gzip;
+                }
+                if (deflate != null && ContentEncodingHandler.accepts(acceptEncoding, Headers.DEFLATE)) {
+                    return deflate;
+                }
+            }
+            return identity;
+        }
+
+        boolean isModifiedSince(final String ifModifiedSince) {
+            if (ifModifiedSince.equals(lastModifiedString)) {
+                // the usual case: the client sends back the date we sent it
+                return false;
+            }
+            try {
+                // HTTP dates have a resolution of one second
+                return lastModified / 1000L > createDateFormat().parse(ifModifiedSince).getTime() / 1000L;
+            } catch (ParseException e) {
+                return true;
+            }
+        }
+    }
+
+    private static final class Variant {
+        private final ByteBuffer body;
+        private final String etag;
+        private final HeaderMap headers;
+        private final HeaderMap notModifiedHeaders;
+
+        Variant(final byte[] bytes, final String coding, final String tag, final String contentType, final String lastModified, final boolean vary) {
+            final ByteBuffer body = ByteBuffer.allocateDirect(bytes.length);
+            body.put(bytes).flip();
+            this.body = body.asReadOnlyBuffer();
+            etag = coding == null ? "\"" + tag + "\"" : "\"" + tag + "-" + coding + "\"";
+            final HeaderMap notModifiedHeaders = new HeaderMap();
+            notModifiedHeaders.add(Headers.ETAG, etag);
+            notModifiedHeaders.add(Headers.LAST_MODIFIED, lastModified);
+            if (vary) {
+                notModifiedHeaders.add(Headers.VARY, Headers.ACCEPT_ENCODING);
+            }
+            final HeaderMap headers = new HeaderMap();
+            headers.addAll(notModifiedHeaders);
+            headers.add(Headers.CONTENT_LENGTH, Integer.toString(bytes.length));
+            headers.add(Headers.CONTENT_TYPE, contentType);
+            if (coding != null) {
+                headers.add(Headers.CONTENT_ENCODING, coding);
+            }
+            notModifiedHeaders.lock();
+            headers.lock();
+            this.headers = headers;
+            this.notModifiedHeaders = notModifiedHeaders;
+        }
+    }
+}
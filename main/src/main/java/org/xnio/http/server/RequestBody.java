@@ -0,0 +1,115 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.xnio.Pooled;
+
+/**
+ * A complete request body, as collected by a {@link RequestBodyAggregator}.  A body is held either in a chain of
+ * pooled buffers or in a temporary file; in either case it must be closed once it is no longer needed, to free the
+ * buffers or delete the file.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class RequestBody implements Closeable {
+    private final List<Pooled<ByteBuffer>> buffers;
+    private final File file;
+    private final long length;
+    private boolean closed;
+
+    RequestBody(final List<Pooled<ByteBuffer>> buffers, final File file, final long length) {
+        this.buffers = buffers;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Get the length of the body.
+     *
+     * @return the length in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Determine whether the body is held in memory.
+     *
+     * @return {@code true} if the body is held in buffers, {@code false} if it is held in a file
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Get the buffers holding the body.  The returned buffers are read-only views, and are only valid until the body
+     * is closed.
+     *
+     * @return the buffers, in order
+     * @throws IllegalStateException if the body is held in a file, or is closed
+     */
+    public ByteBuffer[] getBuffers() throws IllegalStateException {
+        if (file != null) {
+            throw new IllegalStateException("Request body is held in a file");
+        }
+        if (closed) {
+            throw new IllegalStateException("Request body is closed");
+        }
+        final List<Pooled<ByteBuffer>> buffers = this.buffers;
+        final ByteBuffer[] array = new ByteBuffer[buffers.size()];
+        for (int i = 0; i < array.length; i ++) {
+            array[i] = buffers.get(i).getResource().asReadOnlyBuffer();
+        }
+        return array;
+    }
+
+    /**
+     * Get the file holding the body.  The file is deleted when the body is closed.
+     *
+     * @return the file, or {@code null} if the body is held in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Free the buffers or delete the file holding the body.  This method is idempotent.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (file != null) {
+            file.delete();
+        } else {
+            for (Pooled<ByteBuffer> pooled : buffers) {
+                pooled.free();
+            }
+        }
+    }
+}
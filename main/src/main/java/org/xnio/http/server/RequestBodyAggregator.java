@@ -0,0 +1,281 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.xnio.ChannelListener;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+import org.xnio.IoUtils;
+import org.xnio.Pool;
+import org.xnio.Pooled;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+
+/**
+ * A utility which reads a whole request body without blocking.  The body is collected into a chain of buffers from
+ * the connection's buffer pool until it exceeds the memory threshold, at which point it is moved to a temporary file
+ * and the rest of it is transferred straight to the file.  A body which is known from its {@code Content-Length} to
+ * exceed the threshold is transferred to the file from the start.  So, the heap used by each request body is bounded
+ * by the threshold, however many are read at once.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class RequestBodyAggregator {
+    private final long memoryThreshold;
+    private final long maxSize;
+    private final File directory;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param memoryThreshold the largest body to hold in memory
+     * @param maxSize the largest body to accept at all
+     * @param directory the directory for temporary files, or {@code null} for the default temporary directory
+     */
+    public RequestBodyAggregator(final long memoryThreshold, final long maxSize, final File directory) {
+        if (memoryThreshold < 0L || maxSize < memoryThreshold) {
+            throw new IllegalArgumentException("Invalid size limits");
+        }
+        this.memoryThreshold = memoryThreshold;
+        this.maxSize = maxSize;
+        this.directory = directory;
+    }
+
+    /**
+     * Read the request body of an exchange.  The request channel's read listener is replaced until the body is
+     * complete.  If the body is larger than the maximum size, the returned future fails and the request channel is
+     * left as it is, so that the handler may send an error response.
+     *
+     * @param exchange the exchange
+     * @return the future body
+     */
+    public IoFuture<RequestBody> aggregate(final HttpServerExchange exchange) {
+        final FutureResult<RequestBody> result = new FutureResult<RequestBody>();
+        final Reader reader = new Reader(exchange, result);
+        final StreamSourceChannel channel = exchange.getRequestChannel();
+        try {
+            final long contentLength = getContentLength(exchange.getRequestHeaders());
+            if (contentLength > maxSize) {
+                throw tooLarge();
+            } else if (contentLength > memoryThreshold) {
+                reader.openFile();
+            }
+        } catch (IOException e) {
+            reader.failed(e);
+            return result.getIoFuture();
+        }
+        channel.getReadSetter().set(reader);
+        reader.handleEvent(channel);
+        return result.getIoFuture();
+    }
+
+    /**
+     * Get the length of the body as it will be read from the request channel, if it is known.
+     *
+     * @param requestHeaders the request headers
+     * @return the length, or -1 if it is not known
+     */
+    private static long getContentLength(final HeaderMap requestHeaders) {
+        if (requestHeaders.contains(Headers.CONTENT_ENCODING) || requestHeaders.contains(Headers.TRANSFER_ENCODING)) {
+            // the channel will not return the number of bytes given in the header
+            return -1L;
+        }
+        final String contentLength = requestHeaders.getFirst(Headers.CONTENT_LENGTH);
+        if (contentLength == null) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private IOException tooLarge() {
+        return new IOException("Request body exceeds the maximum size of " + maxSize + " bytes");
+    }
+
+    private final class Reader implements ChannelListener<StreamSourceChannel> {
+        private final HttpServerExchange exchange;
+        private final FutureResult<RequestBody> result;
+        private final List<Pooled<ByteBuffer>> buffers = new ArrayList<Pooled<ByteBuffer>>();
+        private File file;
+        private FileChannel fileChannel;
+        private ByteBuffer probe;
+        private long length;
+
+        Reader(final HttpServerExchange exchange, final FutureResult<RequestBody> result) {
+            this.exchange = exchange;
+            this.result = result;
+        }
+
+        public void handleEvent(final StreamSourceChannel channel) {
+            try {
+                if (read(channel)) {
+                    channel.suspendReads();
+                    complete();
+                } else {
+                    channel.resumeReads();
+                }
+            } catch (IOException e) {
+                channel.suspendReads();
+                failed(e);
+            }
+        }
+
+        /**
+         * Read as much of the body as is available.
+         *
+         * @param channel the request channel
+         * @return {@code true} if the body is complete
+         * @throws IOException if the body could not be read or stored
+         */
+        private boolean read(final StreamSourceChannel channel) throws IOException {
+            if (fileChannel == null) {
+                final List<Pooled<ByteBuffer>> buffers = this.buffers;
+                final Pool<ByteBuffer> pool = exchange.getConnection().getBufferPool();
+                for (;;) {
+                    final int size = buffers.size();
+                    Pooled<ByteBuffer> pooled = size == 0 ? null : buffers.get(size - 1);
+                    if (pooled == null || ! pooled.getResource().hasRemaining()) {
+                        pooled = pool.allocate();
+                        buffers.add(pooled);
+                    }
+                    final int res = channel.read(pooled.getResource());
+                    if (res == -1) {
+                        return true;
+                    } else if (res == 0) {
+                        return false;
+                    }
+                    length += res;
+                    if (length > memoryThreshold) {
+                        spill();
+                        break;
+                    }
+                }
+            }
+            final FileChannel fileChannel = this.fileChannel;
+            for (;;) {
+                // allow one byte more than the maximum, to detect a body which is too large
+                final long count = maxSize - length < Long.MAX_VALUE ? maxSize - length + 1L : Long.MAX_VALUE;
+                final long res = fileChannel.transferFrom(channel, length, count);
+                if (res > 0L) {
+                    length += res;
+                    checkSize();
+                    continue;
+                }
+                // nothing was transferred, either because no data is available or because the body is complete
+                ByteBuffer probe = this.probe;
+                if (probe == null) {
+                    this.probe = probe = ByteBuffer.allocate(1);
+                }
+                probe.clear();
+                final int cnt = channel.read(probe);
+                if (cnt == -1) {
+                    return true;
+                } else if (cnt == 0) {
+                    return false;
+                }
+                probe.flip();
+                fileChannel.write(probe, length);
+                length += cnt;
+                checkSize();
+            }
+        }
+
+        private void checkSize() throws IOException {
+            if (length > maxSize) {
+                throw tooLarge();
+            }
+        }
+
+        void openFile() throws IOException {
+            final File file = this.file = File.createTempFile("request", ".body", directory);
+            fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        /**
+         * Move the buffered part of the body to a temporary file.
+         */
+        private void spill() throws IOException {
+            openFile();
+            final List<Pooled<ByteBuffer>> buffers = this.buffers;
+            final ByteBuffer[] array = new ByteBuffer[buffers.size()];
+            for (int i = 0; i < array.length; i ++) {
+                array[i] = buffers.get(i).getResource();
+                array[i].flip();
+            }
+            final FileChannel fileChannel = this.fileChannel;
+            long remaining = length;
+            while (remaining > 0L) {
+                remaining -= fileChannel.write(array);
+            }
+            freeBuffers();
+            checkSize();
+        }
+
+        private void freeBuffers() {
+            for (Pooled<ByteBuffer> pooled : buffers) {
+                pooled.free();
+            }
+            buffers.clear();
+        }
+
+        private void complete() {
+            final RequestBody body;
+            if (fileChannel == null) {
+                for (Pooled<ByteBuffer> pooled : buffers) {
+                    pooled.getResource().flip();
+                }
+                body = new RequestBody(new ArrayList<Pooled<ByteBuffer>>(buffers), null, length);
+                buffers.clear();
+            } else {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    failed(e);
+                    return;
+                }
+                body = new RequestBody(null, file, length);
+            }
+            result.setResult(body);
+        }
+
+        void failed(final IOException e) {
+            freeBuffers();
+            IoUtils.safeClose(fileChannel);
+            if (file != null) {
+                file.delete();
+            }
+            result.setException(e);
+        }
+    }
+}
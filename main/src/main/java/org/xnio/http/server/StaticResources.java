@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Helpers shared by the static resource handlers.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class StaticResources {
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+    static {
+        final Map<String, String> types = CONTENT_TYPES;
+        types.put("html", "text/html");
+        types.put("htm", "text/html");
+        types.put("css", "text/css");
+        types.put("js", "application/javascript");
+        types.put("json", "application/json");
+        types.put("txt", "text/plain");
+        types.put("xml", "application/xml");
+        types.put("png", "image/png");
+        types.put("jpg", "image/jpeg");
+        types.put("jpeg", "image/jpeg");
+        types.put("gif", "image/gif");
+        types.put("svg", "image/svg+xml");
+        types.put("ico", "image/x-icon");
+        types.put("woff", "application/font-woff");
+        types.put("pdf", "application/pdf");
+    }
+
+    private StaticResources() {
+    }
+
+    /**
+     * Get the path of the requested resource relative to a prefix.  The query string is not included.
+     *
+     * @param exchange the exchange
+     * @param prefix the prefix
+     * @return the relative path, or {@code null} if the request path does not start with the prefix
+     */
+    static String getRelativePath(final HttpServerExchange exchange, final String prefix) {
+        String path = exchange.getRequestPath();
+        final int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : null;
+    }
+
+    /**
+     * Resolve a relative path against a root directory.
+     *
+     * @param root the root directory
+     * @param path the relative path
+     * @return the file, or {@code null} if the path is not acceptable
+     */
+    static File resolve(final File root, final String path) {
+        if (path.indexOf('\\') != -1 || path.indexOf('\0') != -1) {
+            return null;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.equals(".") || segment.equals("..")) {
+                return null;
+            }
+        }
+        return new File(root, path);
+    }
+
+    static String getContentType(final String name) {
+        final int dot = name.lastIndexOf('.');
+        final String type = dot == -1 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.US));
+        return type == null ? "application/octet-stream" : type;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import org.xnio.XnioExecutor;
+
+/**
+ * A hashed timing wheel which keeps the connection deadlines of one IO thread.  Time advances in ticks of
+ * {@value #TICK_MILLIS}ms, and each timeout hangs off the slot of the tick it is due in, so a timeout is scheduled or
+ * cancelled in constant time no matter how many there are.  The wheel only ticks while it holds timeouts.
+ * <p>
+ * Timeouts are moved lazily: pushing a deadline further out only records the new deadline, and the timeout is moved
+ * to its new slot when its old one comes round.  A connection which is active all the time therefore reschedules its
+ * deadlines without taking a lock or allocating anything.  Expired tasks run on the wheel's IO thread.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class TimerWheel {
+    private static final Map<XnioExecutor, TimerWheel> WHEELS = new WeakHashMap<XnioExecutor, TimerWheel>();
+
+    static final long TICK_MILLIS = 100L;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    // weak, so that the wheel does not keep its executor in the map
+    private final WeakReference<XnioExecutor> executor;
+    private final Timeout[] slots = new Timeout[WHEEL_SIZE];
+    private final Runnable tickTask = new Runnable() {
+        public void run() {
+            tick();
+        }
+    };
+    /**
+     * The number of ticks elapsed; deadlines are expressed in ticks.
+     */
+    private volatile long tick;
+    /**
+     * The time of tick zero, in {@link System#nanoTime()} terms.
+     */
+    private long base;
+    private int count;
+    private boolean running;
+
+    private TimerWheel(final XnioExecutor executor) {
+        this.executor = new WeakReference<XnioExecutor>(executor);
+    }
+
+    /**
+     * Get the timing wheel of an IO thread.
+     *
+     * @param executor the IO thread's executor
+     * @return the timing wheel
+     */
+    static TimerWheel getInstance(final XnioExecutor executor) {
+        synchronized (WHEELS) {
+            TimerWheel wheel = WHEELS.get(executor);
+            if (wheel == null) {
+                WHEELS.put(executor, wheel = new TimerWheel(executor));
+            }
+            return wheel;
+        }
+    }
+
+    /**
+     * Create a new timeout on this wheel.  The timeout is not scheduled until {@link Timeout#schedule(long)} is
+     * called, and may be scheduled and cancelled any number of times.
+     *
+     * @param task the task to run when the timeout expires
+     * @return the timeout
+     */
+    Timeout newTimeout(final Runnable task) {
+        return new Timeout(this, task);
+    }
+
+    /**
+     * Schedule a timeout for a number of ticks from now.  The deadline is computed here, with the wheel locked, so that
+     * it is relative to the tick which the timeout is linked at.
+     *
+     * @param timeout the timeout
+     * @param ticks the number of ticks until the timeout expires
+     */
+    private synchronized void link(final Timeout timeout, final long ticks) {
+        timeout.deadline = tick + ticks;
+        link(timeout);
+    }
+
+    private synchronized void link(final Timeout timeout) {
+        final long deadline = timeout.deadline;
+        if (deadline == 0L) {
+            return;
+        }
+        if (timeout.linked) {
+            if (deadline >= timeout.position) {
+                // it will be moved along when its slot comes round
+                return;
+            }
+            unlink(timeout);
+        }
+        insert(timeout, deadline);
+        count ++;
+        if (! running) {
+            final XnioExecutor executor = this.executor.get();
+            if (executor != null) {
+                running = true;
+                base = System.nanoTime() - tick * TICK_NANOS;
+                executor.executeAfter(tickTask, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void insert(final Timeout timeout, final long deadline) {
+        final int slot = (int) deadline & MASK;
+        final Timeout head = slots[slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.position = deadline;
+        timeout.linked = true;
+    }
+
+    private void unlink(final Timeout timeout) {
+        final Timeout prev = timeout.prev;
+        final Timeout next = timeout.next;
+        if (prev == null) {
+            slots[(int) timeout.position & MASK] = next;
+        } else {
+            prev.next = next;
+        }
+        if (next != null) {
+            next.prev = prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.linked = false;
+        count --;
+    }
+
+    private void tick() {
+        Timeout expired = null;
+        synchronized (this) {
+            final long target = (System.nanoTime() - base) / TICK_NANOS;
+            long tick = this.tick;
+            while (tick < target) {
+                this.tick = ++ tick;
+                final int slot = (int) tick & MASK;
+                Timeout timeout = slots[slot];
+                while (timeout != null) {
+                    final Timeout next = timeout.next;
+                    final long deadline = timeout.deadline;
+                    if (deadline == 0L) {
+                        // cancelled
+                        unlink(timeout);
+                        final long rescheduled = timeout.deadline;
+                        if (rescheduled != 0L) {
+                            // rescheduled without the lock while it was being unlinked, so it must stay on the wheel
+                            insert(timeout, Math.max(rescheduled, tick + 1L));
+                            count ++;
+                        }
+                    } else if (deadline <= tick) {
+                        unlink(timeout);
+                        timeout.expired = deadline;
+                        timeout.next = expired;
+                        expired = timeout;
+                    } else if (((int) deadline & MASK) != slot) {
+                        // the deadline was pushed out
+                        unlink(timeout);
+                        insert(timeout, deadline);
+                        count ++;
+                    } else {
+                        // due in a later round
+                        timeout.position = deadline;
+                    }
+                    timeout = next;
+                }
+            }
+            final XnioExecutor executor = this.executor.get();
+            if (count == 0 || executor == null) {
+                running = false;
+            } else {
+                executor.executeAfter(tickTask, TICK_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - base) % TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        while (expired != null) {
+            final Timeout timeout = expired;
+            expired = timeout.next;
+            timeout.next = null;
+            timeout.fire();
+        }
+    }
+
+    /**
+     * A timeout which may be scheduled on a timing wheel any number of times.  All methods may be called from any
+     * thread.
+     */
+    static final class Timeout {
+        private static final AtomicLongFieldUpdater<Timeout> deadlineUpdater = AtomicLongFieldUpdater.newUpdater(Timeout.class, "deadline");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        /**
+         * The tick at which the timeout expires, or zero if it is not scheduled.
+         */
+        private volatile long deadline;
+        // the remaining fields are only written with the wheel locked
+        /**
+         * The deadline which the timeout's current slot was chosen for.
+         */
+        private volatile long position;
+        private volatile boolean linked;
+        /**
+         * The deadline which the timeout expired at, until it is fired.
+         */
+        private long expired;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(final TimerWheel wheel, final Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * Schedule this timeout, replacing any earlier deadline.  The deadline is rounded up to a whole tick.
+         *
+         * @param millis the time until the timeout expires, in milliseconds
+         */
+        void schedule(final long millis) {
+            final long ticks = Math.max(1L, (millis + TICK_MILLIS - 1L) / TICK_MILLIS);
+            if (linked) {
+                final long deadline = wheel.tick + ticks;
+                if (deadline >= position) {
+                    // pushed out; the timeout is moved along when its slot comes round, and a tick which unlinks
+                    // it as cancelled checks the deadline again afterwards
+                    this.deadline = deadline;
+                    if (linked) {
+                        return;
+                    }
+                }
+            }
+            wheel.link(this, ticks);
+        }
+
+        /**
+         * Cancel this timeout, if it is scheduled.  A timeout which is just expiring may still run.
+         */
+        void cancel() {
+            deadline = 0L;
+        }
+
+        /**
+         * Determine whether this timeout is scheduled.
+         *
+         * @return {@code true} if the timeout is scheduled
+         */
+        boolean isScheduled() {
+            return deadline != 0L;
+        }
+
+        private void fire() {
+            final long expired = this.expired;
+            if (deadlineUpdater.compareAndSet(this, expired, 0L)) {
+                task.run();
+            } else if (deadline != 0L) {
+                // rescheduled while it was expiring
+                wheel.link(this);
+            }
+        }
+    }
+}
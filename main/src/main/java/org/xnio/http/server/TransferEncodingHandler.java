@@ -22,32 +22,39 @@
 
 package org.xnio.http.server;
 
-import org.xnio.channels.StreamSourceChannel;
 import org.xnio.http.util.Headers;
 
 /**
- * A handler which implements RFC 2616 transfer encodings.
+ * A handler which implements RFC 2616 transfer encodings.  On HTTP/1.1 connections, a request body in the
+ * {@code chunked} transfer coding is decoded, and a response which is started without a {@code Content-Length} is
+ * sent in the {@code chunked} coding.
  *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class TransferEncodingHandler extends AbstractHttpContext implements HttpHandler, HttpContext {
 
     public void handleRequest(final HttpServerExchange exchange) {
-        if (exchange.isHttp10()) {
-            executeNext(exchange);
-            return;
-        }
-
-        String encodings = exchange.getRequestHeaders().getLast(Headers.TRANSFER_ENCODING);
-        StreamSourceChannel requestChannel = exchange.getRequestChannel();
-
-        HttpHandler nextHandler = getHandler();
-        try {
-            if (nextHandler != null) {
-                nextHandler.handleRequest(exchange);
+        if (exchange.isHttp11()) {
+            if (isChunked(exchange.getRequestHeaders().getLast(Headers.TRANSFER_ENCODING))) {
+                exchange.setRequestChannel(new ChunkedStreamSourceChannel(exchange, exchange.getRequestChannel()));
             }
-        } finally {
+            exchange.setResponseChannel(new ChunkedStreamSinkChannel(exchange, exchange.getResponseChannel()));
+            exchange.setChunkedResponseAvailable();
+        }
+        executeNext(exchange);
+    }
 
+    /**
+     * Determine whether the final transfer coding of a {@code Transfer-Encoding} header value is {@code chunked}.
+     *
+     * @param transferEncoding the header value, or {@code null} if there is none
+     * @return {@code true} if the value ends with the {@code chunked} coding
+     */
+    private static boolean isChunked(final String transferEncoding) {
+        if (transferEncoding == null) {
+            return false;
         }
+        final int comma = transferEncoding.lastIndexOf(',');
+        return transferEncoding.substring(comma + 1).trim().equalsIgnoreCase(Headers.CHUNKED);
     }
 }
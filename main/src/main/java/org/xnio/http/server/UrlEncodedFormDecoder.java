@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * An incremental decoder for {@code application/x-www-form-urlencoded} bodies.  Values are decoded in place, since a
+ * decoded value is never longer than its encoding, and passed to the handler as slices of the buffer being decoded.
+ * Field names are collected separately, as the whole name is needed before the field can be started.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class UrlEncodedFormDecoder implements FormDecoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_NAME_SIZE = 1024;
+
+    private final FormDataHandler handler;
+    private final int maxFields;
+    private final byte[] name = new byte[MAX_NAME_SIZE];
+    private int fields;
+    private int nameLength;
+    private boolean inValue;
+    /**
+     * The number of hex digits of a percent escape read so far, or -1 if not in an escape.
+     */
+    private int escape = -1;
+    private int escapeValue;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param handler the handler
+     * @param maxFields the maximum number of fields, which bounds the per-field work of a small but pathological body
+     */
+    UrlEncodedFormDecoder(final FormDataHandler handler, final int maxFields) {
+        this.handler = handler;
+        this.maxFields = maxFields;
+    }
+
+    public void decode(final ByteBuffer buffer) throws IOException {
+        final int limit = buffer.limit();
+        int pos = buffer.position();
+        // the start and end of the decoded value bytes in this buffer
+        int start = pos;
+        int write = pos;
+        while (pos < limit) {
+            int b = buffer.get(pos ++) & 0xff;
+            if (escape != -1) {
+                final int digit = Character.digit(b, 16);
+                if (digit == -1) {
+                    throw new IOException("Invalid percent escape in form data");
+                }
+                if (escape == 0) {
+                    escapeValue = digit;
+                    escape = 1;
+                    continue;
+                }
+                escape = -1;
+                b = escapeValue << 4 | digit;
+            } else if (b == '%') {
+                escape = 0;
+                continue;
+            } else if (b == '+') {
+                b = ' ';
+            } else if (b == '&') {
+                if (inValue && write > start) {
+                    emit(buffer, start, write);
+                }
+                endField();
+                start = write = pos;
+                continue;
+            } else if (b == '=' && ! inValue) {
+                startField();
+                inValue = true;
+                start = write = pos;
+                continue;
+            }
+            if (inValue) {
+                buffer.put(write ++, (byte) b);
+            } else {
+                if (nameLength == MAX_NAME_SIZE) {
+                    throw new IOException("Form field name is too long");
+                }
+                name[nameLength ++] = (byte) b;
+            }
+        }
+        if (inValue && write > start) {
+            emit(buffer, start, write);
+        }
+        buffer.position(limit);
+    }
+
+    private void emit(final ByteBuffer buffer, final int from, final int to) throws IOException {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        handler.partData(slice);
+    }
+
+    private void endField() throws IOException {
+        if (inValue) {
+            inValue = false;
+            handler.endPart();
+        } else if (nameLength > 0) {
+            // a field with no value
+            startField();
+            handler.endPart();
+        }
+        nameLength = 0;
+    }
+
+    private void startField() throws IOException {
+        if (++ fields > maxFields) {
+            throw new IOException("Form has more than " + maxFields + " fields");
+        }
+        handler.startPart(new String(name, 0, nameLength, UTF_8), null, null);
+    }
+
+    public void finish() throws IOException {
+        if (escape != -1) {
+            throw new IOException("Truncated percent escape in form data");
+        }
+        endField();
+    }
+}
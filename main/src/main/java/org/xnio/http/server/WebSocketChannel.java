@@ -0,0 +1,677 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.Pool;
+import org.xnio.Pooled;
+import org.xnio.channels.ConnectedStreamChannel;
+import org.xnio.http.util.Attachable;
+
+/**
+ * A server web socket, speaking the RFC 6455 framing protocol over an upgraded HTTP connection.
+ * <p>
+ * Frames are read into a pooled buffer which is only held while a frame is partially read, so an idle socket holds
+ * no buffers at all.  A message which arrives in a single frame is unmasked in place and delivered as a slice of the
+ * read buffer; fragmented messages, and frames too large for the read buffer, are assembled on the heap up to the
+ * maximum message size.
+ * <p>
+ * Frames are sent with a single gathering write if possible; only data which cannot be written immediately is
+ * copied and queued.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class WebSocketChannel extends Attachable implements Closeable {
+
+    // Close codes
+
+    public static final int NORMAL_CLOSURE = 1000;
+    public static final int GOING_AWAY = 1001;
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int NO_STATUS = 1005;
+    public static final int ABNORMAL_CLOSURE = 1006;
+    public static final int INVALID_PAYLOAD = 1007;
+    public static final int MESSAGE_TOO_BIG = 1009;
+
+    // Opcodes
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConnectedStreamChannel channel;
+    private final Pool<ByteBuffer> bufferPool;
+    private final WebSocketListener listener;
+    private final int maxMessageSize;
+
+    // Read state, only accessed from the read thread
+
+    /**
+     * The read buffer, held only while it contains part of a frame.
+     */
+    private Pooled<ByteBuffer> pooled;
+    /**
+     * The opcode of the message being assembled on the heap, or -1 if there is none.
+     */
+    private int messageOpcode = -1;
+    private byte[] message;
+    private int messageLength;
+    /**
+     * The number of payload bytes left in a frame which is too large for the read buffer.
+     */
+    private long streamRemaining;
+    private int streamMask;
+    private int streamOffset;
+    private boolean streamFin;
+    private boolean closeReceived;
+
+    // Write state, guarded by this
+
+    /**
+     * The data which could not be written immediately, or {@code null} if there is none.  An empty queue means that
+     * a flush is outstanding.
+     */
+    private ArrayDeque<ByteBuffer> pending;
+    private boolean closeSent;
+    /**
+     * {@code true} once the connection should be closed as soon as the pending data is written.
+     */
+    private boolean finishing;
+    private boolean closed;
+    private boolean closeNotified;
+
+    private final ChannelListener<ConnectedStreamChannel> readListener = new ChannelListener<ConnectedStreamChannel>() {
+        public void handleEvent(final ConnectedStreamChannel channel) {
+            handleReadable();
+        }
+    };
+
+    private final ChannelListener<ConnectedStreamChannel> writeListener = new ChannelListener<ConnectedStreamChannel>() {
+        public void handleEvent(final ConnectedStreamChannel channel) {
+            handleWritable();
+        }
+    };
+
+    WebSocketChannel(final ConnectedStreamChannel channel, final Pool<ByteBuffer> bufferPool, final WebSocketListener listener, final int maxMessageSize) {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.listener = listener;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Start the socket: flush the handshake response and begin reading frames.
+     */
+    void start() {
+        channel.getReadSetter().set(readListener);
+        channel.getWriteSetter().set(writeListener);
+        synchronized (this) {
+            if (pending == null) {
+                pending = new ArrayDeque<ByteBuffer>(2);
+                handleWritable();
+            }
+        }
+        channel.resumeReads();
+        // frames may have arrived along with the handshake request
+        handleReadable();
+    }
+
+    /**
+     * Get the underlying upgraded channel.
+     *
+     * @return the channel
+     */
+    public ConnectedStreamChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Send a text message in a single frame.
+     *
+     * @param text the message text
+     * @throws IOException if the socket is closing or an I/O error occurs
+     */
+    public void sendText(final String text) throws IOException {
+        sendFrame(OP_TEXT, ByteBuffer.wrap(text.getBytes(UTF_8)), true);
+    }
+
+    /**
+     * Send a binary message in a single frame.  The buffer's content is consumed; any part of it which cannot be
+     * written immediately is copied, so the buffer may be reused once this method returns.
+     *
+     * @param payload the message payload
+     * @throws IOException if the socket is closing or an I/O error occurs
+     */
+    public void sendBinary(final ByteBuffer payload) throws IOException {
+        sendFrame(OP_BINARY, payload, true);
+    }
+
+    /**
+     * Send a ping.
+     *
+     * @param payload the ping payload, at most 125 bytes
+     * @throws IOException if the socket is closing or an I/O error occurs
+     */
+    public void sendPing(final ByteBuffer payload) throws IOException {
+        if (payload.remaining() > MAX_CONTROL_PAYLOAD) {
+            throw new IllegalArgumentException("Ping payload is too large");
+        }
+        sendFrame(OP_PING, payload, true);
+    }
+
+    /**
+     * Start the close handshake.  The connection is closed once the peer answers, after which no more messages are
+     * delivered.  Does nothing if a close was already sent.
+     *
+     * @param code the close code
+     * @param reason the close reason, or {@code null} for none
+     * @throws IOException if an I/O error occurs
+     */
+    public void close(final int code, final String reason) throws IOException {
+        final byte[] reasonBytes = reason == null ? new byte[0] : reason.getBytes(UTF_8);
+        if (reasonBytes.length > MAX_CONTROL_PAYLOAD - 2) {
+            throw new IllegalArgumentException("Close reason is too long");
+        }
+        sendClose(code, reasonBytes);
+    }
+
+    /**
+     * Start the close handshake with a normal closure code.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        close(NORMAL_CLOSURE, null);
+    }
+
+    /**
+     * Determine whether the socket is open, that is, whether a close has been neither sent nor received.
+     *
+     * @return {@code true} if the socket is open
+     */
+    public synchronized boolean isOpen() {
+        return ! closeSent && ! closed;
+    }
+
+    // Reading
+
+    void handleReadable() {
+        if (closeReceived || closed) {
+            channel.suspendReads();
+            return;
+        }
+        Pooled<ByteBuffer> pooled = this.pooled;
+        if (pooled == null) {
+            pooled = bufferPool.allocate();
+        }
+        final ByteBuffer buffer = pooled.getResource();
+        boolean release = true;
+        try {
+            int res;
+            for (;;) {
+                res = channel.read(buffer);
+                if (res <= 0) {
+                    break;
+                }
+                buffer.flip();
+                final boolean more = decode(buffer);
+                buffer.compact();
+                if (! more) {
+                    return;
+                }
+            }
+            if (res == -1) {
+                abort();
+                return;
+            }
+            // keep the buffer only if it holds part of a frame
+            release = buffer.position() == 0;
+        } catch (IOException e) {
+            abort();
+        } finally {
+            if (release) {
+                this.pooled = null;
+                buffer.clear();
+                pooled.free();
+            } else {
+                this.pooled = pooled;
+            }
+        }
+    }
+
+    /**
+     * Decode the frames in a buffer.  Bytes of a frame which is not yet complete are left in the buffer, unless the
+     * frame is too large to ever fit, in which case its payload is streamed into the message buffer.
+     *
+     * @param buffer the buffer, in read mode
+     * @return {@code true} to continue reading, {@code false} if the socket has closed
+     */
+    private boolean decode(final ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (streamRemaining > 0L) {
+                final int pos = buffer.position();
+                final int cnt = (int) Math.min((long) buffer.remaining(), streamRemaining);
+                unmask(buffer, pos, pos + cnt, streamMask, streamOffset);
+                append(buffer, pos, cnt);
+                buffer.position(pos + cnt);
+                streamOffset += cnt;
+                streamRemaining -= cnt;
+                if (streamRemaining == 0L && streamFin && ! deliverMessage()) {
+                    return false;
+                }
+                continue;
+            }
+            final int start = buffer.position();
+            final int available = buffer.remaining();
+            if (available < 2) {
+                return true;
+            }
+            final int b0 = buffer.get(start) & 0xff;
+            final int b1 = buffer.get(start + 1) & 0xff;
+            final boolean fin = (b0 & 0x80) != 0;
+            final int opcode = b0 & 0x0f;
+            if ((b0 & 0x70) != 0) {
+                return fail(PROTOCOL_ERROR, "Reserved bits set");
+            }
+            if ((b1 & 0x80) == 0) {
+                return fail(PROTOCOL_ERROR, "Frame is not masked");
+            }
+            long length = b1 & 0x7f;
+            int headerLength = 6;
+            if (length == 126L) {
+                headerLength = 8;
+                if (available < headerLength) {
+                    return true;
+                }
+                length = getBigEndian(buffer, start + 2, 2);
+            } else if (length == 127L) {
+                headerLength = 14;
+                if (available < headerLength) {
+                    return true;
+                }
+                length = getBigEndian(buffer, start + 2, 8);
+                if (length < 0L) {
+                    return fail(PROTOCOL_ERROR, "Invalid frame length");
+                }
+            } else if (available < headerLength) {
+                return true;
+            }
+            if ((opcode & 0x08) != 0) {
+                if (opcode > OP_PONG) {
+                    return fail(PROTOCOL_ERROR, "Unknown opcode");
+                }
+                if (! fin || length > MAX_CONTROL_PAYLOAD) {
+                    return fail(PROTOCOL_ERROR, "Invalid control frame");
+                }
+            } else if (opcode > OP_BINARY) {
+                return fail(PROTOCOL_ERROR, "Unknown opcode");
+            } else if ((opcode == OP_CONTINUATION) != (messageOpcode != -1)) {
+                return fail(PROTOCOL_ERROR, "Unexpected fragment");
+            } else if (messageLength + length > maxMessageSize) {
+                return fail(MESSAGE_TOO_BIG, "Message is too large");
+            }
+            final int mask = (int) getBigEndian(buffer, start + headerLength - 4, 4);
+            if (length <= available - headerLength) {
+                // the whole frame is here, so it can be handled in place
+                final int payloadStart = start + headerLength;
+                final int payloadEnd = payloadStart + (int) length;
+                unmask(buffer, payloadStart, payloadEnd, mask, 0);
+                buffer.position(payloadEnd);
+                if (! handleFrame(opcode, fin, buffer, payloadStart, payloadEnd)) {
+                    return false;
+                }
+            } else if (headerLength + length <= buffer.capacity()) {
+                // wait for the rest of the frame
+                return true;
+            } else {
+                buffer.position(start + headerLength);
+                if (messageOpcode == -1) {
+                    messageOpcode = opcode;
+                }
+                streamRemaining = length;
+                streamMask = mask;
+                streamOffset = 0;
+                streamFin = fin;
+            }
+        }
+        return true;
+    }
+
+    private boolean handleFrame(final int opcode, final boolean fin, final ByteBuffer buffer, final int start, final int end) {
+        switch (opcode) {
+            case OP_PING: {
+                try {
+                    sendFrame(OP_PONG, slice(buffer, start, end), false);
+                } catch (IOException e) {
+                    abort();
+                    return false;
+                }
+                return true;
+            }
+            case OP_PONG: {
+                return true;
+            }
+            case OP_CLOSE: {
+                return handleClose(buffer, start, end);
+            }
+            default: {
+                if (fin && messageOpcode == -1) {
+                    return deliver(opcode, slice(buffer, start, end));
+                }
+                if (messageOpcode == -1) {
+                    messageOpcode = opcode;
+                }
+                append(buffer, start, end - start);
+                return ! fin || deliverMessage();
+            }
+        }
+    }
+
+    private boolean handleClose(final ByteBuffer buffer, final int start, final int end) {
+        final int length = end - start;
+        int code = NO_STATUS;
+        String reason = "";
+        if (length == 1) {
+            return fail(PROTOCOL_ERROR, "Invalid close frame");
+        }
+        if (length >= 2) {
+            code = (int) getBigEndian(buffer, start, 2);
+            if (! isValidCloseCode(code)) {
+                return fail(PROTOCOL_ERROR, "Invalid close code");
+            }
+            try {
+                reason = decodeText(slice(buffer, start + 2, end));
+            } catch (CharacterCodingException e) {
+                return fail(INVALID_PAYLOAD, "Invalid close reason");
+            }
+        }
+        closeReceived = true;
+        channel.suspendReads();
+        try {
+            sendClose(code == NO_STATUS ? NORMAL_CLOSURE : code, new byte[0]);
+        } catch (IOException e) {
+            abort();
+            return false;
+        }
+        finish();
+        notifyClose(code, reason);
+        return false;
+    }
+
+    private boolean deliverMessage() {
+        final int opcode = messageOpcode;
+        final ByteBuffer payload = ByteBuffer.wrap(message, 0, messageLength);
+        // drop the message buffer so that an idle socket does not retain it
+        messageOpcode = -1;
+        message = null;
+        messageLength = 0;
+        return deliver(opcode, payload);
+    }
+
+    private boolean deliver(final int opcode, final ByteBuffer payload) {
+        if (opcode == OP_TEXT) {
+            final String text;
+            try {
+                text = decodeText(payload);
+            } catch (CharacterCodingException e) {
+                return fail(INVALID_PAYLOAD, "Invalid UTF-8 text");
+            }
+            listener.handleText(this, text);
+        } else {
+            listener.handleBinary(this, payload);
+        }
+        synchronized (this) {
+            return ! closed;
+        }
+    }
+
+    private void append(final ByteBuffer buffer, final int pos, final int cnt) {
+        final int required = messageLength + cnt;
+        byte[] message = this.message;
+        if (message == null || required > message.length) {
+            final int size = Math.min(maxMessageSize, Math.max(required, message == null ? 256 : message.length << 1));
+            this.message = message = message == null ? new byte[size] : Arrays.copyOf(message, size);
+        }
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + pos, message, messageLength, cnt);
+        } else {
+            final ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(pos);
+            duplicate.get(message, messageLength, cnt);
+        }
+        messageLength = required;
+    }
+
+    /**
+     * Fail the socket: send a close frame with the given code, and close the connection once it is written.
+     */
+    private boolean fail(final int code, final String reason) {
+        closeReceived = true;
+        channel.suspendReads();
+        try {
+            sendClose(code, reason.getBytes(UTF_8));
+        } catch (IOException e) {
+            abort();
+            return false;
+        }
+        finish();
+        notifyClose(code, reason);
+        return false;
+    }
+
+    // Writing
+
+    private void sendClose(final int code, final byte[] reason) throws IOException {
+        final ByteBuffer payload = ByteBuffer.allocate(2 + reason.length);
+        payload.put((byte) (code >> 8)).put((byte) code).put(reason).flip();
+        synchronized (this) {
+            if (closeSent) {
+                return;
+            }
+            sendFrame(OP_CLOSE, payload, false);
+            closeSent = true;
+        }
+    }
+
+    /**
+     * Send a frame, queueing whatever cannot be written immediately.
+     *
+     * @param opcode the frame opcode
+     * @param payload the frame payload
+     * @param checkClosed {@code true} to fail if a close was already sent, {@code false} to silently drop the frame
+     * @throws IOException if the socket is closing or an I/O error occurs
+     */
+    private synchronized void sendFrame(final int opcode, final ByteBuffer payload, final boolean checkClosed) throws IOException {
+        if (closeSent || closed) {
+            if (checkClosed) {
+                throw new ClosedChannelException();
+            }
+            return;
+        }
+        final int length = payload.remaining();
+        final byte[] header;
+        if (length <= MAX_CONTROL_PAYLOAD) {
+            header = new byte[] { (byte) (0x80 | opcode), (byte) length };
+        } else if (length <= 0xffff) {
+            header = new byte[] { (byte) (0x80 | opcode), 126, (byte) (length >> 8), (byte) length };
+        } else {
+            header = new byte[] { (byte) (0x80 | opcode), 127, 0, 0, 0, 0, (byte) (length >> 24), (byte) (length >> 16), (byte) (length >> 8), (byte) length };
+        }
+        final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        ArrayDeque<ByteBuffer> pending = this.pending;
+        if (pending == null) {
+            final ByteBuffer[] buffers = new ByteBuffer[] { headerBuffer, payload };
+            long res;
+            do {
+                res = channel.write(buffers);
+            } while (res > 0L && (headerBuffer.hasRemaining() || payload.hasRemaining()));
+            if (! headerBuffer.hasRemaining() && ! payload.hasRemaining() && channel.flush()) {
+                return;
+            }
+            this.pending = pending = new ArrayDeque<ByteBuffer>(4);
+        }
+        if (headerBuffer.hasRemaining()) {
+            pending.add(headerBuffer);
+        }
+        if (payload.hasRemaining()) {
+            final ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+            copy.put(payload).flip();
+            pending.add(copy);
+        }
+        channel.resumeWrites();
+    }
+
+    synchronized void handleWritable() {
+        final ArrayDeque<ByteBuffer> pending = this.pending;
+        try {
+            if (pending != null) {
+                ByteBuffer buffer;
+                while ((buffer = pending.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        channel.resumeWrites();
+                        return;
+                    }
+                    pending.poll();
+                }
+                if (! channel.flush()) {
+                    channel.resumeWrites();
+                    return;
+                }
+                // drop the queue so that an idle socket does not retain it
+                this.pending = null;
+            }
+            channel.suspendWrites();
+            if (finishing) {
+                closeChannel();
+            }
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Close the connection once the pending data is written.
+     */
+    private synchronized void finish() {
+        finishing = true;
+        if (pending == null) {
+            closeChannel();
+        }
+    }
+
+    // Closing
+
+    private synchronized void closeChannel() {
+        closed = true;
+        IoUtils.safeClose(channel);
+    }
+
+    private void abort() {
+        closeReceived = true;
+        closeChannel();
+        notifyClose(ABNORMAL_CLOSURE, "");
+    }
+
+    private void notifyClose(final int code, final String reason) {
+        synchronized (this) {
+            if (closeNotified) {
+                return;
+            }
+            closeNotified = true;
+        }
+        listener.handleClose(this, code, reason);
+    }
+
+    // Utilities
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int start, final int end) {
+        if (start == end) {
+            return EMPTY.duplicate();
+        }
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(end).position(start);
+        return duplicate.slice();
+    }
+
+    private static long getBigEndian(final ByteBuffer buffer, final int pos, final int cnt) {
+        long value = 0L;
+        for (int i = 0; i < cnt; i ++) {
+            value = value << 8 | buffer.get(pos + i) & 0xff;
+        }
+        return value;
+    }
+
+    /**
+     * Unmask a range of a buffer in place, eight bytes at a time.
+     *
+     * @param buffer the buffer
+     * @param pos the start of the range
+     * @param end the end of the range
+     * @param mask the masking key, as a big-endian integer
+     * @param offset the offset of the start of the range within the frame payload
+     */
+    static void unmask(final ByteBuffer buffer, int pos, final int end, final int mask, final int offset) {
+        // line the key up with the first byte of the range
+        int rotated = Integer.rotateLeft(mask, (offset & 3) << 3);
+        long wide = (rotated & 0xffffffffL) << 32 | rotated & 0xffffffffL;
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            wide = Long.reverseBytes(wide);
+        }
+        while (end - pos >= 8) {
+            buffer.putLong(pos, buffer.getLong(pos) ^ wide);
+            pos += 8;
+        }
+        while (pos < end) {
+            buffer.put(pos, (byte) (buffer.get(pos) ^ rotated >>> 24));
+            rotated = Integer.rotateLeft(rotated, 8);
+            pos ++;
+        }
+    }
+
+    private static String decodeText(final ByteBuffer buffer) throws CharacterCodingException {
+        return UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT).decode(buffer).toString();
+    }
+
+    private static boolean isValidCloseCode(final int code) {
+        return code >= 1000 && code <= 1011 && code != 1004 && code != NO_STATUS && code != ABNORMAL_CLOSURE || code >= 3000 && code <= 4999;
+    }
+}
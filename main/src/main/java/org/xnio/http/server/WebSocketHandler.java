@@ -0,0 +1,160 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.xnio.IoUtils;
+import org.xnio.channels.ConnectedStreamChannel;
+import org.xnio.http.util.HeaderMap;
+import org.xnio.http.util.Headers;
+import org.xnio.http.util.Methods;
+
+/**
+ * A handler which accepts RFC 6455 web socket handshakes on hosts which have
+ * {@link org.xnio.http.HttpOptions#WEB_SOCKET_ENABLED} set.  An accepted request is upgraded and handed to the
+ * listener as a {@link WebSocketChannel}; all other requests are passed on to the next handler.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class WebSocketHandler extends AbstractHttpContext implements HttpHandler, HttpContext {
+    /**
+     * The default maximum size of a received message.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 65536;
+
+    private static final String VERSION = "13";
+    private static final String KEY_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final WebSocketListener listener;
+    private final int maxMessageSize;
+
+    /**
+     * Construct a new instance with the default maximum message size.
+     *
+     * @param listener the listener for accepted web sockets
+     */
+    public WebSocketHandler(final WebSocketListener listener) {
+        this(listener, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param listener the listener for accepted web sockets
+     * @param maxMessageSize the maximum size of a received message; larger messages fail the socket
+     */
+    public WebSocketHandler(final WebSocketListener listener, final int maxMessageSize) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        if (maxMessageSize < 0) {
+            throw new IllegalArgumentException("maxMessageSize is negative");
+        }
+        this.listener = listener;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public void handleRequest(final HttpServerExchange exchange) {
+        final HeaderMap requestHeaders = exchange.getRequestHeaders();
+        final HttpServerConnection connection = exchange.getConnection();
+        if (! connection.isWebSocketEnabled() || ! HttpServerExchange.containsToken(requestHeaders, Headers.UPGRADE, Headers.WEBSOCKET)) {
+            executeNext(exchange);
+            return;
+        }
+        final String key = requestHeaders.getLast(Headers.SEC_WEB_SOCKET_KEY);
+        if (! exchange.getRequestMethod().equals(Methods.GET) || ! exchange.isHttp11()
+                || ! HttpServerExchange.containsToken(requestHeaders, Headers.CONNECTION, Headers.UPGRADE_TOKEN)
+                || ! VERSION.equals(requestHeaders.getLast(Headers.SEC_WEB_SOCKET_VERSION))
+                || ! isValidKey(key)) {
+            exchange.sendErrorResponse(400);
+            return;
+        }
+        final HeaderMap responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.put(Headers.UPGRADE, Headers.WEBSOCKET);
+        responseHeaders.put(Headers.CONNECTION, Headers.UPGRADE);
+        responseHeaders.put(Headers.SEC_WEB_SOCKET_ACCEPT, getAcceptValue(key));
+        final ConnectedStreamChannel channel;
+        try {
+            channel = exchange.upgradeChannel();
+        } catch (IOException e) {
+            IoUtils.safeClose(connection);
+            return;
+        }
+        final WebSocketChannel webSocket = new WebSocketChannel(channel, connection.getBufferPool(), listener, maxMessageSize);
+        listener.handleOpen(webSocket, exchange);
+        webSocket.start();
+    }
+
+    /**
+     * Determine whether a handshake key is the base64 encoding of 16 bytes.
+     */
+    private static boolean isValidKey(final String key) {
+        if (key == null || key.length() != 24 || ! key.endsWith("==")) {
+            return false;
+        }
+        for (int i = 0; i < 22; i ++) {
+            final char c = key.charAt(i);
+            if (! (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '+' || c == '/')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String getAcceptValue(final String key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // the key and GUID are plain ASCII
+        final String value = key + KEY_GUID;
+        final int length = value.length();
+        for (int i = 0; i < length; i ++) {
+            digest.update((byte) value.charAt(i));
+        }
+        return encodeBase64(digest.digest());
+    }
+
+    private static String encodeBase64(final byte[] bytes) {
+        final StringBuilder b = new StringBuilder((bytes.length + 2) / 3 * 4);
+        int i = 0;
+        for (; i + 3 <= bytes.length; i += 3) {
+            final int v = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+            b.append(BASE64[v >> 18]).append(BASE64[v >> 12 & 0x3f]).append(BASE64[v >> 6 & 0x3f]).append(BASE64[v & 0x3f]);
+        }
+        final int rem = bytes.length - i;
+        if (rem == 1) {
+            final int v = (bytes[i] & 0xff) << 16;
+            b.append(BASE64[v >> 18]).append(BASE64[v >> 12 & 0x3f]).append("==");
+        } else if (rem == 2) {
+            final int v = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+            b.append(BASE64[v >> 18]).append(BASE64[v >> 12 & 0x3f]).append(BASE64[v >> 6 & 0x3f]).append('=');
+        }
+        return b.toString();
+    }
+}
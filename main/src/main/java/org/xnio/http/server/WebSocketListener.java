@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A listener for the events of a web socket.  All events other than {@link #handleOpen} are delivered on the I/O
+ * thread which reads the socket, so listeners should not block.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public interface WebSocketListener {
+
+    /**
+     * Handle a newly established web socket.  Called after the handshake response is started, but before any
+     * messages are read.
+     *
+     * @param channel the web socket channel
+     * @param exchange the HTTP exchange which was upgraded
+     */
+    void handleOpen(WebSocketChannel channel, HttpServerExchange exchange);
+
+    /**
+     * Handle a complete text message.
+     *
+     * @param channel the web socket channel
+     * @param text the message text
+     */
+    void handleText(WebSocketChannel channel, String text);
+
+    /**
+     * Handle a complete binary message.  The buffer may be a slice of the channel's read buffer, so it is only valid
+     * until this method returns; it must be copied if it is to be retained.
+     *
+     * @param channel the web socket channel
+     * @param payload the message payload
+     */
+    void handleBinary(WebSocketChannel channel, ByteBuffer payload);
+
+    /**
+     * Handle the closing of the web socket.  Called once, either when the close handshake is complete or when the
+     * connection fails.
+     *
+     * @param channel the web socket channel
+     * @param code the close code received from the peer, or {@link WebSocketChannel#NO_STATUS} if it sent none; the
+     *      close code sent if the peer violated the protocol; or {@link WebSocketChannel#ABNORMAL_CLOSURE} if the
+     *      connection was lost
+     * @param reason the close reason, or {@code ""} if none was given
+     */
+    void handleClose(WebSocketChannel channel, int code, String reason);
+}
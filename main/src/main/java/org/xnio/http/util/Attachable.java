@@ -22,49 +22,159 @@
 
 package org.xnio.http.util;
 
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentMap;
 
 /**
+ * An object which can carry attachments.  Attachments are preferably stored under {@linkplain AttachmentKey typed
+ * keys}, each of which has its own slot in an array; the array is allocated on first use and grown as needed.  Typed
+ * attachments are not synchronized, so an object's typed attachments should only be used by one thread at a time.
+ * <p>
+ * Attachments may also be stored under string names, in a concurrent map which is likewise created on first use.
+ * This is slower, and is intended for code which cannot share a key.
+ *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public abstract class Attachable {
-    private final ConcurrentMap<String, Object> attachments = new SecureHashMap<>();
+    /**
+     * The initial capacity of the string-keyed attachment map.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] slots;
+    private volatile ConcurrentMap<String, Object> attachments;
+
+    /**
+     * Get a typed attachment.
+     *
+     * @param key the attachment key
+     * @param <T> the attachment type
+     * @return the attachment, or {@code null} if there is none
+     */
+    public <T> T getAttachment(AttachmentKey<T> key) {
+        checkAttachmentAccess();
+        final Object[] slots = this.slots;
+        final int index = key.getIndex();
+        return slots == null || index >= slots.length ? null : key.cast(slots[index]);
+    }
+
+    /**
+     * Set a typed attachment.
+     *
+     * @param key the attachment key
+     * @param value the new value, or {@code null} to remove the attachment
+     * @param <T> the attachment type
+     * @return the previous value, or {@code null} if there was none
+     */
+    public <T> T putAttachment(AttachmentKey<T> key, T value) {
+        checkAttachmentAccess();
+        final int index = key.getIndex();
+        Object[] slots = this.slots;
+        if (slots == null || index >= slots.length) {
+            if (value == null) {
+                return null;
+            }
+            final int length = Math.max(index + 1, slots == null ? 4 : slots.length << 1);
+            this.slots = slots = slots == null ? new Object[length] : Arrays.copyOf(slots, length);
+        }
+        final Object old = slots[index];
+        slots[index] = key.cast(value);
+        return key.cast(old);
+    }
+
+    /**
+     * Remove a typed attachment.
+     *
+     * @param key the attachment key
+     * @param <T> the attachment type
+     * @return the removed value, or {@code null} if there was none
+     */
+    public <T> T removeAttachment(AttachmentKey<T> key) {
+        return putAttachment(key, null);
+    }
+
+    /**
+     * Check that the attachments may be accessed.  Called by every public method; the default does nothing.
+     *
+     * @throws IllegalStateException if the attachments may not be accessed
+     */
+    protected void checkAttachmentAccess() throws IllegalStateException {
+    }
+
+    /**
+     * Remove all the attachments, of both kinds.
+     */
+    protected void clearAttachments() {
+        final Object[] slots = this.slots;
+        if (slots != null) {
+            Arrays.fill(slots, null);
+        }
+        final ConcurrentMap<String, Object> attachments = this.attachments;
+        if (attachments != null) {
+            attachments.clear();
+        }
+    }
 
     public Object getAttachment(String name) {
-        return attachments.get(name);
+        checkAttachmentAccess();
+        final ConcurrentMap<String, Object> attachments = this.attachments;
+        return attachments == null ? null : attachments.get(name);
     }
 
     public Object putAttachment(String name, Object value) {
         if (name == null) {
             throw new IllegalArgumentException("name is null");
         }
-        return attachments.put(name, value);
+        return getAttachments().put(name, value);
     }
 
     public Object putAttachmentIfAbsent(String name, Object value) {
         if (name == null) {
             throw new IllegalArgumentException("name is null");
         }
-        return attachments.putIfAbsent(name, value);
+        return getAttachments().putIfAbsent(name, value);
     }
 
     public Object replaceAttachment(String name, Object newValue) {
-        return attachments.replace(name, newValue);
+        checkAttachmentAccess();
+        final ConcurrentMap<String, Object> attachments = this.attachments;
+        return attachments == null ? null : attachments.replace(name, newValue);
     }
 
     public Object removeAttachment(String name) {
-        return attachments.remove(name);
+        checkAttachmentAccess();
+        final ConcurrentMap<String, Object> attachments = this.attachments;
+        return attachments == null ? null : attachments.remove(name);
     }
 
     public boolean replaceAttachment(String name, Object expectValue, Object newValue) {
-        return attachments.replace(name, expectValue, newValue);
+        checkAttachmentAccess();
+        final ConcurrentMap<String, Object> attachments = this.attachments;
+        return attachments != null && attachments.replace(name, expectValue, newValue);
     }
 
     public boolean removeAttachment(String name, Object expectValue) {
-        return attachments.remove(name, expectValue);
+        checkAttachmentAccess();
+        final ConcurrentMap<String, Object> attachments = this.attachments;
+        return attachments != null && attachments.remove(name, expectValue);
     }
 
+    /**
+     * Get the string-keyed attachment map, creating it if need be.
+     *
+     * @return the attachment map
+     */
     public ConcurrentMap<String, Object> getAttachments() {
+        checkAttachmentAccess();
+        ConcurrentMap<String, Object> attachments = this.attachments;
+        if (attachments == null) {
+            synchronized (this) {
+                attachments = this.attachments;
+                if (attachments == null) {
+                    this.attachments = attachments = new SecureHashMap<>(INITIAL_CAPACITY);
+                }
+            }
+        }
         return attachments;
     }
 }
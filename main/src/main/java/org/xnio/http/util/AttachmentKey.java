@@ -0,0 +1,86 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed key for an {@link Attachable} object's attachments.  Each key is given its own small index when it is
+ * created, and its attachment is held in that slot of an array, so no hashing or boxing is needed to find it.  Keys
+ * are meant to be created once and kept in static fields; every key ever created takes up a slot.
+ *
+ * @param <T> the attachment type
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class AttachmentKey<T> {
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+
+    private final String name;
+    private final Class<T> type;
+    private final int index;
+
+    private AttachmentKey(final String name, final Class<T> type, final int index) {
+        this.name = name;
+        this.type = type;
+        this.index = index;
+    }
+
+    /**
+     * Create a new attachment key.
+     *
+     * @param name the key name, for diagnostic purposes
+     * @param type the attachment type
+     * @param <T> the attachment type
+     * @return the new key
+     */
+    public static <T> AttachmentKey<T> create(final String name, final Class<T> type) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null");
+        }
+        if (type == null) {
+            throw new IllegalArgumentException("type is null");
+        }
+        return new AttachmentKey<T>(name, type, nextIndex.getAndIncrement());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    T cast(final Object value) {
+        return type.cast(value);
+    }
+
+    public String toString() {
+        return "AttachmentKey " + name + " (" + type.getName() + ")";
+    }
+}
@@ -22,134 +22,775 @@
 
 package org.xnio.http.util;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Locale;
-import java.util.Map;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.xnio.http.Http;
 
 /**
+ * A multi-valued map of HTTP headers.  Header names are case-insensitive; the iteration order of header names, and
+ * the order of the values of each header, is the order in which they were added.
+ * <p>
+ * A map may be {@linkplain #lock() locked}, after which it is immutable and may be shared between threads (provided
+ * that it is safely published).  Adding a locked map to an empty one shares its storage until either is modified, so
+ * a common set of headers can be built once and used for any number of responses without copying.
+ *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class HeaderMap implements Iterable<String> {
     // expect a header size of 200-2kB commonly, 700-800 most likely
 
-    static class HeaderValue extends ArrayDeque<String> {
-        private final String name;
+    // Each header value is an entry; the entries are held in parallel arrays in insertion order.  The values of one
+    // header are chained through next, starting from the header's first entry, which is the one in the hash table.
+    // The entries at the start which came from a raw header block are decoded into strings only when accessed.
+
+    private static final int MIN_CAPACITY = 8;
+
+    private String[] names;
+    private String[] values;
+    private int[] hashes;
+    /**
+     * The next entry of the same header, or -1.
+     */
+    private int[] next;
+    /**
+     * The last entry of the header, for first entries only.
+     */
+    private int[] tail;
+    private int size;
+    /**
+     * Open-addressed table of first entries, as {@code index + 1}; zero slots are empty.
+     */
+    private int[] table;
+
+    private byte[] raw;
+    private int[] rawOffsets;
+    private int rawCount;
+
+    private boolean locked;
+    /**
+     * Set if the arrays belong to a locked map, and must be copied before they are modified.
+     */
+    private boolean shared;
+    /**
+     * The locked map whose arrays are shared, if any.
+     */
+    private HeaderMap source;
+    /**
+     * Set once another map has taken on this locked map's arrays, so that they must not be reused by {@link #recycle()}.
+     */
+    private volatile boolean adopted;
+    /**
+     * The encoded form of a locked map.
+     */
+    private volatile ByteBuffer encoded;
+    /**
+     * Set once this map has been {@linkplain #recycle() recycled}, after which it may not be used.
+     */
+    private boolean retired;
+
+    /**
+     * Construct a new, empty instance.
+     */
+    public HeaderMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Construct a new, empty instance which takes over the storage of a retired map.
+     *
+     * @param old the retired map
+     */
+    private HeaderMap(final HeaderMap old) {
+        final int size = old.size;
+        names = old.names;
+        values = old.values;
+        hashes = old.hashes;
+        next = old.next;
+        tail = old.tail;
+        table = old.table;
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(table, 0);
+    }
+
+    /**
+     * Construct a new instance backed by a raw header block.  Header names and values are only decoded into strings
+     * when they are first accessed.  Neither array is copied, so the caller must not modify them afterwards.
+     *
+     * @param raw the raw header block (ISO-8859-1)
+     * @param rawOffsets the {@code (nameStart, nameEnd, valueStart, valueEnd)} positions of each header within the block
+     * @param rawCount the number of headers
+     */
+    public HeaderMap(final byte[] raw, final int[] rawOffsets, final int rawCount) {
+        allocate(Math.max(MIN_CAPACITY, rawCount));
+        setRaw(raw, rawOffsets, rawCount);
+    }
+
+    private void setRaw(final byte[] raw, final int[] rawOffsets, final int rawCount) {
+        if (rawCount > 0) {
+            this.raw = raw;
+            this.rawOffsets = rawOffsets;
+            this.rawCount = rawCount;
+            final int[] hashes = this.hashes;
+            for (int i = 0; i < rawCount; i ++) {
+                hashes[i] = rawHash(raw, rawOffsets[i << 2], rawOffsets[(i << 2) + 1]);
+            }
+            size = rawCount;
+            rehash();
+        }
+    }
+
+    private void allocate(final int capacity) {
+        names = new String[capacity];
+        values = new String[capacity];
+        hashes = new int[capacity];
+        next = new int[capacity];
+        tail = new int[capacity];
+        table = new int[tableSize(capacity)];
+    }
+
+    private static int tableSize(final int capacity) {
+        return Integer.highestOneBit(capacity - 1) << 2;
+    }
+
+    // --------------------------------------------------------------------
+    // Case-insensitive hashing and comparison
+    // --------------------------------------------------------------------
+
+    private static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static int mix(final int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(final String name) {
+        int h = 0;
+        final int len = name.length();
+        for (int i = 0; i < len; i ++) {
+            h = 31 * h + lower(name.charAt(i));
+        }
+        return mix(h);
+    }
+
+    private static int rawHash(final byte[] raw, final int start, final int end) {
+        int h = 0;
+        for (int i = start; i < end; i ++) {
+            h = 31 * h + lower(raw[i] & 0xff);
+        }
+        return mix(h);
+    }
+
+    private int nameLength(final int idx) {
+        final String name = names[idx];
+        return name != null ? name.length() : rawOffsets[(idx << 2) + 1] - rawOffsets[idx << 2];
+    }
+
+    private int nameChar(final int idx, final int i) {
+        final String name = names[idx];
+        return name != null ? name.charAt(i) : raw[rawOffsets[idx << 2] + i] & 0xff;
+    }
+
+    private boolean nameEquals(final int idx, final String headerName, final int hash) {
+        if (hashes[idx] != hash) {
+            return false;
+        }
+        final String name = names[idx];
+        if (name == headerName) {
+            return true;
+        }
+        final int len = headerName.length();
+        if (nameLength(idx) != len) {
+            return false;
+        }
+        int a, b;
+        for (int i = 0; i < len; i ++) {
+            a = nameChar(idx, i);
+            b = headerName.charAt(i);
+            if (a != b && lower(a) != lower(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nameEquals(final int idx, final int other) {
+        if (hashes[idx] != hashes[other]) {
+            return false;
+        }
+        final int len = nameLength(idx);
+        if (nameLength(other) != len) {
+            return false;
+        }
+        int a, b;
+        for (int i = 0; i < len; i ++) {
+            a = nameChar(idx, i);
+            b = nameChar(other, i);
+            if (a != b && lower(a) != lower(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // --------------------------------------------------------------------
+    // Entry access
+    // --------------------------------------------------------------------
+
+    private String name(final int idx) {
+        String name = names[idx];
+        if (name == null) {
+            final int start = rawOffsets[idx << 2];
+            final int len = rawOffsets[(idx << 2) + 1] - start;
+            name = Headers.getName(raw, start, len);
+            if (name == null) {
+                name = new String(raw, start, len, Http.LATIN_1);
+            }
+            names[idx] = name;
+        }
+        return name;
+    }
+
+    private String value(final int idx) {
+        String value = values[idx];
+        if (value == null) {
+            final int start = rawOffsets[(idx << 2) + 2];
+            value = values[idx] = new String(raw, start, rawOffsets[(idx << 2) + 3] - start, Http.LATIN_1);
+        }
+        return value;
+    }
+
+    /**
+     * Find the first entry of a header.
+     *
+     * @param headerName the header name
+     * @return the entry index, or -1 if there is no such header
+     */
+    private int find(final String headerName) {
+        final int hash = hash(headerName);
+        final int[] table = this.table;
+        final int mask = table.length - 1;
+        int idx;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            if ((idx = table[i] - 1) == -1) {
+                return -1;
+            }
+            if (nameEquals(idx, headerName, hash)) {
+                return idx;
+            }
+        }
+    }
+
+    /**
+     * Link an entry to the end of its header's chain, or enter it into the table if it is the first of its header.
+     *
+     * @param idx the entry index
+     */
+    private void link(final int idx) {
+        next[idx] = -1;
+        final int[] table = this.table;
+        final int mask = table.length - 1;
+        int first;
+        for (int i = hashes[idx] & mask;; i = (i + 1) & mask) {
+            if ((first = table[i] - 1) == -1) {
+                table[i] = idx + 1;
+                tail[idx] = idx;
+                return;
+            }
+            if (nameEquals(first, idx)) {
+                next[tail[first]] = idx;
+                tail[first] = idx;
+                return;
+            }
+        }
+    }
+
+    private void rehash() {
+        Arrays.fill(table, 0);
+        final int size = this.size;
+        for (int i = 0; i < size; i ++) {
+            link(i);
+        }
+    }
+
+    private void grow() {
+        final int capacity = names.length << 1;
+        names = Arrays.copyOf(names, capacity);
+        values = Arrays.copyOf(values, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        next = Arrays.copyOf(next, capacity);
+        tail = Arrays.copyOf(tail, capacity);
+        table = new int[tableSize(capacity)];
+        rehash();
+    }
 
-        HeaderValue(final String name) {
-            this.name = name;
+    private void checkRetired() {
+        if (retired) {
+            throw new IllegalStateException("Header map used after it was recycled");
         }
+    }
 
-        HeaderValue(final String name, final String singleValue) {
-            this(name);
-            add(singleValue);
+    private void checkWritable() {
+        checkRetired();
+        if (locked) {
+            throw new IllegalStateException("Header map is locked");
+        }
+        if (shared) {
+            names = names.clone();
+            values = values.clone();
+            hashes = hashes.clone();
+            next = next.clone();
+            tail = tail.clone();
+            table = table.clone();
+            shared = false;
+            source = null;
         }
+    }
 
-        HeaderValue(final String name, final Collection<String> c) {
-            super(c);
-            this.name = name;
+    private void addEntry(final String headerName, final int hash, final String headerValue) {
+        if (headerValue == null) {
+            throw new IllegalArgumentException("headerValue is null");
         }
+        if (size == names.length) {
+            grow();
+        }
+        final int idx = size++;
+        names[idx] = headerName;
+        values[idx] = headerValue;
+        hashes[idx] = hash;
+        link(idx);
+    }
 
-        public String getName() {
-            return name;
+    private boolean isFirst(final int idx) {
+        final int[] table = this.table;
+        final int mask = table.length - 1;
+        int first;
+        for (int i = hashes[idx] & mask;; i = (i + 1) & mask) {
+            if ((first = table[i] - 1) == -1) {
+                return false;
+            }
+            if (first == idx) {
+                return true;
+            }
         }
     }
 
-    // todo - replace with a collision-limiting variant!
-    private final Map<String, HeaderValue> values = new LinkedHashMap<>();
+    // --------------------------------------------------------------------
+    // Public API
+    // --------------------------------------------------------------------
 
+    /**
+     * Get an iterator over the distinct header names.
+     *
+     * @return the iterator
+     */
     public Iterator<String> iterator() {
-        final Iterator<HeaderValue> iterator = values.values().iterator();
+        checkRetired();
         return new Iterator<String>() {
+            private int idx = nextFirst(0);
+            private int last = -1;
+
+            private int nextFirst(int idx) {
+                while (idx < size && ! isFirst(idx)) {
+                    idx ++;
+                }
+                return idx;
+            }
+
             public boolean hasNext() {
-                return iterator.hasNext();
+                checkRetired();
+                return idx < size;
             }
 
             public String next() {
-                return iterator.next().getName();
+                checkRetired();
+                if (idx >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = idx;
+                idx = nextFirst(idx + 1);
+                return name(last);
             }
 
             public void remove() {
-                iterator.remove();
+                if (last == -1) {
+                    throw new IllegalStateException();
+                }
+                // only entries from the first one of the removed header onwards move
+                HeaderMap.this.remove(name(last));
+                idx = nextFirst(last);
+                last = -1;
             }
         };
     }
 
     public String getFirst(String headerName) {
-        final Deque<String> deque = values.get(headerName.toLowerCase(Locale.US));
-        return deque == null ? null : deque.peekFirst();
+        checkRetired();
+        final int idx = find(headerName);
+        return idx == -1 ? null : value(idx);
     }
 
     public String getLast(String headerName) {
-        final Deque<String> deque = values.get(headerName.toLowerCase(Locale.US));
-        return deque == null ? null : deque.peekLast();
+        checkRetired();
+        final int idx = find(headerName);
+        return idx == -1 ? null : value(tail[idx]);
     }
 
+    /**
+     * Get all the values of a header.  The returned collection is a copy.
+     *
+     * @param headerName the header name
+     * @return the values, or {@code null} if there is no such header
+     */
     public Deque<String> get(String headerName) {
-        return values.get(headerName.toLowerCase(Locale.US));
+        checkRetired();
+        int idx = find(headerName);
+        if (idx == -1) {
+            return null;
+        }
+        final ArrayDeque<String> deque = new ArrayDeque<String>();
+        do {
+            deque.add(value(idx));
+            idx = next[idx];
+        } while (idx != -1);
+        return deque;
     }
 
     public void add(String headerName, String headerValue) {
-        final String key = headerName.toLowerCase(Locale.US);
-        final HeaderValue value = values.get(key);
-        if (value == null) {
-            values.put(key, new HeaderValue(headerName, headerValue));
-        } else {
-            value.add(headerValue);
-        }
+        checkWritable();
+        addEntry(headerName, hash(headerName), headerValue);
     }
 
     public void addAll(String headerName, Collection<String> headerValues) {
-        final String key = headerName.toLowerCase(Locale.US);
-        final HeaderValue value = values.get(key);
-        if (value == null) {
-            values.put(key, new HeaderValue(headerName, headerValues));
-        } else {
-            value.addAll(headerValues);
+        checkWritable();
+        final int hash = hash(headerName);
+        for (String headerValue : headerValues) {
+            addEntry(headerName, hash, headerValue);
         }
     }
 
+    /**
+     * Add all the headers of another map.  If this map is empty and the other map is locked, the other map's storage
+     * is shared rather than copied.
+     *
+     * @param other the other map
+     */
     public void addAll(HeaderMap other) {
-        for (Map.Entry<String, HeaderValue> entry : other.values.entrySet()) {
-            final String key = entry.getKey();
-            final HeaderValue value = entry.getValue();
-            final HeaderValue target = values.get(key);
-            if (target == null) {
-                values.put(key, new HeaderValue(value.getName(), value));
-            } else {
-                target.addAll(value);
-            }
+        checkRetired();
+        other.checkRetired();
+        if (size == 0 && other.locked && ! locked) {
+            names = other.names;
+            values = other.values;
+            hashes = other.hashes;
+            next = other.next;
+            tail = other.tail;
+            table = other.table;
+            size = other.size;
+            raw = null;
+            rawOffsets = null;
+            rawCount = 0;
+            shared = true;
+            final HeaderMap source = other.source != null ? other.source : other;
+            source.adopted = true;
+            this.source = source;
+            return;
+        }
+        checkWritable();
+        final int size = other.size;
+        for (int i = 0; i < size; i ++) {
+            addEntry(other.name(i), other.hashes[i], other.value(i));
         }
     }
 
     public void put(String headerName, String headerValue) {
-        final String key = headerName.toLowerCase(Locale.US);
-        final HeaderValue value = new HeaderValue(headerName, headerValue);
-        values.put(key, value);
+        checkWritable();
+        remove(headerName);
+        add(headerName, headerValue);
     }
 
     public void putAll(String headerName, Collection<String> headerValues) {
-        final String key = headerName.toLowerCase(Locale.US);
-        final HeaderValue deque = new HeaderValue(headerName, headerValues);
-        values.put(key, deque);
+        checkWritable();
+        remove(headerName);
+        addAll(headerName, headerValues);
     }
 
+    /**
+     * Remove all the values of a header.
+     *
+     * @param headerName the header name
+     * @return the removed values, or {@code null} if there was no such header
+     */
     public Collection<String> remove(String headerName) {
-        return values.remove(headerName);
+        checkWritable();
+        int idx = find(headerName);
+        if (idx == -1) {
+            return null;
+        }
+        final List<String> removed = new ArrayList<String>();
+        final int hash = hashes[idx];
+        final String[] names = this.names;
+        final String[] values = this.values;
+        final int[] hashes = this.hashes;
+        final int[] rawOffsets = this.rawOffsets;
+        final int size = this.size;
+        final int rawCount = this.rawCount;
+        int newRawCount = rawCount;
+        int w = idx;
+        for (int r = idx; r < size; r ++) {
+            if (nameEquals(r, headerName, hash)) {
+                removed.add(value(r));
+                if (r < rawCount) {
+                    newRawCount --;
+                }
+            } else {
+                if (r < rawCount) {
+                    System.arraycopy(rawOffsets, r << 2, rawOffsets, w << 2, 4);
+                }
+                names[w] = names[r];
+                values[w] = values[r];
+                hashes[w] = hashes[r];
+                w ++;
+            }
+        }
+        Arrays.fill(names, w, size, null);
+        Arrays.fill(values, w, size, null);
+        this.size = w;
+        this.rawCount = newRawCount;
+        rehash();
+        return removed;
     }
 
     /**
-     * Lock this header map to make it immutable.  This method is idempotent.
+     * Remove all the headers.  The storage is kept unless it is shared with a locked map, so a map which is cleared
+     * and refilled does not allocate once it has grown to size.
+     *
+     * @throws IllegalStateException if this map is locked
+     */
+    public void clear() throws IllegalStateException {
+        checkRetired();
+        if (locked) {
+            throw new IllegalStateException("Header map is locked");
+        }
+        if (shared) {
+            allocate(MIN_CAPACITY);
+            shared = false;
+            source = null;
+        } else {
+            Arrays.fill(names, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            Arrays.fill(table, 0);
+        }
+        size = 0;
+        raw = null;
+        rawOffsets = null;
+        rawCount = 0;
+    }
+
+    /**
+     * Clear this map and refill it from a raw header block, as if it were newly constructed with
+     * {@link #HeaderMap(byte[], int[], int)}.
+     *
+     * @param raw the raw header block (ISO-8859-1)
+     * @param rawOffsets the {@code (nameStart, nameEnd, valueStart, valueEnd)} positions of each header within the block
+     * @param rawCount the number of headers
+     * @throws IllegalStateException if this map is locked
+     */
+    public void reset(final byte[] raw, final int[] rawOffsets, final int rawCount) {
+        clear();
+        if (rawCount > names.length) {
+            allocate(rawCount);
+        }
+        setRaw(raw, rawOffsets, rawCount);
+    }
+
+    /**
+     * Lock this header map to make it immutable.  All the headers are decoded and the storage is trimmed if it is
+     * mostly unused, so that the map is never written to again.  This method is idempotent.
      */
     public void lock() {
+        checkRetired();
+        if (locked) {
+            return;
+        }
+        locked = true;
+        if (shared) {
+            // already compact
+            return;
+        }
+        final int size = this.size;
+        for (int i = 0; i < rawCount; i ++) {
+            name(i);
+            value(i);
+        }
+        raw = null;
+        rawOffsets = null;
+        rawCount = 0;
+        if (size < names.length >> 1) {
+            final int capacity = Math.max(2, size);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            next = Arrays.copyOf(next, capacity);
+            tail = Arrays.copyOf(tail, capacity);
+            table = new int[tableSize(capacity)];
+            rehash();
+        }
+    }
 
+    /**
+     * Get the encoded form of this map: a {@code name: value} line, terminated by CRLF, for each header value.  A
+     * locked map is encoded just once, into a read-only buffer which is direct unless the map was first encoded by
+     * {@link #encodeTo(ByteBuffer)}, so a header block which is sent often can be prepared ahead of time by locking it.  The returned buffer may be freely consumed.
+     *
+     * @return the encoded headers
+     */
+    public ByteBuffer getEncoded() {
+        checkRetired();
+        final HeaderMap source = this.source;
+        // the source may have been recycled since, but its storage is never reused once shared
+        return source != null ? source.encoded() : encoded();
+    }
+
+    private ByteBuffer encoded() {
+        if (! locked) {
+            return ByteBuffer.wrap(encode());
+        }
+        ByteBuffer encoded = this.encoded;
+        if (encoded == null) {
+            final byte[] bytes = encode();
+            encoded = ByteBuffer.allocateDirect(bytes.length);
+            encoded.put(bytes).flip();
+            this.encoded = encoded = encoded.asReadOnlyBuffer();
+        }
+        return encoded.duplicate();
+    }
+
+    /**
+     * Encode this map into a buffer, in the same form as {@link #getEncoded()}.  If the map does not fit in the
+     * remaining space of the buffer, nothing is written.  The encoded form of a locked map is kept on first use, and
+     * later encodings copy it in bulk.
+     *
+     * @param buffer the buffer to encode into
+     * @return {@code true} if the map was encoded, {@code false} if it did not fit
+     */
+    public boolean encodeTo(final ByteBuffer buffer) {
+        checkRetired();
+        final HeaderMap source = this.source;
+        return source != null ? source.doEncodeTo(buffer) : doEncodeTo(buffer);
+    }
+
+    private boolean doEncodeTo(final ByteBuffer buffer) {
+        ByteBuffer encoded = this.encoded;
+        if (encoded != null) {
+            if (encoded.remaining() > buffer.remaining()) {
+                return false;
+            }
+            buffer.put(encoded.duplicate());
+            return true;
+        }
+        final int length = encodedLength();
+        if (length > buffer.remaining()) {
+            return false;
+        }
+        final int start = buffer.position();
+        final int size = this.size;
+        for (int i = 0; i < size; i ++) {
+            put(buffer, name(i));
+            buffer.put((byte) ':').put((byte) ' ');
+            put(buffer, value(i));
+            buffer.put((byte) '\r').put((byte) '\n');
+        }
+        if (locked) {
+            // keep what was just written, so later encodings are a bulk copy
+            encoded = buffer.duplicate();
+            encoded.position(start).limit(start + length);
+            final byte[] bytes = new byte[length];
+            encoded.get(bytes);
+            this.encoded = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        return true;
+    }
+
+    private int encodedLength() {
+        final int size = this.size;
+        int len = 0;
+        for (int i = 0; i < size; i ++) {
+            len += name(i).length() + value(i).length() + 4;
+        }
+        return len;
+    }
+
+    private byte[] encode() {
+        final int size = this.size;
+        final byte[] bytes = new byte[encodedLength()];
+        int p = 0;
+        for (int i = 0; i < size; i ++) {
+            p = put(bytes, p, name(i));
+            bytes[p++] = ':';
+            bytes[p++] = ' ';
+            p = put(bytes, p, value(i));
+            bytes[p++] = '\r';
+            bytes[p++] = '\n';
+        }
+        return bytes;
+    }
+
+    private static int put(final byte[] bytes, int p, final String str) {
+        final int len = str.length();
+        char c;
+        for (int i = 0; i < len; i ++) {
+            c = str.charAt(i);
+            bytes[p++] = c > 0xff ? (byte) '?' : (byte) c;
+        }
+        return p;
+    }
+
+    private static void put(final ByteBuffer buffer, final String str) {
+        final int len = str.length();
+        char c;
+        for (int i = 0; i < len; i ++) {
+            c = str.charAt(i);
+            buffer.put(c > 0xff ? (byte) '?' : (byte) c);
+        }
+    }
+
+    /**
+     * Determine whether this map is locked.
+     *
+     * @return {@code true} if the map is locked
+     */
+    public boolean isLocked() {
+        checkRetired();
+        return locked;
     }
 
     public boolean contains(String headerName) {
-        final HeaderValue value = values.get(headerName.toLowerCase(Locale.US));
-        return value != null && ! value.isEmpty();
+        checkRetired();
+        return find(headerName) != -1;
+    }
+
+    /**
+     * Retire this map, so that any further use of it fails, and get an empty, unlocked map to use in its place.  The
+     * new map takes over the storage of this one unless it is shared with another map, so header maps can be reused
+     * once the code which held them is known to be done, without the risk of stale references seeing new headers.
+     *
+     * @return the new, empty map
+     * @throws IllegalStateException if this map was already recycled
+     */
+    public HeaderMap recycle() throws IllegalStateException {
+        checkRetired();
+        retired = true;
+        final HeaderMap map = shared || adopted ? new HeaderMap() : new HeaderMap(this);
+        raw = null;
+        rawOffsets = null;
+        return map;
     }
 }
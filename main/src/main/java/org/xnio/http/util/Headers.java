@@ -22,6 +22,8 @@
 
 package org.xnio.http.util;
 
+import java.util.Arrays;
+
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
@@ -72,6 +74,9 @@ public final class Headers {
     public static final String REFERER = "Referer";
     public static final String REFRESH = "Refresh";
     public static final String RETRY_AFTER = "Retry-After";
+    public static final String SEC_WEB_SOCKET_ACCEPT = "Sec-WebSocket-Accept";
+    public static final String SEC_WEB_SOCKET_KEY = "Sec-WebSocket-Key";
+    public static final String SEC_WEB_SOCKET_VERSION = "Sec-WebSocket-Version";
     public static final String SERVER = "Server";
     public static final String SET_COOKIE = "Set-Cookie";
     public static final String SET_COOKIE2 = "Set-Cookie2";
@@ -103,4 +108,92 @@ public final class Headers {
     // COMPRESS
     // DEFLATE
 
+    // Connection options
+
+    public static final String CLOSE = "close";
+    public static final String KEEP_ALIVE = "keep-alive";
+    public static final String UPGRADE_TOKEN = "upgrade";
+
+    // Upgrade protocols
+
+    public static final String WEBSOCKET = "websocket";
+
+    // Well-known header name lookup
+
+    private static final String[] NAMES = {
+        ACCEPT, ACCEPT_CHARSET, ACCEPT_ENCODING, ACCEPT_LANGUAGE,
+        ACCEPT_RANGES, AGE, ALLOW, AUTHORIZATION,
+        CACHE_CONTROL, COOKIE, CONNECTION, CONTENT_DISPOSITION,
+        CONTENT_ENCODING, CONTENT_LANGUAGE, CONTENT_LENGTH, CONTENT_LOCATION,
+        CONTENT_MD5, CONTENT_RANGE, CONTENT_TYPE, DATE,
+        ETAG, EXPECT, EXPIRES, FROM,
+        HOST, IF_MATCH, IF_MODIFIED_SINCE, IF_NONE_MATCH,
+        IF_RANGE, IF_UNMODIFIED_SINCE, LAST_MODIFIED, LOCATION,
+        MAX_FORWARDS, PRAGMA, PROXY_AUTHENTICATE, PROXY_AUTHORIZATION,
+        RANGE, REFERER, REFRESH, RETRY_AFTER,
+        SEC_WEB_SOCKET_ACCEPT, SEC_WEB_SOCKET_KEY, SEC_WEB_SOCKET_VERSION,
+        SERVER, SET_COOKIE, SET_COOKIE2, STRICT_TRANSPORT_SECURITY,
+        TE, TRAILER, TRANSFER_ENCODING, UPGRADE,
+        USER_AGENT, VARY, VIA, WARNING,
+        WWW_AUTHENTICATE,
+    };
+
+    /**
+     * The well-known header names, indexed by length.
+     */
+    private static final String[][] NAMES_BY_LENGTH;
+
+    static {
+        int max = 0;
+        for (String name : NAMES) {
+            max = Math.max(max, name.length());
+        }
+        final String[][] namesByLength = new String[max + 1][];
+        for (String name : NAMES) {
+            final int len = name.length();
+            final String[] names = namesByLength[len];
+            if (names == null) {
+                namesByLength[len] = new String[] { name };
+            } else {
+                final String[] newNames = Arrays.copyOf(names, names.length + 1);
+                newNames[names.length] = name;
+                namesByLength[len] = newNames;
+            }
+        }
+        NAMES_BY_LENGTH = namesByLength;
+    }
+
+    private static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Get the well-known header name spelled by the given bytes, ignoring case.
+     *
+     * @param bytes the bytes (ISO-8859-1)
+     * @param offs the offset of the name
+     * @param len the length of the name
+     * @return the header name constant, or {@code null} if the name is not well-known
+     */
+    static String getName(final byte[] bytes, final int offs, final int len) {
+        if (len >= NAMES_BY_LENGTH.length) {
+            return null;
+        }
+        final String[] names = NAMES_BY_LENGTH[len];
+        if (names == null) {
+            return null;
+        }
+        int a, b;
+        outer: for (String name : names) {
+            for (int i = 0; i < len; i ++) {
+                a = bytes[offs + i] & 0xff;
+                b = name.charAt(i);
+                if (a != b && lower(a) != lower(b)) {
+                    continue outer;
+                }
+            }
+            return name;
+        }
+        return null;
+    }
 }
@@ -52,7 +52,7 @@ public final class SecureHashMap<K, V> extends AbstractMap<K, V> implements Conc
     private static final float DEFAULT_LOAD_FACTOR = 0.60f;
 
     /** A row which has been resized into the new view. */
-    private static final Object[] RESIZED = new Object[0];
+    private static final Item<?, ?>[] RESIZED = new Item<?, ?>[0];
     /** A non-existent table entry (as opposed to a {@code null} value). */
     private static final Object NONEXISTENT = new Object();
 
@@ -274,7 +274,9 @@ public final class SecureHashMap<K, V> extends AbstractMap<K, V> implements Conc
                     }
                 }
             } while (! origArray.compareAndSet(i, origRow, SecureHashMap.<K, V>resized()));
-            sizeUpdater.getAndAdd(newTable, origRow.length);
+            if (origRow != null) {
+                sizeUpdater.getAndAdd(newTable, origRow.length);
+            }
         }
 
         int size;
@@ -608,6 +610,12 @@ public final class SecureHashMap<K, V> extends AbstractMap<K, V> implements Conc
     private V doGet(final Table<K, V> table, final K key) {
         final AtomicReferenceArray<Item<K, V>[]> array = table.array;
         final Item<K, V>[] row = array.get(hashOf(key) & (array.length() - 1));
+        if (row == null) {
+            return nonexistent();
+        }
+        if (row == RESIZED) {
+            return doGet(table.resizeView, key);
+        }
         for (Item<K, V> item : row) {
             if (equals(key, item.key)) {
                 return item.value;
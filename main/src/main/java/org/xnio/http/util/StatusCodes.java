@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.util;
+
+import java.nio.ByteBuffer;
+import org.xnio.http.Http;
+
+/**
+ * HTTP response status codes and their reason phrases, along with pre-encoded status lines.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class StatusCodes {
+
+    private StatusCodes() {
+    }
+
+    private static final String[] REASONS = new String[600];
+    /**
+     * Encoded status lines, indexed by code, for HTTP/1.0 and HTTP/1.1 respectively.
+     */
+    private static final ByteBuffer[] HTTP_1_0_LINES = new ByteBuffer[600];
+    private static final ByteBuffer[] HTTP_1_1_LINES = new ByteBuffer[600];
+
+    static {
+        final String[] reasons = REASONS;
+        reasons[100] = "Continue";
+        reasons[101] = "Switching Protocols";
+        reasons[200] = "OK";
+        reasons[201] = "Created";
+        reasons[202] = "Accepted";
+        reasons[203] = "Non-Authoritative Information";
+        reasons[204] = "No Content";
+        reasons[205] = "Reset Content";
+        reasons[206] = "Partial Content";
+        reasons[300] = "Multiple Choices";
+        reasons[301] = "Moved Permanently";
+        reasons[302] = "Found";
+        reasons[303] = "See Other";
+        reasons[304] = "Not Modified";
+        reasons[305] = "Use Proxy";
+        reasons[307] = "Temporary Redirect";
+        reasons[400] = "Bad Request";
+        reasons[401] = "Unauthorized";
+        reasons[402] = "Payment Required";
+        reasons[403] = "Forbidden";
+        reasons[404] = "Not Found";
+        reasons[405] = "Method Not Allowed";
+        reasons[406] = "Not Acceptable";
+        reasons[407] = "Proxy Authentication Required";
+        reasons[408] = "Request Timeout";
+        reasons[409] = "Conflict";
+        reasons[410] = "Gone";
+        reasons[411] = "Length Required";
+        reasons[412] = "Precondition Failed";
+        reasons[413] = "Request Entity Too Large";
+        reasons[414] = "Request-URI Too Long";
+        reasons[415] = "Unsupported Media Type";
+        reasons[416] = "Requested Range Not Satisfiable";
+        reasons[417] = "Expectation Failed";
+        reasons[500] = "Internal Server Error";
+        reasons[501] = "Not Implemented";
+        reasons[502] = "Bad Gateway";
+        reasons[503] = "Service Unavailable";
+        reasons[504] = "Gateway Timeout";
+        reasons[505] = "HTTP Version Not Supported";
+        for (int i = 0; i < reasons.length; i ++) {
+            if (reasons[i] != null) {
+                HTTP_1_0_LINES[i] = encode(Protocols.HTTP_1_0, i);
+                HTTP_1_1_LINES[i] = encode(Protocols.HTTP_1_1, i);
+            }
+        }
+    }
+
+    /**
+     * Get the reason phrase for a status code.
+     *
+     * @param code the status code
+     * @return the reason phrase, or {@code "Unknown"} if the code is not a standard one
+     */
+    public static String getReason(final int code) {
+        final String reason = code >= 0 && code < REASONS.length ? REASONS[code] : null;
+        return reason == null ? "Unknown" : reason;
+    }
+
+    /**
+     * Get the status line for a response, including the trailing CRLF.  The status lines of the standard codes for
+     * HTTP/1.0 and HTTP/1.1 are encoded only once; the returned buffer is a read-only duplicate which may be freely
+     * consumed.
+     *
+     * @param protocol the response protocol
+     * @param code the status code
+     * @return the encoded status line
+     */
+    public static ByteBuffer getStatusLine(final String protocol, final int code) {
+        if (code >= 0 && code < REASONS.length) {
+            final ByteBuffer line;
+            if (protocol.equals(Protocols.HTTP_1_1)) {
+                line = HTTP_1_1_LINES[code];
+            } else if (protocol.equals(Protocols.HTTP_1_0)) {
+                line = HTTP_1_0_LINES[code];
+            } else {
+                line = null;
+            }
+            if (line != null) {
+                return line.duplicate();
+            }
+        }
+        return ByteBuffer.wrap((protocol + ' ' + code + ' ' + getReason(code) + "\r\n").getBytes(Http.LATIN_1));
+    }
+
+    private static ByteBuffer encode(final String protocol, final int code) {
+        final byte[] bytes = (protocol + ' ' + code + ' ' + REASONS[code] + "\r\n").getBytes(Http.LATIN_1);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+}
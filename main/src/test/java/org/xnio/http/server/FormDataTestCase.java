@@ -0,0 +1,124 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.xnio.FutureResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.xnio.http.server.TestChannel.LATIN_1;
+
+/**
+ * Check the limits on the number of fields of a form and on the sizes of its values and files.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class FormDataTestCase {
+
+    @Test
+    public void testUrlEncodedFieldCount() throws IOException {
+        final MultipartFormDecoderTestCase.RecordingHandler handler = new MultipartFormDecoderTestCase.RecordingHandler();
+        final UrlEncodedFormDecoder decoder = new UrlEncodedFormDecoder(handler, 3);
+        decoder.decode(buffer("a=1&b&c=3"));
+        decoder.finish();
+        assertEquals("[a=1][b=][c=3]", handler.result.toString());
+        final UrlEncodedFormDecoder tooMany = new UrlEncodedFormDecoder(new MultipartFormDecoderTestCase.RecordingHandler(), 3);
+        try {
+            tooMany.decode(buffer("a=1&b&c=3&d=4"));
+            fail("Expected an exception");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFieldCount() throws IOException {
+        final FormData formData = new FormData(new FutureResult<FormData>(), null, 100L, 2, 100L, 100L);
+        field(formData, "a", "1");
+        field(formData, "b", "2");
+        try {
+            formData.startPart("c", null, null);
+            fail("Expected an exception");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFieldSize() throws IOException {
+        final FormData formData = new FormData(new FutureResult<FormData>(), null, 4L, 10, 100L, 100L);
+        field(formData, "a", "1234");
+        formData.startPart("b", null, null);
+        formData.partData(buffer("123"));
+        try {
+            formData.partData(buffer("45"));
+            fail("Expected an exception");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testMemorySize() throws IOException {
+        final FormData formData = new FormData(new FutureResult<FormData>(), null, 4L, 10, 10L, 100L);
+        field(formData, "a", "1234");
+        field(formData, "b", "1234");
+        formData.startPart("c", null, null);
+        formData.partData(buffer("12"));
+        try {
+            formData.partData(buffer("3"));
+            fail("Expected an exception");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFileSize() throws IOException {
+        final FormData formData = new FormData(new FutureResult<FormData>(), null, 4L, 10, 4L, 8L);
+        formData.startPart("f", "one.txt", null);
+        formData.partData(buffer("12345678"));
+        formData.endPart();
+        formData.startPart("g", "two.txt", null);
+        formData.partData(buffer("1234"));
+        final File file = formData.getFirst("f").getFile();
+        try {
+            formData.partData(buffer("56789"));
+            fail("Expected an exception");
+        } catch (IOException e) {
+            formData.failed(e);
+        }
+        assertFalse(file.exists());
+    }
+
+    private static void field(final FormData formData, final String name, final String value) throws IOException {
+        formData.startPart(name, null, null);
+        formData.partData(buffer(value));
+        formData.endPart();
+    }
+
+    private static ByteBuffer buffer(final String data) {
+        return ByteBuffer.wrap(data.getBytes(LATIN_1));
+    }
+}
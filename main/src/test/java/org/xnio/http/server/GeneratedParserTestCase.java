@@ -0,0 +1,185 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.xnio.http.Http;
+import org.xnio.http.util.HeaderMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Check that the request head parser generated at build time behaves exactly like the hand-written one it replaces.
+ * Random request heads, some well formed and some corrupted, are fed to both parsers in the same random pieces, and
+ * every result is compared.  The hand-written parser is only present as {@code decodeHandWritten} once the generator
+ * has rewritten the compiled class, so the test fails if the classes were built without it.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class GeneratedParserTestCase {
+
+    private static final int ITERATIONS = 50000;
+
+    private static final String[] METHODS = { "GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "TRACE", "CONNECT", "PATCH", "G", "GE", "GETS", "POS", "CONNEC", "X", "get" };
+    private static final String[] PROTOCOLS = { "HTTP/1.1", "HTTP/1.0", "HTTP/2.0", "HTTP/1.1 ", "H", "http/1.1", "XTTP/1.1" };
+    private static final String[] NAMES = { "Host", "Content-Length", "accept", "X-A-Rather-Long-Custom-Header", "Cookie", "A" };
+    private static final String[] VALUES = { "", "x", "  padded  ", "a, b, c", "text/html;q=0.9\t", "a value long enough to span several words" };
+    private static final char[] CORRUPTION = { ' ', '\t', '\r', '\n', ':', 'H', '\0', '\u00ff' };
+
+    private Method handWritten;
+    private Field method;
+    private Field requestUri;
+    private Field protocol;
+    private Field requestHeaders;
+
+    @Before
+    public void setUp() throws Exception {
+        try {
+            handWritten = HttpReadListener.class.getDeclaredMethod("decodeHandWritten", ByteBuffer.class);
+            handWritten.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            handWritten = null;
+        }
+        method = field("method");
+        requestUri = field("requestUri");
+        protocol = field("protocol");
+        requestHeaders = field("requestHeaders");
+    }
+
+    private static Field field(final String name) throws NoSuchFieldException {
+        final Field field = HttpReadListener.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    @Test
+    public void testGeneratedParserMatchesHandWritten() throws Exception {
+        assertNotNull("HttpReadListener.decodeHandWritten is missing; the request parser generator did not run", handWritten);
+        final Method generated = HttpReadListener.class.getDeclaredMethod("decode", ByteBuffer.class);
+        generated.setAccessible(true);
+        final Random random = new Random(8249L);
+        for (int i = 0; i < ITERATIONS; i ++) {
+            final byte[] input = generate(random);
+            final HttpReadListener expectedListener = new HttpReadListener(null, null);
+            final HttpReadListener actualListener = new HttpReadListener(null, null);
+            final ByteBuffer expectedBuffer = ByteBuffer.wrap(input.clone());
+            final ByteBuffer actualBuffer = ByteBuffer.wrap(input.clone());
+            expectedBuffer.limit(0);
+            actualBuffer.limit(0);
+            final String message = "Input #" + i + ": " + new String(input, Http.LATIN_1);
+            int limit = 0;
+            out: while (limit < input.length) {
+                // deliver the input in pieces of random size, some smaller than a word
+                limit = Math.min(input.length, limit + 1 + random.nextInt(random.nextBoolean() ? 4 : 64));
+                expectedBuffer.limit(limit);
+                actualBuffer.limit(limit);
+                for (;;) {
+                    final String expected = decode(handWritten, expectedListener, expectedBuffer);
+                    final String actual = decode(generated, actualListener, actualBuffer);
+                    assertEquals(message, expected, actual);
+                    if (expected.startsWith("threw")) {
+                        break out;
+                    }
+                    if (expected.startsWith("false") || ! expectedBuffer.hasRemaining()) {
+                        // wait for more input
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a parser over the available input, and describe the outcome.  A completed request is taken from the
+     * listener, as the connection would do when dispatching it.
+     */
+    private String decode(final Method decode, final HttpReadListener listener, final ByteBuffer buffer) throws Exception {
+        final StringBuilder b = new StringBuilder();
+        try {
+            b.append(decode.invoke(listener, buffer));
+        } catch (InvocationTargetException e) {
+            return "threw " + e.getCause().getClass().getName() + " at " + buffer.position();
+        }
+        b.append(" at ").append(buffer.position());
+        final HeaderMap headers = (HeaderMap) requestHeaders.get(listener);
+        if (headers != null) {
+            b.append(" complete: ").append(method.get(listener)).append(' ').append(requestUri.get(listener)).append(' ').append(protocol.get(listener));
+            for (String name : headers) {
+                b.append(" | ").append(name).append(": ").append(headers.get(name));
+            }
+            requestHeaders.set(listener, null);
+            method.set(listener, null);
+            requestUri.set(listener, null);
+            protocol.set(listener, null);
+        }
+        return b.toString();
+    }
+
+    private static byte[] generate(final Random random) {
+        final StringBuilder b = new StringBuilder();
+        final int requests = 1 + random.nextInt(3);
+        for (int r = 0; r < requests; r ++) {
+            b.append(pick(random, METHODS));
+            b.append(random.nextInt(8) == 0 ? "  " : " ");
+            b.append('/');
+            final int uriLength = random.nextInt(40);
+            for (int i = 0; i < uriLength; i ++) {
+                b.append((char) ('a' + random.nextInt(26)));
+            }
+            if (random.nextInt(10) == 0) {
+                // a simple (HTTP/0.9) request
+                b.append("\r\n");
+                continue;
+            }
+            b.append(' ').append(pick(random, PROTOCOLS)).append("\r\n");
+            final int headers = random.nextInt(8);
+            for (int h = 0; h < headers; h ++) {
+                b.append(pick(random, NAMES)).append(':');
+                if (random.nextBoolean()) {
+                    b.append(' ');
+                }
+                b.append(pick(random, VALUES)).append("\r\n");
+            }
+            b.append("\r\n");
+        }
+        final byte[] bytes = b.toString().getBytes(Http.LATIN_1);
+        if (random.nextInt(4) == 0) {
+            final int corruptions = 1 + random.nextInt(3);
+            for (int i = 0; i < corruptions; i ++) {
+                bytes[random.nextInt(bytes.length)] = (byte) CORRUPTION[random.nextInt(CORRUPTION.length)];
+            }
+        }
+        return bytes;
+    }
+
+    private static String pick(final Random random, final String[] strings) {
+        return strings[random.nextInt(strings.length)];
+    }
+}
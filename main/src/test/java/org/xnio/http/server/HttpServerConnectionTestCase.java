@@ -0,0 +1,156 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.xnio.BufferAllocator;
+import org.xnio.ByteBufferSlicePool;
+import org.xnio.OptionMap;
+import org.xnio.Pool;
+import org.xnio.channels.ConnectedStreamChannel;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.http.HttpOptions;
+import org.xnio.http.util.Headers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.xnio.http.server.TestChannel.LATIN_1;
+
+/**
+ * Check whole exchanges on a connection, from the request bytes read to the response bytes written.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class HttpServerConnectionTestCase {
+
+    @Test
+    public void testUpgrade() throws IOException {
+        final TestChannel test = new TestChannel();
+        connect(test, OptionMap.EMPTY, new HttpHandler() {
+            public void handleRequest(final HttpServerExchange exchange) {
+                try {
+                    final ConnectedStreamChannel channel = exchange.upgradeChannel();
+                    final ByteBuffer buffer = ByteBuffer.wrap("upgraded data".getBytes(LATIN_1));
+                    while (buffer.hasRemaining()) {
+                        assertTrue(channel.write(buffer) > 0);
+                    }
+                    assertTrue(channel.flush());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        test.feed("GET /chat HTTP/1.1\r\nHost: x\r\nUpgrade: test\r\nConnection: Upgrade\r\n\r\n");
+        test.run();
+        final String output = test.getOutputText();
+        assertTrue(output, output.startsWith("HTTP/1.1 101 "));
+        assertTrue(output, output.endsWith("\r\n\r\nupgraded data"));
+        assertFalse(test.isClosed());
+    }
+
+    @Test
+    public void testWriteBeforeStart() {
+        final TestChannel test = new TestChannel();
+        final boolean[] rejected = new boolean[1];
+        connect(test, OptionMap.EMPTY, new HttpHandler() {
+            public void handleRequest(final HttpServerExchange exchange) {
+                try {
+                    exchange.getResponseChannel().write(ByteBuffer.wrap("early".getBytes(LATIN_1)));
+                } catch (IllegalStateException e) {
+                    rejected[0] = true;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                respond(exchange, "late");
+            }
+        });
+        test.feed("GET / HTTP/1.1\r\nHost: x\r\n\r\n");
+        test.run();
+        assertTrue(rejected[0]);
+        final String output = test.getOutputText();
+        assertTrue(output, output.startsWith("HTTP/1.1 200 "));
+        assertTrue(output, output.endsWith("\r\n\r\nlate"));
+    }
+
+    @Test
+    public void testPipelinedHeaderCounts() {
+        // header counts which fill the parser's offset table exactly
+        for (int headers : new int[] { 15, 16, 17, 32 }) {
+            final StringBuilder request = new StringBuilder("GET /first HTTP/1.1\r\n");
+            for (int i = 0; i < headers; i ++) {
+                request.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+            }
+            request.append("\r\n");
+            final byte[] input = (request + "GET /second HTTP/1.1\r\n" + request.substring(request.indexOf("\r\n") + 2)).getBytes(LATIN_1);
+            for (boolean pipelining : new boolean[] { false, true }) {
+                for (int split = 0; split <= input.length; split ++) {
+                    final TestChannel test = new TestChannel();
+                    connect(test, OptionMap.create(HttpOptions.HTTP_PIPELINE, Boolean.valueOf(pipelining)), new HttpHandler() {
+                        public void handleRequest(final HttpServerExchange exchange) {
+                            assertEquals("0", exchange.getRequestHeaders().getFirst("X-Header-0"));
+                            respond(exchange, exchange.getRequestPath());
+                        }
+                    });
+                    test.feed(input, split);
+                    test.run();
+                    final String output = test.getOutputText();
+                    final String message = headers + " headers, pipelining " + pipelining + ", split at " + split + ": " + output;
+                    assertTrue(message, output.matches("(?s)HTTP/1\\.1 200 .*\r\n\r\n/firstHTTP/1\\.1 200 .*\r\n\r\n/second"));
+                    assertFalse(message, test.isClosed());
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a complete response with the given body, as soon as the response channel is writable.
+     */
+    static void respond(final HttpServerExchange exchange, final String body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body.getBytes(LATIN_1));
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, Integer.toString(buffer.remaining()));
+        try {
+            exchange.startResponse();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        final StreamSinkChannel channel = exchange.getResponseChannel();
+        final BufferWriteListener listener = new BufferWriteListener(exchange.getConnection(), buffer, null);
+        channel.getWriteSetter().set(listener);
+        listener.handleEvent(channel);
+    }
+
+    /**
+     * Begin processing requests on a test channel.
+     */
+    static HttpServerConnection connect(final TestChannel test, final OptionMap optionMap, final HttpHandler handler) {
+        final Pool<ByteBuffer> pool = new ByteBufferSlicePool(BufferAllocator.BYTE_BUFFER_ALLOCATOR, 2048, 16384);
+        final HostHttpContext host = new HostHttpContext(null, null, pool, optionMap, false);
+        host.setHandler(handler);
+        final HttpServerConnection connection = new HttpServerConnection(test.getChannel(), host, pool, optionMap.get(HttpOptions.HTTP_PIPELINE, false));
+        connection.startRequests();
+        return connection;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Check the decompression of request bodies: the optional fields of the {@code gzip} member header, bodies made of
+ * several {@code gzip} members, the {@code deflate} coding, and the limit on the expansion ratio.  Each body is read
+ * in pieces of several sizes, so that headers and trailers are split across reads.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class InflatingStreamSourceChannelTestCase {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int[] CHUNKS = { 1, 2, 7, 64, 100000 };
+
+    @Test
+    public void testGzip() throws IOException {
+        final byte[] data = TestChannel.pattern(5000);
+        checkChunks(true, gzip(data), data);
+    }
+
+    @Test
+    public void testGzipHeaderFields() throws IOException {
+        final byte[] data = TestChannel.pattern(3000);
+        checkChunks(true, member(FEXTRA, data), data);
+        checkChunks(true, member(FNAME, data), data);
+        checkChunks(true, member(FCOMMENT, data), data);
+        checkChunks(true, member(FHCRC, data), data);
+        checkChunks(true, member(FEXTRA | FNAME | FCOMMENT | FHCRC, data), data);
+    }
+
+    @Test
+    public void testGzipMembers() throws IOException {
+        final byte[] first = TestChannel.pattern(2000);
+        final byte[] second = "second member".getBytes("US-ASCII");
+        final byte[] third = new byte[0];
+        checkChunks(true, TestChannel.concat(gzip(first), member(FEXTRA | FNAME | FHCRC, second), member(0, third)), TestChannel.concat(first, second, third));
+    }
+
+    @Test
+    public void testDeflate() throws IOException {
+        final byte[] data = TestChannel.pattern(5000);
+        final Deflater deflater = new Deflater();
+        checkChunks(false, deflate(deflater, data), data);
+    }
+
+    @Test
+    public void testRatio() throws IOException {
+        final byte[] data = new byte[1 << 20];
+        final byte[] body = gzip(data);
+        assertArrayEquals(data, read(true, 2000, body, 4096));
+        try {
+            read(true, 100, body, 4096);
+            fail("Expected an exception");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        final byte[] body = gzip(TestChannel.pattern(1000));
+        for (int length = 0; length < body.length; length ++) {
+            try {
+                read(true, 100, Arrays.copyOf(body, length), 7);
+                fail("Expected an exception at length " + length);
+            } catch (EOFException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptTrailer() throws IOException {
+        final byte[] body = gzip(TestChannel.pattern(1000));
+        body[body.length - 6] ^= 1;
+        try {
+            read(true, 100, body, 64);
+            fail("Expected an exception");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void checkChunks(final boolean gzip, final byte[] body, final byte[] expected) throws IOException {
+        for (int chunk : CHUNKS) {
+            assertArrayEquals("chunks of " + chunk, expected, read(gzip, 100, body, chunk));
+        }
+    }
+
+    /**
+     * Read a compressed body, which arrives in pieces of the given size, through a new channel.
+     */
+    private static byte[] read(final boolean gzip, final int maxRatio, final byte[] body, final int chunk) throws IOException {
+        final TestChannel test = new TestChannel();
+        test.feed(body, TestChannel.chunks(body.length, chunk));
+        test.end();
+        final InflatingStreamSourceChannel channel = new InflatingStreamSourceChannel(test.getChannel(), new InflaterPool(gzip, 512), maxRatio);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(333);
+        while (channel.read(buffer) != -1) {
+            output.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        output.write(buffer.array(), 0, buffer.position());
+        return output.toByteArray();
+    }
+
+    private static byte[] gzip(final byte[] data) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final GZIPOutputStream stream = new GZIPOutputStream(output);
+        stream.write(data);
+        stream.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Build a {@code gzip} member with the given optional header fields.
+     */
+    private static byte[] member(final int flags, final byte[] data) throws IOException {
+        final ByteArrayOutputStream member = new ByteArrayOutputStream();
+        member.write(new byte[] { 0x1f, (byte) 0x8b, 8, (byte) flags, 0, 0, 0, 0, 0, (byte) 0xff });
+        if ((flags & FEXTRA) != 0) {
+            member.write(new byte[] { 6, 0, 'A', 'B', 2, 0, 1, 2 });
+        }
+        if ((flags & FNAME) != 0) {
+            member.write("file.txt\0".getBytes("ISO-8859-1"));
+        }
+        if ((flags & FCOMMENT) != 0) {
+            member.write("a comment\0".getBytes("ISO-8859-1"));
+        }
+        if ((flags & FHCRC) != 0) {
+            final CRC32 crc = new CRC32();
+            crc.update(member.toByteArray());
+            writeLittleEndian(member, crc.getValue(), 2);
+        }
+        member.write(deflate(new Deflater(Deflater.DEFAULT_COMPRESSION, true), data));
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        writeLittleEndian(member, crc.getValue(), 4);
+        writeLittleEndian(member, data.length, 4);
+        return member.toByteArray();
+    }
+
+    private static byte[] deflate(final Deflater deflater, final byte[] data) {
+        deflater.setInput(data);
+        deflater.finish();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        while (! deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return output.toByteArray();
+    }
+
+    private static void writeLittleEndian(final ByteArrayOutputStream output, final long value, final int length) {
+        for (int i = 0; i < length; i ++) {
+            output.write((int) (value >>> (i << 3)));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import org.xnio.http.util.HeaderMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.xnio.http.server.TestChannel.LATIN_1;
+
+/**
+ * Check that a multipart form decodes the same however its body is split into buffers.  The bodies contain bytes
+ * which begin to match the delimiter and then turn out to be data, so that matched bytes are held back across buffers
+ * and released again.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class MultipartFormDecoderTestCase {
+
+    private static final String BOUNDARY = "XyZ";
+
+    @Test
+    public void testSimple() throws IOException {
+        checkSplits("--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nvalue\r\n--XyZ--", "[a=value]OK");
+    }
+
+    @Test
+    public void testPartialDelimiters() throws IOException {
+        checkSplits("preamble\r\n--XyZ\r\n"
+            + "Content-Disposition: form-data; name=\"a\"\r\n\r\nvalue\r\n-\r\n--X\r\n--XyZ \r\n"
+            + "Content-Disposition: form-data; name=\"f\"; filename=\"x.txt\"\r\nContent-Type: text/plain\r\n\r\n\r\r\n--Xy\r\n--XyW\r\n--XyZ\r\n"
+            + "Content-Disposition: form-data; name=\"e\"\r\n\r\n\r\n--XyZ--\r\nepilogue",
+            "[a=value\r\n-\r\n--X][f|x.txt=\r\r\n--Xy\r\n--XyW][e=]OK");
+    }
+
+    @Test
+    public void testHeldBytesAtEnd() throws IOException {
+        checkSplits("--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n\r\n--X\r\n\r\n--XyZ--", "[a=\r\n--X\r\n]OK");
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        checkSplits("--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nv\r\n--Xy", "[a=FAIL");
+    }
+
+    /**
+     * Decode the body whole, split in two and three at every position, and one byte at a time, and check that every
+     * result is the expected one.
+     */
+    private static void checkSplits(final String body, final String expected) throws IOException {
+        final byte[] bytes = body.getBytes(LATIN_1);
+        assertEquals(expected, decode(bytes));
+        for (int[] splits : TestChannel.everySplit(bytes.length)) {
+            assertEquals("split at " + Arrays.toString(splits), expected, decode(bytes, splits));
+        }
+    }
+
+    private static String decode(final byte[] bytes, final int... splits) throws IOException {
+        final RecordingHandler handler = new RecordingHandler();
+        final MultipartFormDecoder decoder = new MultipartFormDecoder(BOUNDARY, handler);
+        try {
+            for (byte[] piece : TestChannel.split(bytes, splits)) {
+                decoder.decode(ByteBuffer.wrap(piece));
+            }
+            decoder.finish();
+        } catch (IOException e) {
+            return handler.result.append("FAIL").toString();
+        }
+        return handler.result.append("OK").toString();
+    }
+
+    /**
+     * A handler which records each part as {@code [name=data]}, or {@code [name|fileName=data]} for a file.
+     */
+    static final class RecordingHandler implements FormDataHandler {
+        final StringBuilder result = new StringBuilder();
+        private ByteArrayOutputStream data;
+
+        public void startPart(final String name, final String fileName, final HeaderMap headers) {
+            result.append('[').append(name);
+            if (fileName != null) {
+                result.append('|').append(fileName);
+            }
+            result.append('=');
+            data = new ByteArrayOutputStream();
+        }
+
+        public void partData(final ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                data.write(buffer.get());
+            }
+        }
+
+        public void endPart() {
+            result.append(new String(data.toByteArray(), LATIN_1)).append(']');
+        }
+
+        public void complete() {
+        }
+
+        public void failed(final IOException exception) {
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.XnioExecutor;
+import org.xnio.channels.ConnectedStreamChannel;
+
+/**
+ * A connected stream channel for tests.  Each read returns the next piece of the input which was fed to it, so a test
+ * controls exactly how data is split across reads; everything written is recorded.  Nothing happens on its own: tasks
+ * submitted to the channel's thread, and the read and write notifications of resumed channels, are only delivered by
+ * {@link #run()}.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+final class TestChannel {
+    static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private final ArrayDeque<byte[]> input = new ArrayDeque<byte[]>();
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private final ChannelListener.SimpleSetter<ConnectedStreamChannel> readSetter = new ChannelListener.SimpleSetter<ConnectedStreamChannel>();
+    private final ChannelListener.SimpleSetter<ConnectedStreamChannel> writeSetter = new ChannelListener.SimpleSetter<ConnectedStreamChannel>();
+    private final ChannelListener.SimpleSetter<ConnectedStreamChannel> closeSetter = new ChannelListener.SimpleSetter<ConnectedStreamChannel>();
+    private final ConnectedStreamChannel channel;
+    private final XnioExecutor executor;
+    private boolean end;
+    private boolean readsResumed;
+    private boolean writesResumed;
+    private boolean closed;
+
+    TestChannel() {
+        channel = (ConnectedStreamChannel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ConnectedStreamChannel.class }, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Exception {
+                return invokeChannel(proxy, method, args);
+            }
+        });
+        executor = (XnioExecutor) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { XnioExecutor.class }, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("execute")) {
+                    tasks.add((Runnable) args[0]);
+                    return null;
+                }
+                // timed tasks never come due
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * Get the channel.
+     *
+     * @return the channel
+     */
+    ConnectedStreamChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Add input, split into pieces at the given positions.  Each piece is returned by a separate read.
+     *
+     * @param bytes the input
+     * @param splits the positions to split the input at, in ascending order
+     */
+    void feed(final byte[] bytes, final int... splits) {
+        input.addAll(Arrays.asList(split(bytes, splits)));
+    }
+
+    /**
+     * Add input as a single piece.
+     *
+     * @param text the input, which must be ISO-8859-1
+     */
+    void feed(final String text) {
+        feed(text.getBytes(LATIN_1));
+    }
+
+    /**
+     * Reach the end of the input, once the input which was fed so far is read.
+     */
+    void end() {
+        end = true;
+    }
+
+    /**
+     * Get everything written to the channel.
+     *
+     * @return the written bytes
+     */
+    byte[] getOutput() {
+        return output.toByteArray();
+    }
+
+    /**
+     * Get everything written to the channel, as ISO-8859-1 text.
+     *
+     * @return the written text
+     */
+    String getOutputText() {
+        return new String(output.toByteArray(), LATIN_1);
+    }
+
+    void clearOutput() {
+        output.reset();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Run submitted tasks and deliver notifications until there is nothing more to do.  A resumed channel is readable
+     * while there is input or once its end is reached, and is always writable.
+     */
+    void run() {
+        for (int i = 0; i < 10000; i ++) {
+            final Runnable task = tasks.poll();
+            if (task != null) {
+                task.run();
+            } else if (readsResumed && ! closed && (! input.isEmpty() || end)) {
+                ChannelListeners.invokeChannelListener(channel, readSetter.get());
+            } else if (writesResumed && ! closed) {
+                ChannelListeners.invokeChannelListener(channel, writeSetter.get());
+            } else {
+                return;
+            }
+        }
+        throw new IllegalStateException("Channel did not settle");
+    }
+
+    private Object invokeChannel(final Object proxy, final Method method, final Object[] args) throws Exception {
+        final String name = method.getName();
+        if (name.equals("read")) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            return args[0] instanceof ByteBuffer ? (Object) Integer.valueOf(read((ByteBuffer) args[0])) : (Object) Long.valueOf(read((ByteBuffer[]) args[0]));
+        } else if (name.equals("write")) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (args[0] instanceof ByteBuffer) {
+                return Integer.valueOf((int) write((ByteBuffer) args[0]));
+            }
+            final ByteBuffer[] srcs = (ByteBuffer[]) args[0];
+            final int offset = args.length == 3 ? ((Integer) args[1]).intValue() : 0;
+            final int length = args.length == 3 ? ((Integer) args[2]).intValue() : srcs.length;
+            long total = 0L;
+            for (int i = 0; i < length; i ++) {
+                total += write(srcs[offset + i]);
+            }
+            return Long.valueOf(total);
+        } else if (name.equals("transferFrom") && args[0] instanceof FileChannel) {
+            final long count = ((Long) args[2]).longValue();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 65536L));
+            final int res = ((FileChannel) args[0]).read(buffer, ((Long) args[1]).longValue());
+            buffer.flip();
+            return Long.valueOf(res <= 0 ? 0L : write(buffer));
+        } else if (name.equals("getReadSetter")) {
+            return readSetter;
+        } else if (name.equals("getWriteSetter")) {
+            return writeSetter;
+        } else if (name.equals("getCloseSetter")) {
+            return closeSetter;
+        } else if (name.equals("getReadThread") || name.equals("getWriteThread")) {
+            return executor;
+        } else if (name.equals("resumeReads")) {
+            readsResumed = true;
+        } else if (name.equals("wakeupReads")) {
+            readsResumed = true;
+            tasks.add(new Runnable() {
+                public void run() {
+                    ChannelListeners.invokeChannelListener(channel, readSetter.get());
+                }
+            });
+        } else if (name.equals("suspendReads")) {
+            readsResumed = false;
+        } else if (name.equals("isReadResumed")) {
+            return Boolean.valueOf(readsResumed);
+        } else if (name.equals("resumeWrites") || name.equals("wakeupWrites")) {
+            writesResumed = true;
+        } else if (name.equals("suspendWrites")) {
+            writesResumed = false;
+        } else if (name.equals("isWriteResumed")) {
+            return Boolean.valueOf(writesResumed);
+        } else if (name.equals("flush")) {
+            return Boolean.TRUE;
+        } else if (name.equals("isOpen")) {
+            return Boolean.valueOf(! closed);
+        } else if (name.equals("close")) {
+            if (! closed) {
+                closed = true;
+                ChannelListeners.invokeChannelListener(channel, closeSetter.get());
+            }
+        } else {
+            return defaultValue(proxy, method, args);
+        }
+        return null;
+    }
+
+    private int read(final ByteBuffer dst) {
+        final byte[] bytes = input.poll();
+        if (bytes == null) {
+            return end ? -1 : 0;
+        }
+        final int cnt = Math.min(bytes.length, dst.remaining());
+        dst.put(bytes, 0, cnt);
+        if (cnt < bytes.length) {
+            input.addFirst(Arrays.copyOfRange(bytes, cnt, bytes.length));
+        }
+        return cnt;
+    }
+
+    private long read(final ByteBuffer[] dsts) {
+        for (ByteBuffer dst : dsts) {
+            if (dst.hasRemaining()) {
+                return read(dst);
+            }
+        }
+        return 0L;
+    }
+
+    private long write(final ByteBuffer src) {
+        final int cnt = src.remaining();
+        while (src.hasRemaining()) {
+            output.write(src.get());
+        }
+        return cnt;
+    }
+
+    static Object defaultValue(final Object proxy, final Method method, final Object[] args) {
+        final String name = method.getName();
+        final Class<?> type = method.getReturnType();
+        if (name.equals("equals") && args != null && args.length == 1) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if (name.equals("hashCode") && args == null) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        } else if (name.equals("toString") && args == null) {
+            return "test " + method.getDeclaringClass().getSimpleName();
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0L);
+        } else if (type.isInterface()) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    return defaultValue(proxy, method, args);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Split an array at the given positions.
+     *
+     * @param bytes the array
+     * @param splits the positions, in ascending order
+     * @return the pieces, one more than there are positions
+     */
+    static byte[][] split(final byte[] bytes, final int... splits) {
+        final byte[][] pieces = new byte[splits.length + 1][];
+        int pos = 0;
+        for (int i = 0; i < splits.length; i ++) {
+            pieces[i] = Arrays.copyOfRange(bytes, pos, splits[i]);
+            pos = splits[i];
+        }
+        pieces[splits.length] = Arrays.copyOfRange(bytes, pos, bytes.length);
+        return pieces;
+    }
+
+    /**
+     * Get the positions which split an array into pieces of the given size.
+     *
+     * @param length the length of the array
+     * @param chunk the size of each piece
+     * @return the positions
+     */
+    static int[] chunks(final int length, final int chunk) {
+        final int[] splits = new int[Math.max(0, length - 1) / chunk];
+        for (int i = 0; i < splits.length; i ++) {
+            splits[i] = (i + 1) * chunk;
+        }
+        return splits;
+    }
+
+    /**
+     * Get every way to split an array in two, three, and into single bytes.
+     *
+     * @param length the length of the array
+     * @return the lists of positions
+     */
+    static List<int[]> everySplit(final int length) {
+        final List<int[]> splits = new ArrayList<int[]>();
+        for (int i = 0; i <= length; i ++) {
+            splits.add(new int[] { i });
+            for (int j = i; j <= length; j ++) {
+                splits.add(new int[] { i, j });
+            }
+        }
+        splits.add(chunks(length, 1));
+        return splits;
+    }
+
+    /**
+     * Join arrays together.
+     *
+     * @param arrays the arrays
+     * @return the joined array
+     */
+    static byte[] concat(final byte[]... arrays) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            output.write(array, 0, array.length);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Get some data which does not repeat within a short distance.
+     *
+     * @param length the length of the data
+     * @return the data
+     */
+    static byte[] pattern(final int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i ++) {
+            bytes[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+import org.xnio.BufferAllocator;
+import org.xnio.ByteBufferSlicePool;
+import org.xnio.OptionMap;
+import org.xnio.http.HttpOptions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.xnio.http.server.TestChannel.LATIN_1;
+
+/**
+ * Check the unmasking and decoding of incoming WebSocket frames: frames split across reads, each of the payload length
+ * forms, and payloads streamed through a small buffer so that the mask is resumed part of the way through its key.
+ * Also check the frames which are sent, in reply to control frames and for outgoing messages, and the handshake.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class WebSocketChannelTestCase {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MASK = 0xdeadbeef;
+
+    @Test
+    public void testUnmask() {
+        final Random random = new Random(3517);
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+            for (int offset = 0; offset < 8; offset ++) {
+                for (int pos = 0; pos < 4; pos ++) {
+                    for (int length = 0; length < 40; length ++) {
+                        final byte[] data = new byte[pos + length + 3];
+                        random.nextBytes(data);
+                        final byte[] expected = data.clone();
+                        for (int i = 0; i < length; i ++) {
+                            expected[pos + i] ^= (byte) (MASK >>> 24 - ((offset + i & 3) << 3));
+                        }
+                        final ByteBuffer buffer = ByteBuffer.wrap(data).order(order);
+                        WebSocketChannel.unmask(buffer, pos, pos + length, MASK, offset);
+                        assertArrayEquals(order + " offset " + offset + " at " + pos + " length " + length, expected, data);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShortLengthSplit() {
+        checkSplits(frame(0x81, text("Hello"), MASK), "text:Hello");
+    }
+
+    @Test
+    public void testMediumLengthSplit() {
+        final byte[] payload = TestChannel.pattern(300);
+        final byte[] frame = frame(0x82, payload, MASK);
+        assertEquals(0x80 | 126, frame[1] & 0xff);
+        checkSplits(frame, "binary:" + Arrays.toString(payload));
+    }
+
+    @Test
+    public void testFragmentedSplit() {
+        final byte[] first = frame(0x01, text("Hel"), 0x11223344);
+        final byte[] ping = frame(0x89, text("p"), 0x55667788);
+        final byte[] last = frame(0x80, text("lo!"), 0x99aabbcc);
+        final byte[] frames = new byte[first.length + ping.length + last.length];
+        System.arraycopy(first, 0, frames, 0, first.length);
+        System.arraycopy(ping, 0, frames, first.length, ping.length);
+        System.arraycopy(last, 0, frames, first.length + ping.length, last.length);
+        checkSplits(frames, "text:Hello!");
+    }
+
+    @Test
+    public void testMediumLengthStreamed() {
+        final byte[] payload = TestChannel.pattern(3001);
+        final byte[] frame = frame(0x82, payload, MASK);
+        // chunks which are not a multiple of the key length resume the mask at every offset
+        for (int chunk : new int[] { 1, 3, 97, 256 }) {
+            assertEquals("chunks of " + chunk, "binary:" + Arrays.toString(payload), decode(256, 5000, frame, TestChannel.chunks(frame.length, chunk)));
+        }
+    }
+
+    @Test
+    public void testLongLength() {
+        final byte[] payload = TestChannel.pattern(70001);
+        final byte[] frame = frame(0x82, payload, MASK);
+        assertEquals(0x80 | 127, frame[1] & 0xff);
+        for (int chunk : new int[] { 1001, 4096 }) {
+            assertEquals("chunks of " + chunk, "binary:" + Arrays.toString(payload), decode(4096, 80000, frame, TestChannel.chunks(frame.length, chunk)));
+        }
+    }
+
+    @Test
+    public void testSendFraming() throws IOException {
+        final TestChannel test = new TestChannel();
+        final WebSocketChannel channel = open(test, new RecordingListener());
+        channel.sendText("Hello");
+        assertArrayEquals(TestChannel.concat(new byte[] { (byte) 0x81, 5 }, text("Hello")), takeOutput(test));
+        final byte[] medium = TestChannel.pattern(300);
+        channel.sendBinary(ByteBuffer.wrap(medium));
+        assertArrayEquals(TestChannel.concat(new byte[] { (byte) 0x82, 126, 0x01, 0x2c }, medium), takeOutput(test));
+        final byte[] large = TestChannel.pattern(70000);
+        channel.sendBinary(ByteBuffer.wrap(large));
+        assertArrayEquals(TestChannel.concat(new byte[] { (byte) 0x82, 127, 0, 0, 0, 0, 0, 0x01, 0x11, 0x70 }, large), takeOutput(test));
+        channel.sendPing(ByteBuffer.wrap(text("p")));
+        assertArrayEquals(new byte[] { (byte) 0x89, 1, 'p' }, takeOutput(test));
+    }
+
+    @Test
+    public void testPong() {
+        final TestChannel test = new TestChannel();
+        final RecordingListener listener = new RecordingListener();
+        open(test, listener);
+        test.feed(frame(0x89, text("ping"), MASK));
+        test.run();
+        assertArrayEquals(new byte[] { (byte) 0x8a, 4, 'p', 'i', 'n', 'g' }, takeOutput(test));
+        assertEquals("", listener.toString());
+        assertFalse(test.isClosed());
+    }
+
+    @Test
+    public void testCloseEcho() throws IOException {
+        final TestChannel test = new TestChannel();
+        final RecordingListener listener = new RecordingListener();
+        final WebSocketChannel channel = open(test, listener);
+        test.feed(frame(0x88, new byte[] { 0x03, (byte) 0xe9, 'b', 'y', 'e' }, MASK));
+        test.run();
+        assertArrayEquals(new byte[] { (byte) 0x88, 2, 0x03, (byte) 0xe9 }, takeOutput(test));
+        assertEquals("close:1001", listener.toString());
+        assertTrue(test.isClosed());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testCloseHandshake() throws IOException {
+        final TestChannel test = new TestChannel();
+        final RecordingListener listener = new RecordingListener();
+        final WebSocketChannel channel = open(test, listener);
+        channel.close(WebSocketChannel.GOING_AWAY, "bye");
+        assertArrayEquals(new byte[] { (byte) 0x88, 5, 0x03, (byte) 0xe9, 'b', 'y', 'e' }, takeOutput(test));
+        // messages after the close are dropped, and the answering close is not echoed
+        test.feed(TestChannel.concat(frame(0x81, text("late"), MASK), frame(0x88, new byte[] { 0x03, (byte) 0xe9 }, MASK)));
+        test.run();
+        assertArrayEquals(new byte[0], takeOutput(test));
+        assertTrue(test.isClosed());
+    }
+
+    @Test
+    public void testHandshake() {
+        final TestChannel test = new TestChannel();
+        HttpServerConnectionTestCase.connect(test, OptionMap.create(HttpOptions.WEB_SOCKET_ENABLED, Boolean.TRUE), new WebSocketHandler(new RecordingListener() {
+            public void handleText(final WebSocketChannel channel, final String text) {
+                try {
+                    channel.sendText(text.toUpperCase(Locale.ENGLISH));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }));
+        // the first frame arrives along with the handshake request
+        test.feed(TestChannel.concat(("GET /chat HTTP/1.1\r\nHost: x\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(LATIN_1), frame(0x81, text("one"), MASK)));
+        test.run();
+        test.feed(frame(0x81, text("two"), 0x01020304));
+        test.run();
+        final String output = test.getOutputText();
+        assertTrue(output, output.startsWith("HTTP/1.1 101 Switching Protocols\r\n"));
+        assertTrue(output, output.contains("\r\nSec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        assertTrue(output, output.endsWith("\r\n\r\n\u0081\u0003ONE\u0081\u0003TWO"));
+        assertFalse(test.isClosed());
+    }
+
+    /**
+     * Open a socket on a test channel.
+     */
+    private static WebSocketChannel open(final TestChannel test, final WebSocketListener listener) {
+        final WebSocketChannel channel = new WebSocketChannel(test.getChannel(), new ByteBufferSlicePool(BufferAllocator.BYTE_BUFFER_ALLOCATOR, 4096, 65536), listener, 5000);
+        channel.start();
+        test.run();
+        return channel;
+    }
+
+    private static byte[] takeOutput(final TestChannel test) {
+        final byte[] output = test.getOutput();
+        test.clearOutput();
+        return output;
+    }
+
+    /**
+     * Decode frames whole, and split in two at every position, and check that every result is the expected one.
+     */
+    private static void checkSplits(final byte[] frames, final String expected) {
+        assertEquals(expected, decode(4096, 5000, frames));
+        for (int i = 0; i <= frames.length; i ++) {
+            assertEquals("split at " + i, expected, decode(4096, 5000, frames, i));
+        }
+    }
+
+    /**
+     * Feed frames to a new socket, with a read event for each piece, and return the messages it delivered.
+     */
+    private static String decode(final int bufferSize, final int maxMessageSize, final byte[] frames, final int... splits) {
+        final TestChannel test = new TestChannel();
+        final RecordingListener listener = new RecordingListener();
+        final WebSocketChannel channel = new WebSocketChannel(test.getChannel(), new ByteBufferSlicePool(BufferAllocator.BYTE_BUFFER_ALLOCATOR, bufferSize, bufferSize * 16), listener, maxMessageSize);
+        channel.start();
+        for (byte[] piece : TestChannel.split(frames, splits)) {
+            test.feed(piece);
+            test.run();
+        }
+        return listener.toString();
+    }
+
+    private static byte[] frame(final int b0, final byte[] payload, final int mask) {
+        final int length = payload.length;
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(b0);
+        if (length < 126) {
+            frame.write(0x80 | length);
+        } else if (length < 65536) {
+            frame.write(0x80 | 126);
+            frame.write(length >> 8);
+            frame.write(length);
+        } else {
+            frame.write(0x80 | 127);
+            for (int i = 7; i >= 0; i --) {
+                frame.write((int) ((long) length >> (i << 3)));
+            }
+        }
+        final byte[] key = { (byte) (mask >> 24), (byte) (mask >> 16), (byte) (mask >> 8), (byte) mask };
+        frame.write(key, 0, 4);
+        for (int i = 0; i < length; i ++) {
+            frame.write(payload[i] ^ key[i & 3]);
+        }
+        return frame.toByteArray();
+    }
+
+    private static byte[] text(final String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    static class RecordingListener implements WebSocketListener {
+        final List<String> messages = new ArrayList<String>();
+
+        public void handleOpen(final WebSocketChannel channel, final HttpServerExchange exchange) {
+        }
+
+        public void handleText(final WebSocketChannel channel, final String text) {
+            messages.add("text:" + text);
+        }
+
+        public void handleBinary(final WebSocketChannel channel, final ByteBuffer payload) {
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            messages.add("binary:" + Arrays.toString(bytes));
+        }
+
+        public void handleClose(final WebSocketChannel channel, final int code, final String reason) {
+            messages.add("close:" + code);
+        }
+
+        public String toString() {
+            final StringBuilder result = new StringBuilder();
+            for (String message : messages) {
+                if (result.length() > 0) {
+                    result.append(',');
+                }
+                result.append(message);
+            }
+            return result.toString();
+        }
+    }
+}
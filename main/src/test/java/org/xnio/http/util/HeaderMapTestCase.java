@@ -0,0 +1,358 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.http.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check header lookup, removal and ordering, and the locking, sharing and encoding of header maps.
+ *
+ * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
+ */
+public final class HeaderMapTestCase {
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    // these two names have the same hash, so they always share a probe sequence
+    private static final String COLLIDING_1 = "X-az";
+    private static final String COLLIDING_2 = "X-b[";
+
+    @Test
+    public void testCaseInsensitiveLookup() {
+        final HeaderMap map = new HeaderMap();
+        map.add("Content-Type", "text/plain");
+        assertEquals("text/plain", map.getFirst("content-type"));
+        assertEquals("text/plain", map.getFirst("CONTENT-TYPE"));
+        assertTrue(map.contains("cOnTeNt-TyPe"));
+        assertNull(map.getFirst("Content-Length"));
+        map.add("content-type", "text/html");
+        assertEquals(Arrays.asList("text/plain", "text/html"), new ArrayList<String>(map.get("Content-Type")));
+        assertEquals(Arrays.asList("Content-Type"), names(map));
+    }
+
+    @Test
+    public void testRawLookup() {
+        final HeaderMap map = raw("Host: x", "Accept: 1", "host: y", "Via: z");
+        assertEquals("x", map.getFirst("HOST"));
+        assertEquals("y", map.getLast("Host"));
+        assertEquals("1", map.getFirst("accept"));
+        map.add("HOST", "w");
+        assertEquals(Arrays.asList("x", "y", "w"), new ArrayList<String>(map.get("host")));
+        assertEquals(Arrays.asList("Host", "Accept", "Via"), names(map));
+    }
+
+    @Test
+    public void testCollisionsAcrossResize() {
+        final HeaderMap map = new HeaderMap();
+        map.add(COLLIDING_1, "a");
+        map.add(COLLIDING_2, "b");
+        // enough headers to grow the map several times over
+        for (int i = 0; i < 100; i ++) {
+            map.add("Header-" + i, Integer.toString(i));
+            map.add(i % 2 == 0 ? COLLIDING_1.toUpperCase() : COLLIDING_2.toLowerCase(), Integer.toString(i));
+            for (int j = 0; j <= i; j ++) {
+                assertEquals(Integer.toString(j), map.getFirst("header-" + j));
+            }
+            assertEquals("a", map.getFirst(COLLIDING_1));
+            assertEquals("b", map.getFirst(COLLIDING_2));
+        }
+        assertEquals(51, map.get(COLLIDING_1).size());
+        assertEquals(51, map.get(COLLIDING_2).size());
+        assertEquals("98", map.getLast(COLLIDING_1));
+        assertEquals("99", map.getLast(COLLIDING_2));
+    }
+
+    @Test
+    public void testRemove() {
+        final HeaderMap map = new HeaderMap();
+        map.add("A", "1");
+        map.add(COLLIDING_1, "2");
+        map.add("B", "3");
+        map.add("a", "4");
+        map.add(COLLIDING_2, "5");
+        map.add("C", "6");
+        map.add("B", "7");
+        assertEquals(Arrays.asList("1", "4"), new ArrayList<String>(map.remove("A")));
+        assertNull(map.remove("A"));
+        assertNull(map.getFirst("a"));
+        assertEquals(Arrays.asList("3", "7"), new ArrayList<String>(map.get("b")));
+        assertEquals("6", map.getFirst("c"));
+        assertEquals(Arrays.asList("2"), new ArrayList<String>(map.remove(COLLIDING_1)));
+        // the entry which followed it in the probe sequence must still be found
+        assertEquals("5", map.getFirst(COLLIDING_2));
+        assertEquals(Arrays.asList("B", COLLIDING_2, "C"), names(map));
+        map.add("A", "8");
+        assertEquals(Arrays.asList("8"), new ArrayList<String>(map.get("A")));
+        assertEquals(Arrays.asList("B", COLLIDING_2, "C", "A"), names(map));
+    }
+
+    @Test
+    public void testRawRemove() {
+        final HeaderMap map = raw("Host: x", "Accept: 1", "host: y", "Via: z");
+        map.add("Accept", "2");
+        assertEquals(Arrays.asList("x", "y"), new ArrayList<String>(map.remove("Host")));
+        assertNull(map.getFirst("Host"));
+        assertEquals(Arrays.asList("1", "2"), new ArrayList<String>(map.get("Accept")));
+        assertEquals("z", map.getFirst("via"));
+        assertEquals(Arrays.asList("Accept", "Via"), names(map));
+        assertEquals("Accept: 1\r\nVia: z\r\nAccept: 2\r\n", encode(map));
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        final HeaderMap map = new HeaderMap();
+        map.add("A", "1");
+        map.add("B", "2");
+        map.add("A", "3");
+        map.add("C", "4");
+        final Iterator<String> iterator = map.iterator();
+        assertEquals("A", iterator.next());
+        iterator.remove();
+        assertEquals("B", iterator.next());
+        assertEquals("C", iterator.next());
+        assertFalse(iterator.hasNext());
+        assertEquals(Arrays.asList("B", "C"), names(map));
+    }
+
+    @Test
+    public void testMultiValueOrder() {
+        final HeaderMap map = new HeaderMap();
+        map.add("X", "1");
+        map.add("Y", "a");
+        map.add("x", "2");
+        map.addAll("X", Arrays.asList("3", "4"));
+        map.add("Y", "b");
+        assertEquals(Arrays.asList("1", "2", "3", "4"), new ArrayList<String>(map.get("X")));
+        assertEquals("1", map.getFirst("X"));
+        assertEquals("4", map.getLast("X"));
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(map.get("Y")));
+        assertEquals("X: 1\r\nY: a\r\nx: 2\r\nX: 3\r\nX: 4\r\nY: b\r\n", encode(map));
+        map.put("X", "5");
+        assertEquals(Arrays.asList("5"), new ArrayList<String>(map.get("X")));
+        assertEquals("Y: a\r\nY: b\r\nX: 5\r\n", encode(map));
+        map.putAll("Y", Arrays.asList("c", "d"));
+        assertEquals("X: 5\r\nY: c\r\nY: d\r\n", encode(map));
+    }
+
+    @Test
+    public void testLocked() {
+        final HeaderMap map = new HeaderMap();
+        map.add("A", "1");
+        map.lock();
+        assertTrue(map.isLocked());
+        map.lock();
+        try {
+            map.add("B", "2");
+            fail("add");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.addAll("B", Arrays.asList("2"));
+            fail("addAll");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.addAll(new HeaderMap());
+            fail("addAll");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.put("A", "2");
+            fail("put");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.remove("A");
+            fail("remove");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.clear();
+            fail("clear");
+        } catch (IllegalStateException expected) {
+        }
+        final Iterator<String> iterator = map.iterator();
+        iterator.next();
+        try {
+            iterator.remove();
+            fail("iterator remove");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(Arrays.asList("1"), new ArrayList<String>(map.get("A")));
+    }
+
+    @Test
+    public void testLockedRaw() {
+        final HeaderMap map = raw("Host: x", "Accept: 1");
+        map.lock();
+        assertEquals("x", map.getFirst("host"));
+        assertEquals("Host: x\r\nAccept: 1\r\n", encode(map));
+    }
+
+    @Test
+    public void testAddAllShared() {
+        final HeaderMap common = new HeaderMap();
+        common.add("Server", "test");
+        common.add("Vary", "Accept");
+        common.lock();
+        final HeaderMap first = new HeaderMap();
+        first.addAll(common);
+        final HeaderMap second = new HeaderMap();
+        second.addAll(common);
+        assertFalse(first.isLocked());
+        assertEquals("test", first.getFirst("server"));
+        assertEquals("Server: test\r\nVary: Accept\r\n", encode(first));
+        // writes to a sharing map must not be seen by the locked map or the other maps which share it
+        first.add("Vary", "Cookie");
+        first.remove("Server");
+        second.put("Server", "other");
+        assertEquals(Arrays.asList("Accept", "Cookie"), new ArrayList<String>(first.get("Vary")));
+        assertNull(first.getFirst("Server"));
+        assertEquals("other", second.getFirst("Server"));
+        assertEquals("Server: test\r\nVary: Accept\r\n", encode(common));
+        assertEquals("test", common.getFirst("Server"));
+        assertEquals(Arrays.asList("Accept"), new ArrayList<String>(common.get("Vary")));
+        // recycling the locked map must not take the storage from under a map which shares it
+        final HeaderMap third = new HeaderMap();
+        third.addAll(common);
+        final HeaderMap recycled = common.recycle();
+        recycled.add("Server", "recycled");
+        assertEquals("Server: test\r\nVary: Accept\r\n", encode(third));
+        try {
+            common.getFirst("Server");
+            fail("recycled");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testAddAllCopied() {
+        final HeaderMap common = new HeaderMap();
+        common.add("Server", "test");
+        common.lock();
+        final HeaderMap map = new HeaderMap();
+        map.add("Vary", "Accept");
+        map.addAll(common);
+        map.add("server", "other");
+        assertEquals("Vary: Accept\r\nServer: test\r\nserver: other\r\n", encode(map));
+        assertEquals("Server: test\r\n", encode(common));
+    }
+
+    @Test
+    public void testEncodeTo() {
+        final HeaderMap map = new HeaderMap();
+        map.add("Content-Type", "text/plain");
+        map.add("Content-Length", "5");
+        final String expected = "Content-Type: text/plain\r\nContent-Length: 5\r\n";
+        assertEncodeTo(expected, map);
+        assertEquals(expected, string(map.getEncoded()));
+        map.add("Connection", "close");
+        final String changed = expected + "Connection: close\r\n";
+        assertEncodeTo(changed, map);
+        map.lock();
+        // the first encoding of a locked map is kept, and copied by later ones
+        assertEncodeTo(changed, map);
+        assertEncodeTo(changed, map);
+        assertEquals(changed, string(map.getEncoded()));
+        final HeaderMap shared = new HeaderMap();
+        shared.addAll(map);
+        assertEncodeTo(changed, shared);
+        shared.add("Via", "proxy");
+        assertEncodeTo(changed + "Via: proxy\r\n", shared);
+        assertEncodeTo(changed, map);
+    }
+
+    @Test
+    public void testGetEncodedLocked() {
+        final HeaderMap map = new HeaderMap();
+        map.add("Server", "test");
+        map.lock();
+        final String expected = "Server: test\r\n";
+        final ByteBuffer encoded = map.getEncoded();
+        assertTrue(encoded.isReadOnly());
+        assertEquals(expected, string(encoded));
+        // consuming a returned buffer must not affect the next one
+        assertEquals(expected, string(map.getEncoded()));
+        assertEncodeTo(expected, map);
+    }
+
+    private static void assertEncodeTo(final String expected, final HeaderMap map) {
+        final int length = expected.length();
+        final ByteBuffer tooSmall = ByteBuffer.allocate(length + 1);
+        tooSmall.position(2);
+        assertFalse(map.encodeTo(tooSmall));
+        assertEquals(2, tooSmall.position());
+        final ByteBuffer buffer = ByteBuffer.allocate(length + 3);
+        buffer.put((byte) '>');
+        assertTrue(map.encodeTo(buffer));
+        assertEquals(length + 1, buffer.position());
+        buffer.flip();
+        assertEquals('>', buffer.get());
+        assertEquals(expected, string(buffer));
+    }
+
+    private static String encode(final HeaderMap map) {
+        return string(map.getEncoded());
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, LATIN_1);
+    }
+
+    private static List<String> names(final HeaderMap map) {
+        final List<String> names = new ArrayList<String>();
+        for (String name : map) {
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static HeaderMap raw(final String... lines) {
+        final StringBuilder builder = new StringBuilder();
+        final int[] offsets = new int[lines.length << 2];
+        for (int i = 0; i < lines.length; i ++) {
+            final int start = builder.length();
+            final int colon = lines[i].indexOf(':');
+            offsets[i << 2] = start;
+            offsets[(i << 2) + 1] = start + colon;
+            offsets[(i << 2) + 2] = start + colon + 2;
+            offsets[(i << 2) + 3] = start + lines[i].length();
+            builder.append(lines[i]).append("\r\n");
+        }
+        return new HeaderMap(builder.toString().getBytes(LATIN_1), offsets, lines.length);
+    }
+}